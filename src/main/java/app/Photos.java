@@ -7,6 +7,8 @@
  * setRoot() is provided for seamless transitions between different views by loading the corresponding FXML files.
  * The overall design of the application follows an MVC architecture, where FXML files define the view,
  * controllers handle user interactions, and models represent application data.
+ * Launched with {@code --server [port] [--listen ADDRESS]}, it skips the user interface and
+ * serves the library over HTTP instead (see {@link PhotoServer}).
  * </p>
  *
  * @author Adam Student
@@ -16,12 +18,16 @@
 package app;
 
 import java.io.IOException;
+import java.net.InetAddress;
 
 import javafx.application.Application;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.Parent;
 import javafx.scene.Scene;
 import javafx.stage.Stage;
+import server.PhotoServer;
+import service.ImageService;
+import service.PersistenceService;
 
 /**
  * Main application entry point.
@@ -37,6 +43,14 @@ public class Photos extends Application {
         stage.setScene(scene);
         stage.setTitle("Photos - Login");
         stage.show();
+        // Tile pyramids of photos removed since the last start are cleared out in the background.
+        ImageService.sweepPyramids();
+    }
+
+    @Override
+    public void stop() {
+        // Saves are written in the background; let the last ones reach the disk.
+        PersistenceService.flush();
     }
 
     public static void setRoot(String fxml) throws IOException {
@@ -49,7 +63,29 @@ public class Photos extends Application {
         return fxmlLoader.load();
     }
 
-    public static void main(String[] args) {
+    /**
+     * Starts the desktop application, or with {@code --server [port]} the headless HTTP API.
+     * The server listens on the loopback address only, unless {@code --listen ADDRESS} names
+     * another address to listen on (such as 0.0.0.0 for all of them).
+     *
+     * @param args command line arguments
+     * @throws IOException if the server port cannot be bound
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length > 0 && args[0].equals("--server")) {
+            int port = PhotoServer.DEFAULT_PORT;
+            InetAddress address = null;
+            for (int i = 1; i < args.length; i++) {
+                if (args[i].equals("--listen") && i + 1 < args.length) {
+                    address = InetAddress.getByName(args[++i]);
+                } else {
+                    port = Integer.parseInt(args[i]);
+                }
+            }
+            PhotoServer server = PhotoServer.start(address, port, System.getenv(PhotoServer.TOKEN_VARIABLE));
+            Runtime.getRuntime().addShutdownHook(new Thread(server::stop, "server-shutdown"));
+            return;
+        }
         launch();
     }
 }
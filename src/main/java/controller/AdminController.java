@@ -17,9 +17,9 @@
 
 package controller;
 
-import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 
 import app.Photos;
@@ -31,7 +31,7 @@ import javafx.scene.control.ListView;
 import javafx.scene.control.TextInputDialog;
 import model.Admin;
 import model.User;
-import util.SerializationUtil;
+import service.PersistenceService;
 
 public class AdminController {
 
@@ -46,13 +46,10 @@ public class AdminController {
         // Create Admin model
         adminModel = new Admin();
 
-        // Load existing users from data directory
-        loadUsers();
-
-        // Set up ListView with usernames
+        // Set up ListView with usernames; they are filled in once the user files are read
         usernames = FXCollections.observableArrayList();
-        refreshUserList();
         userListView.setItems(usernames);
+        refreshUserList();
     }
 
     @FXML
@@ -75,10 +72,9 @@ public class AdminController {
             // Create new user and save
             User newUser = new User(username);
             adminModel.createUser(newUser);
-            SerializationUtil.save(newUser, "data/users/" + username + ".dat");
 
-            // Refresh the list view
-            refreshUserList();
+            // List the new user once the file has been written; the others stay as they are
+            PersistenceService.saveUser(newUser).thenRun(() -> usernames.add(username));
             showInfo("User '" + username + "' created successfully.");
         }
     }
@@ -97,21 +93,24 @@ public class AdminController {
             return;
         }
 
-        // Find and delete the user
-        User userToDelete = loadUser(selectedUsername);
-        if (userToDelete != null) {
-            adminModel.deleteUser(userToDelete);
-
-            // Delete user data file
-            File userFile = new File("data/users/" + selectedUsername + ".dat");
-            if (userFile.exists()) {
-                userFile.delete();
+        // Find and delete the user, with the album photo files they own
+        PersistenceService.loadUser(selectedUsername).thenAccept(userToDelete -> {
+            if (userToDelete == null) {
+                return;
             }
-
-            // Refresh the list view
-            refreshUserList();
-            showInfo("User '" + selectedUsername + "' deleted successfully.");
-        }
+            PersistenceService.deleteUser(userToDelete).thenRun(() -> {
+                // Drop just that user from the model and the list view. The model holds the
+                // copy read when the view opened, not the one just read to delete it.
+                for (User listed : adminModel.listUsers()) {
+                    if (listed.getUsername().equals(selectedUsername)) {
+                        adminModel.deleteUser(listed);
+                        break;
+                    }
+                }
+                usernames.remove(selectedUsername);
+                showInfo("User '" + selectedUsername + "' deleted successfully.");
+            });
+        });
     }
 
     @FXML
@@ -133,46 +132,24 @@ public class AdminController {
         }
     }
 
-    private void loadUsers() {
-        // Create data directory if it doesn't exist
-        File dataDir = new File("data/users");
-        if (!dataDir.exists()) {
-            dataDir.mkdirs();
-        }
-
-        // Load existing users
-        File[] userFiles = dataDir.listFiles((dir, name) -> name.endsWith(".dat"));
-        if (userFiles != null) {
-            for (File file : userFiles) {
-                String username = file.getName().replace(".dat", "");
-                User user = SerializationUtil.load(file.getPath());
-                if (user != null) {
-                    adminModel.createUser(user);
-                }
-            }
-        }
-    }
-
-    private User loadUser(String username) {
-        return SerializationUtil.load("data/users/" + username + ".dat");
-    }
-
     private boolean userExists(String username) {
-        File userFile = new File("data/users/" + username + ".dat");
-        return userFile.exists();
+        // The list mirrors the files in data/users, so there is no need to touch the disk
+        return usernames.contains(username);
     }
 
     private void refreshUserList() {
-        // Reinitialize the admin model so that stale data is cleared.
-        adminModel = new Admin();
-        // Reload users from disk (which will only load files that still exist)
-        loadUsers();
-        // Clear the observable list and repopulate it
-        usernames.clear();
-        ArrayList<User> users = adminModel.listUsers();
-        for (User user : users) {
-            usernames.add(user.getUsername());
-        }
+        // Read the users from disk in the background once, when the view opens; creating and
+        // deleting users afterwards updates the list in place.
+        PersistenceService.loadAllUsers().thenAccept(users -> {
+            adminModel = new Admin();
+            List<String> names = new ArrayList<>();
+            for (User user : users) {
+                adminModel.createUser(user);
+                names.add(user.getUsername());
+            }
+            // Repopulate the observable list in one step
+            usernames.setAll(names);
+        });
     }
 
     private void showError(String message) {
@@ -19,32 +19,53 @@ package controller;
 
 import java.io.File;
 import java.io.IOException;
-import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 import app.Photos;
+import javafx.application.Platform;
+import javafx.collections.ObservableList;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
+import javafx.scene.Node;
 import javafx.scene.Scene;
 import javafx.scene.control.Alert;
+import javafx.scene.control.ButtonType;
+import javafx.scene.control.ComboBox;
 import javafx.scene.control.DatePicker;
 import javafx.scene.control.Label;
 import javafx.scene.control.ListView;
+import javafx.scene.control.ProgressBar;
 import javafx.scene.control.TextField;
 import javafx.scene.control.TextInputDialog;
-import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 import javafx.scene.layout.StackPane;
 import javafx.scene.layout.TilePane;
+import javafx.scene.layout.VBox;
+import javafx.stage.DirectoryChooser;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 import model.Album;
+import model.LibraryEvent;
 import model.Photo;
 import model.User;
-import util.SerializationUtil;
+import service.ImageService;
+import service.LibraryService;
+import service.PersistenceService;
+import util.ImageFiles;
+import util.ImagePyramid;
+import util.ThumbnailPack;
 
 public class AlbumController {
 
+    // Past this many photos in one change, the grid is laid out again in a single pass
+    // (keeping every thumbnail it already has) instead of inserting them one at a time.
+    private static final int GRID_BATCH_LIMIT = 64;
+
     // Fields for album management (primary dashboard mode)
     @FXML
     private ListView<Album> albumListView; // Present in primary.fxml
@@ -68,12 +89,20 @@ public class AlbumController {
     private Label albumNameLabel; // Present in album_details.fxml
     @FXML
     private TilePane photoTilePane; // New: used for grid display of photos
+    @FXML
+    private ComboBox<Album.SortOrder> sortComboBox; // Present in album_details.fxml
 
     private User currentUser;
     // We'll track the selected photo.
     private Photo selectedPhoto;
     // This will reference the StackPane wrapping the current selected thumbnail.
     private StackPane selectedThumbnailContainer;
+    // Memory-mapped thumbnails of the current album, or null until the pack has been built.
+    private ThumbnailPack thumbnailPack;
+    // The thumbnail shown for each photo in the grid, so changes touch only their own photos.
+    private Map<Photo, StackPane> thumbnails = new HashMap<>();
+    // Whether the grid has been filled; changes before that are picked up by the filling.
+    private boolean gridFilled;
 
     @FXML
     private void initialize() {
@@ -82,15 +111,32 @@ public class AlbumController {
             // Primary dashboard mode.
             currentUser = SessionManager.getCurrentUser();
             if (currentUser != null) {
-                refreshAlbumList();
+                albumListView.getItems().setAll(currentUser.getAlbums());
+                listenWhileShowing(albumListView);
             }
         } else if (albumNameLabel != null) {
             // Album details mode.
+            currentUser = SessionManager.getCurrentUser();
             Album currentAlbum = SessionManager.getCurrentAlbum();
             if (currentAlbum != null) {
                 albumNameLabel.setText(currentAlbum.getName());
+                if (sortComboBox != null) {
+                    sortComboBox.getItems().setAll(Album.SortOrder.values());
+                    sortComboBox.setValue(currentAlbum.getSortOrder());
+                    sortComboBox.setOnAction(e -> handleSortOrder());
+                }
                 if (photoTilePane != null) {
-                    refreshPhotoGrid();
+                    // Map the packed thumbnails off the UI thread, then fill the grid from them.
+                    ImageService.openThumbnailPack(currentAlbum.getId()).thenAccept(pack -> {
+                        if (thumbnailPack == null) {
+                            thumbnailPack = pack;
+                        }
+                        refreshPhotoGrid();
+                    });
+                    // Imports, folder syncs and edits in the photo window update the grid as they happen.
+                    if (currentUser != null) {
+                        listenWhileShowing(photoTilePane);
+                    }
                 }
             } else {
                 albumNameLabel.setText("No album selected");
@@ -98,6 +144,18 @@ public class AlbumController {
         }
     }
 
+    // Re-sorts the grid in the chosen order and remembers the choice with the album.
+    private void handleSortOrder() {
+        Album currentAlbum = SessionManager.getCurrentAlbum();
+        Album.SortOrder order = sortComboBox.getValue();
+        if (currentAlbum == null || order == null || order == currentAlbum.getSortOrder()) {
+            return;
+        }
+        // The album reports the new order, and the grid rearranges its thumbnails.
+        currentAlbum.setSortOrder(order);
+        saveUserData();
+    }
+
     // --- Album Management Methods ---
     @FXML
     private void handleCreateAlbum() {
@@ -108,15 +166,12 @@ public class AlbumController {
             showError("Album name cannot be empty.");
             return;
         }
-        for (Album album : currentUser.getAlbums()) {
-            if (album.getName().equalsIgnoreCase(albumName)) {
-                showError("An album with this name already exists.");
-                return;
-            }
+        if (currentUser.hasAlbumNamed(albumName)) {
+            showError("An album with this name already exists.");
+            return;
         }
         Album newAlbum = new Album(albumName);
         currentUser.addAlbum(newAlbum);
-        refreshAlbumList();
         albumNameField.clear();
         saveUserData();
         showInfo("Album '" + albumName + "' created successfully.");
@@ -131,9 +186,10 @@ public class AlbumController {
             showError("Please select an album to delete.");
             return;
         }
+        FolderAlbumSync.stop(selectedAlbum);
         currentUser.removeAlbum(selectedAlbum);
-        refreshAlbumList();
         saveUserData();
+        PersistenceService.deleteAlbum(currentUser, selectedAlbum);
         showInfo("Album '" + selectedAlbum.getName() + "' deleted successfully.");
     }
 
@@ -153,14 +209,10 @@ public class AlbumController {
         Optional<String> result = dialog.showAndWait();
         if (result.isPresent() && !result.get().trim().isEmpty()) {
             String newName = result.get().trim();
-            for (Album album : currentUser.getAlbums()) {
-                if (!album.equals(selectedAlbum) && album.getName().equalsIgnoreCase(newName)) {
-                    showError("An album with this name already exists.");
-                    return;
-                }
+            if (!currentUser.renameAlbum(selectedAlbum, newName)) {
+                showError("An album with this name already exists.");
+                return;
             }
-            selectedAlbum.renameAlbum(newName);
-            refreshAlbumList();
             saveUserData();
             showInfo("Album renamed to '" + newName + "' successfully.");
         }
@@ -175,13 +227,16 @@ public class AlbumController {
                 showError("Please select an album to open.");
                 return;
             }
-            SessionManager.setCurrentAlbum(selectedAlbum);
-            try {
-                Photos.setRoot("album_details");
-            } catch (IOException e) {
-                showError("Failed to open album details view.");
-                e.printStackTrace();
-            }
+            // Read the album's photos in the background before switching views.
+            LibraryService.loadAlbum(selectedAlbum).thenAccept(album -> {
+                SessionManager.setCurrentAlbum(album);
+                try {
+                    Photos.setRoot("album_details");
+                } catch (IOException e) {
+                    showError("Failed to open album details view.");
+                    e.printStackTrace();
+                }
+            });
         }
     }
 
@@ -196,25 +251,81 @@ public class AlbumController {
         FileChooser fileChooser = new FileChooser();
         fileChooser.setTitle("Select Photo");
         fileChooser.getExtensionFilters().addAll(
-                new FileChooser.ExtensionFilter("Image Files", "*.png", "*.jpg", "*.jpeg", "*.gif", "*.bmp"));
+                new FileChooser.ExtensionFilter("Image Files", ImageFiles.EXTENSION_PATTERNS));
         File selectedFile = fileChooser.showOpenDialog(null);
         if (selectedFile != null) {
             // Check if the album already contains a photo with the same file path.
-            boolean duplicateFound = currentAlbum.getPhotos().stream()
-                    .anyMatch(photo -> photo.getFilepath().equalsIgnoreCase(selectedFile.getAbsolutePath()));
-            if (duplicateFound) {
+            if (currentAlbum.containsPath(selectedFile.getAbsolutePath())) {
                 showError("The selected photo already exists in this album.");
                 return;
             }
-            LocalDateTime dateTaken = LocalDateTime.now();
-            Photo newPhoto = new Photo(selectedFile.getAbsolutePath(), "", dateTaken);
-            currentAlbum.addPhoto(newPhoto);
-            refreshPhotoGrid();
-            saveUserData();
-            showInfo("Photo added successfully.");
+            // Read the capture date, dimensions and orientation from the file header.
+            LibraryService.readPhoto(selectedFile.getAbsolutePath()).thenAccept(newPhoto -> {
+                if (currentAlbum.containsPath(newPhoto.getFilepath())) {
+                    return; // Added some other way while the header was being read.
+                }
+                currentAlbum.addPhoto(newPhoto);
+                if (ImagePyramid.isLarge(newPhoto.getWidth(), newPhoto.getHeight())) {
+                    // Build the zoomable tile pyramid in the background.
+                    ImagePyramid.generateInBackground(newPhoto.getFilepath());
+                }
+                syncThumbnailPack(currentAlbum);
+                saveUserData();
+                showInfo("Photo added successfully.");
+                DuplicateCheck.run(currentAlbum, newPhoto, () -> syncThumbnailPack(currentAlbum));
+            });
         }
     }
 
+    @FXML
+    private void handleImportFolder() {
+        Album currentAlbum = SessionManager.getCurrentAlbum();
+        if (currentAlbum == null) {
+            showError("No album selected.");
+            return;
+        }
+        DirectoryChooser directoryChooser = new DirectoryChooser();
+        directoryChooser.setTitle("Select Folder to Import");
+        File folder = directoryChooser.showDialog(null);
+        if (folder == null) {
+            return;
+        }
+        // Run the import as a staged pipeline off the UI thread, with progress and a way out.
+        // Each committed batch shows up in the grid through the album's change events.
+        ImportTask task = new ImportTask(SessionManager.getCurrentUser(), currentAlbum, folder.toPath());
+        ProgressBar progressBar = new ProgressBar();
+        progressBar.setPrefWidth(320);
+        progressBar.progressProperty().bind(task.progressProperty());
+        Label statusLabel = new Label();
+        statusLabel.textProperty().bind(task.messageProperty());
+        Alert progress = new Alert(Alert.AlertType.NONE, null, ButtonType.CANCEL);
+        progress.setTitle("Importing Folder");
+        progress.setHeaderText("Importing " + folder.getName());
+        progress.getDialogPane().setContent(new VBox(10, progressBar, statusLabel));
+        progress.resultProperty().addListener((obs, oldResult, result) -> task.cancel());
+
+        task.setOnSucceeded(e -> {
+            progress.close();
+            syncThumbnailPack(currentAlbum);
+            showInfo("Imported " + task.getValue() + " photo(s).");
+        });
+        task.setOnCancelled(e -> {
+            progress.close();
+            syncThumbnailPack(currentAlbum);
+            showInfo("Import cancelled. Photos imported before cancelling were kept.");
+        });
+        task.setOnFailed(e -> {
+            progress.close();
+            syncThumbnailPack(currentAlbum);
+            showError("Import failed: " + task.getException().getMessage());
+        });
+
+        Thread worker = new Thread(task, "folder-import");
+        worker.setDaemon(true);
+        worker.start();
+        progress.show();
+    }
+
     @FXML
     private void handleDeletePhoto() {
         if (selectedPhoto == null) {
@@ -223,10 +334,9 @@ public class AlbumController {
         }
         Album currentAlbum = SessionManager.getCurrentAlbum();
         if (currentAlbum != null) {
+            // Removing the photo also takes its thumbnail and the selection off the grid.
             currentAlbum.deletePhoto(selectedPhoto);
-            selectedPhoto = null; // reset selection
-            selectedThumbnailContainer = null;
-            refreshPhotoGrid();
+            syncThumbnailPack(currentAlbum);
             saveUserData();
             showInfo("Photo deleted successfully.");
         }
@@ -245,20 +355,19 @@ public class AlbumController {
         if (result.isPresent() && !result.get().trim().isEmpty()) {
             String destAlbumName = result.get().trim();
             User user = SessionManager.getCurrentUser();
-            Album destinationAlbum = null;
-            for (Album album : user.getAlbums()) {
-                if (album.getName().equalsIgnoreCase(destAlbumName) && album != SessionManager.getCurrentAlbum()) {
-                    destinationAlbum = album;
-                    break;
-                }
-            }
-            if (destinationAlbum == null) {
+            Album destinationAlbum = user.findAlbum(destAlbumName);
+            if (destinationAlbum == null || destinationAlbum == SessionManager.getCurrentAlbum()) {
                 showError("Destination album not found.");
                 return;
             }
-            destinationAlbum.addPhoto(selectedPhoto);
-            saveUserData();
-            showInfo("Photo copied to album '" + destAlbumName + "'.");
+            // The destination's photos are read in the background before it takes the photo.
+            Photo photo = selectedPhoto;
+            LibraryService.loadAlbum(destinationAlbum).thenAccept(album -> {
+                album.addPhoto(photo);
+                syncThumbnailPack(album);
+                saveUserData();
+                showInfo("Photo copied to album '" + destAlbumName + "'.");
+            });
         }
     }
 
@@ -275,25 +384,22 @@ public class AlbumController {
         if (result.isPresent() && !result.get().trim().isEmpty()) {
             String destAlbumName = result.get().trim();
             User user = SessionManager.getCurrentUser();
-            Album destinationAlbum = null;
-            for (Album album : user.getAlbums()) {
-                if (album.getName().equalsIgnoreCase(destAlbumName) && album != SessionManager.getCurrentAlbum()) {
-                    destinationAlbum = album;
-                    break;
-                }
-            }
-            if (destinationAlbum == null) {
+            Album destinationAlbum = user.findAlbum(destAlbumName);
+            if (destinationAlbum == null || destinationAlbum == SessionManager.getCurrentAlbum()) {
                 showError("Destination album not found.");
                 return;
             }
             Album currentAlbum = SessionManager.getCurrentAlbum();
-            currentAlbum.deletePhoto(selectedPhoto);
-            destinationAlbum.addPhoto(selectedPhoto);
-            selectedPhoto = null;
-            selectedThumbnailContainer = null;
-            refreshPhotoGrid();
-            saveUserData();
-            showInfo("Photo moved to album '" + destAlbumName + "'.");
+            Photo photo = selectedPhoto; // Cleared as soon as it leaves the grid.
+            // The destination's photos are read in the background before it takes the photo.
+            LibraryService.loadAlbum(destinationAlbum).thenAccept(album -> {
+                currentAlbum.deletePhoto(photo);
+                album.addPhoto(photo);
+                syncThumbnailPack(album);
+                syncThumbnailPack(currentAlbum);
+                saveUserData();
+                showInfo("Photo moved to album '" + destAlbumName + "'.");
+            });
         }
     }
 
@@ -330,33 +436,183 @@ public class AlbumController {
     }
 
     // --- Utility Methods ---
-    private void refreshAlbumList() {
-        if (albumListView != null && currentUser != null) {
-            albumListView.getItems().clear();
-            albumListView.getItems().addAll(currentUser.getAlbums());
+
+    // Follows the user's library changes for as long as the given view is on screen.
+    private void listenWhileShowing(Node view) {
+        User user = currentUser;
+        LibraryEvent.Listener listener = this::libraryChanged;
+        user.addListener(listener);
+        view.sceneProperty().addListener((obs, oldScene, scene) -> {
+            if (scene == null) {
+                user.removeListener(listener);
+            }
+        });
+    }
+
+    // Applies one change to the library to whichever view this controller shows.
+    private void libraryChanged(LibraryEvent event) {
+        if (albumListView != null) {
+            updateAlbumList(event);
+        } else if (photoTilePane != null && event.getAlbum() == SessionManager.getCurrentAlbum()) {
+            updatePhotoGrid(event);
+        }
+    }
+
+    private void updateAlbumList(LibraryEvent event) {
+        ObservableList<Album> items = albumListView.getItems();
+        switch (event.getType()) {
+            case ALBUM_ADDED:
+                items.add(event.getAlbum());
+                break;
+            case ALBUM_REMOVED:
+                items.remove(event.getAlbum());
+                break;
+            case ALBUM_RENAMED:
+                // Setting the album again redraws just its cell with the new name.
+                int index = items.indexOf(event.getAlbum());
+                if (index >= 0) {
+                    items.set(index, event.getAlbum());
+                }
+                break;
+            default:
+                // The list shows only album names.
+        }
+    }
+
+    private void updatePhotoGrid(LibraryEvent event) {
+        Album album = event.getAlbum();
+        switch (event.getType()) {
+            case ALBUM_RENAMED:
+                albumNameLabel.setText(album.getName());
+                break;
+            case PHOTOS_REMOVED:
+                removeThumbnails(event.getPhotos());
+                break;
+            case PHOTOS_ADDED:
+            case PHOTOS_EDITED:
+                // Edited photos may have moved in the sort order.
+                placeThumbnails(album, event.getPhotos());
+                break;
+            case PHOTOS_RELOADED:
+                // The photos may be new instances; start the grid afresh.
+                thumbnails.clear();
+                selectedPhoto = null;
+                selectedThumbnailContainer = null;
+                relayoutPhotoGrid(album);
+                break;
+            case ALBUM_RESORTED:
+                relayoutPhotoGrid(album);
+                break;
+            default:
+        }
+    }
+
+    // Shows the album's current sort order and lays the grid out in it.
+    private void relayoutPhotoGrid(Album album) {
+        if (sortComboBox != null) {
+            sortComboBox.setValue(album.getSortOrder());
+        }
+        refreshPhotoGrid();
+    }
+
+    // Takes the thumbnails of photos that left the album off the grid.
+    private void removeThumbnails(List<Photo> photos) {
+        if (!gridFilled) {
+            return;
+        }
+        for (Photo photo : photos) {
+            StackPane thumbnail = thumbnails.remove(photo);
+            if (thumbnail != null) {
+                photoTilePane.getChildren().remove(thumbnail);
+            }
+            if (photo.equals(selectedPhoto)) {
+                selectedPhoto = null;
+                selectedThumbnailContainer = null;
+            }
+        }
+    }
+
+    // Puts the thumbnails of the given photos at their places in the album's sort order,
+    // creating those not shown yet; every other thumbnail stays as it is.
+    private void placeThumbnails(Album album, List<Photo> photos) {
+        if (!gridFilled) {
+            return;
+        }
+        if (photos.size() > GRID_BATCH_LIMIT) {
+            refreshPhotoGrid();
+            return;
+        }
+        ObservableList<Node> children = photoTilePane.getChildren();
+        List<Photo> sorted = album.getSortedPhotos();
+        for (Photo photo : photos) {
+            StackPane thumbnail = thumbnails.get(photo);
+            if (thumbnail != null) {
+                children.remove(thumbnail);
+            }
+        }
+        // With the others still in order, inserting by increasing final position puts
+        // every photo in the right place.
+        List<Photo> byPosition = new ArrayList<>(photos);
+        byPosition.sort(Comparator.comparingInt(sorted::indexOf));
+        for (Photo photo : byPosition) {
+            int index = sorted.indexOf(photo);
+            if (index >= 0) {
+                StackPane thumbnail = thumbnails.computeIfAbsent(photo, this::createThumbnail);
+                children.add(Math.min(index, children.size()), thumbnail);
+            }
         }
     }
 
-    // Populates the photoTilePane as a grid of thumbnails.
+    // Lays the grid out in the album's sort order in one pass. Thumbnails already on the grid
+    // are reused, so only photos new to it are loaded.
     private void refreshPhotoGrid() {
-        if (photoTilePane != null && SessionManager.getCurrentAlbum() != null) {
-            photoTilePane.getChildren().clear();
-            for (Photo photo : SessionManager.getCurrentAlbum().getPhotos()) {
-                // Use the new createThumbnail method.
-                StackPane thumbnailContainer = createThumbnail(photo);
-                photoTilePane.getChildren().add(thumbnailContainer);
+        Album currentAlbum = SessionManager.getCurrentAlbum();
+        if (photoTilePane != null && currentAlbum != null) {
+            Map<Photo, StackPane> shown = new HashMap<>();
+            List<StackPane> children = new ArrayList<>();
+            for (Photo photo : currentAlbum.getSortedPhotos()) {
+                StackPane thumbnail = thumbnails.get(photo);
+                if (thumbnail == null) {
+                    thumbnail = createThumbnail(photo);
+                }
+                shown.put(photo, thumbnail);
+                children.add(thumbnail);
             }
+            thumbnails = shown;
+            photoTilePane.getChildren().setAll(children);
+            gridFilled = true;
+            syncThumbnailPack(currentAlbum);
         }
     }
 
+    // Brings an album's thumbnail pack up to date with its photos in the background.
+    private void syncThumbnailPack(Album album) {
+        List<String> paths = new ArrayList<>();
+        for (Photo photo : album.getPhotos()) {
+            paths.add(photo.getFilepath());
+        }
+        boolean isCurrentAlbum = album == SessionManager.getCurrentAlbum();
+        if (isCurrentAlbum && thumbnailPack != null && thumbnailPack.isCurrent(paths)) {
+            return;
+        }
+        ThumbnailPack.syncInBackground(album.getId(), paths, pack -> Platform.runLater(() -> {
+            if (isCurrentAlbum && album == SessionManager.getCurrentAlbum()) {
+                thumbnailPack = pack;
+            }
+        }));
+    }
+
     // Helper method to create a thumbnail container (StackPane wrapping an
     // ImageView)
     // that supports selection highlighting.
     private StackPane createThumbnail(Photo photo) {
         double thumbnailWidth = 150;
         double thumbnailHeight = 150;
-        Image image = new Image("file:" + photo.getFilepath(), thumbnailWidth, thumbnailHeight, true, true);
-        ImageView imageView = new ImageView(image);
+        // Prefer the album's packed thumbnail; fall back to decoding the photo itself. Either
+        // way it is decoded in the background and shown when ready.
+        ImageView imageView = new ImageView();
+        ImageService.loadThumbnail(thumbnailPack, photo.getFilepath(), (int) thumbnailWidth)
+                .thenAccept(imageView::setImage);
         imageView.setFitWidth(thumbnailWidth);
         imageView.setFitHeight(thumbnailHeight);
 
@@ -386,7 +642,7 @@ public class AlbumController {
 
     private void saveUserData() {
         if (currentUser != null) {
-            SerializationUtil.save(currentUser, "data/users/" + currentUser.getUsername() + ".dat");
+            PersistenceService.saveUser(currentUser);
         }
     }
 
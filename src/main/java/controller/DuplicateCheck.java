@@ -0,0 +1,103 @@
+/**
+ * The near-duplicate check run after a photo is added to an album by hand.
+ *
+ * <p>
+ * The new photo is hashed in the background. If it then looks like a resized or
+ * re-exported copy of a photo already in the library, the user is asked whether to keep
+ * it, and the add is undone if not. The album and photo views both add photos and share
+ * this check; each passes in what it has to tidy up when the photo is taken back out.
+ * </p>
+ *
+ * @author Adam Student
+ * @author Neer Patel
+ * @version 1.0
+ */
+package controller;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import javafx.application.Platform;
+import javafx.scene.control.Alert;
+import javafx.scene.control.ButtonType;
+import model.Album;
+import model.Photo;
+import model.User;
+import service.LibraryService;
+import service.PersistenceService;
+import util.ContentHasher;
+import util.PerceptualHash;
+
+/**
+ * Offers to undo adding a photo that duplicates one already in the library.
+ */
+final class DuplicateCheck {
+
+    // Both hashes of the photo, handed to the application thread together.
+    private static final class Hashes {
+        final long perceptual;
+        final ContentHasher.Digest content;
+
+        Hashes(long perceptual, ContentHasher.Digest content) {
+            this.perceptual = perceptual;
+            this.content = content;
+        }
+    }
+
+    private DuplicateCheck() {
+    }
+
+    /**
+     * Hashes a newly added photo in the background and offers to undo the add if it
+     * looks like a copy of a photo already in the library. The user is saved afterwards.
+     *
+     * @param album     the album the photo was added to
+     * @param photo     the new photo
+     * @param onRemoved run after the photo was taken back out of the album, or null
+     */
+    static void run(Album album, Photo photo, Runnable onRemoved) {
+        // The application thread takes over only once both hashes are done.
+        CompletableFuture<Hashes> hashing = PerceptualHash.computeAsync(photo.getFilepath())
+                .thenCombine(ContentHasher.digestAsync(photo.getFilepath()), Hashes::new);
+        hashing.whenComplete((hashes, error) -> Platform.runLater(() -> {
+            if (error != null) {
+                System.err.println("Could not hash " + photo.getFilepath() + ": " + error.getMessage());
+                return;
+            }
+            photo.setPerceptualHash(hashes.perceptual);
+            photo.setContentDigest(hashes.content);
+            User user = SessionManager.getCurrentUser();
+            // The albums holding the photo and those holding its look-alikes are read in
+            // the background before they are touched.
+            LibraryService.photoEdited(user, photo)
+                    .thenCompose(edited -> LibraryService.loadAlbums(
+                            user.findAlbumsOfSimilarPhotos(photo, PerceptualHash.NEAR_DUPLICATE_DISTANCE)))
+                    .thenRun(() -> offerUndo(user, album, photo, onRemoved));
+        }));
+    }
+
+    // Asks whether to keep the photo if it looks like one already in the library, then saves.
+    private static void offerUndo(User user, Album album, Photo photo, Runnable onRemoved) {
+        List<Photo> similar = user.findSimilarPhotos(photo, PerceptualHash.NEAR_DUPLICATE_DISTANCE);
+        if (!similar.isEmpty()) {
+            Photo match = similar.get(0);
+            // The index may still name an album that has since gone; leave the name out then.
+            List<Album> holders = user.findAlbumsContaining(match);
+            Alert confirm = new Alert(Alert.AlertType.CONFIRMATION,
+                    "This photo " + (photo.hasSameContent(match) ? "is an exact copy" : "looks like a near-duplicate")
+                            + " of '" + match + "'"
+                            + (holders.isEmpty() ? "" : " in album '" + holders.get(0).getName() + "'")
+                            + ". Keep it anyway?",
+                    ButtonType.YES, ButtonType.NO);
+            confirm.setTitle("Possible Duplicate");
+            confirm.setHeaderText(null);
+            if (confirm.showAndWait().orElse(ButtonType.NO) == ButtonType.NO) {
+                album.deletePhoto(photo);
+                if (onRemoved != null) {
+                    onRemoved.run();
+                }
+            }
+        }
+        PersistenceService.saveUser(user);
+    }
+}
@@ -0,0 +1,152 @@
+/**
+ * Keeps folder-backed albums in sync with their folders on disk.
+ *
+ * <p>
+ * Each album with a source folder gets a {@link FolderWatcher}. Batches of changes are
+ * turned into photos on the watcher thread (reading only image headers), then applied to
+ * the album on the JavaFX application thread in one step and saved once per batch. The
+ * watcher thread waits until the batch has been applied and written to disk before it records the
+ * batch in the folder's manifest, so the album on disk is never behind the manifest.
+ * </p>
+ *
+ * @author Adam Student
+ * @author Neer Patel
+ * @version 1.0
+ */
+package controller;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import javafx.application.Platform;
+import model.Album;
+import model.Photo;
+import model.User;
+import service.LibraryService;
+import service.PersistenceService;
+import util.ContentHasher;
+import util.FileManifest;
+import util.FolderWatcher;
+import util.ImageMetadata;
+import util.ImagePyramid;
+
+class FolderAlbumSync {
+
+    private static final Map<Album, FolderWatcher> WATCHERS = new HashMap<>();
+
+    /**
+     * Starts watching every folder-backed album of a user.
+     *
+     * @param user the logged-in user
+     */
+    static void start(User user) {
+        for (Album album : user.getAlbums()) {
+            if (album.getSourceFolder() != null) {
+                start(user, album);
+            }
+        }
+    }
+
+    /**
+     * Starts watching one album's source folder. The first batch reconciles the album with
+     * the folder, which for a new album imports everything in it.
+     *
+     * @param user  the album's owner
+     * @param album a folder-backed album
+     */
+    static void start(User user, Album album) {
+        stop(album);
+        Path folder = Paths.get(album.getSourceFolder());
+        if (!Files.isDirectory(folder)) {
+            System.err.println("Source folder of album '" + album.getName() + "' is missing: " + folder);
+            return;
+        }
+        FolderWatcher watcher;
+        try {
+            String manifestFile = FileManifest.fileFor(album.getId());
+            Files.createDirectories(Paths.get(manifestFile).getParent());
+            watcher = new FolderWatcher(folder, manifestFile, changes -> apply(user, album, changes));
+        } catch (IOException e) {
+            System.err.println("Cannot watch folder of album '" + album.getName() + "': " + e.getMessage());
+            return;
+        }
+        WATCHERS.put(album, watcher);
+        watcher.start();
+    }
+
+    static void stop(Album album) {
+        FolderWatcher watcher = WATCHERS.remove(album);
+        if (watcher != null) {
+            watcher.close();
+        }
+    }
+
+    static void stopAll() {
+        for (FolderWatcher watcher : WATCHERS.values()) {
+            watcher.close();
+        }
+        WATCHERS.clear();
+    }
+
+    // Runs on the watcher thread; blocks until the batch has been applied and saved.
+    private static void apply(User user, Album album, FolderWatcher.Changes changes) {
+        List<String> paths = new ArrayList<>(changes.getAdded());
+        paths.addAll(changes.getModified());
+        List<ImageMetadata> metadata = ImageMetadata.readAll(paths);
+
+        FutureTask<CompletableFuture<Void>> update = new FutureTask<>(() -> {
+            List<Photo> batch = new ArrayList<>();
+            Map<String, ImageMetadata> modified = new HashMap<>();
+            for (ImageMetadata m : metadata) {
+                if (changes.getModified().contains(m.getFilePath())) {
+                    modified.put(m.getFilePath(), m);
+                } else {
+                    batch.add(new Photo(m.getFilePath(), "", m.getDateTaken(), m.getWidth(), m.getHeight(),
+                            m.getOrientation()));
+                }
+            }
+            album.removePhotosByPath(changes.getRemoved());
+            // Moved photos may have been copied to other albums, which are read first and re-keyed too.
+            return LibraryService.relocatePhotos(user, album, changes.getRenamed()).thenCompose(relocated -> {
+                List<Photo> added = album.addPhotos(batch);
+                for (Photo photo : album.getPhotos()) {
+                    ImageMetadata m = modified.get(photo.getFilepath());
+                    if (m != null) {
+                        photo.setDimensions(m.getWidth(), m.getHeight(), m.getOrientation());
+                    }
+                    // The watcher already digested added and modified files for the manifest.
+                    ContentHasher.Digest digest = changes.getDigests().get(photo.getFilepath());
+                    if (digest != null) {
+                        photo.setContentDigest(digest);
+                    }
+                }
+                CompletableFuture<Void> saved = PersistenceService.saveUser(user);
+                for (Photo photo : added) {
+                    if (ImagePyramid.isLarge(photo.getWidth(), photo.getHeight())) {
+                        ImagePyramid.generateInBackground(photo.getFilepath());
+                    }
+                }
+                return saved;
+            });
+        });
+        Platform.runLater(update);
+        try {
+            // The save is written in the background; wait for it before the manifest moves on.
+            update.get().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while syncing album '" + album.getName() + "'");
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to sync album '" + album.getName() + "'", e.getCause());
+        }
+    }
+}
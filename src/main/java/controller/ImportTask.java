@@ -0,0 +1,325 @@
+/**
+ * A cancellable folder import, run as a pipeline of stages connected by bounded queues.
+ *
+ * <p>
+ * The stages are: scan (walk the folder tree), metadata (read image headers), hash
+ * (perceptual hash and content digest), thumbnail (encode the grid thumbnail) and commit
+ * (add finished photos to the album). Each stage runs on its own threads and hands items to
+ * the next through a small {@link ArrayBlockingQueue}. When a slow stage falls behind, its
+ * input queue fills up and the stages before it block, so memory stays bounded no matter
+ * how large the folder is.
+ * </p>
+ *
+ * <p>
+ * Photos are committed in batches on the JavaFX application thread, and a photo is only
+ * added to the album once every stage has finished with it. Cancelling stops all stages;
+ * batches committed so far stay in the album, complete with hashes and thumbnails, and the
+ * user is saved once the last committed batch has been applied. Progress and throughput are
+ * reported through the usual {@link Task} progress and message properties.
+ * </p>
+ *
+ * @author Adam Student
+ * @author Neer Patel
+ * @version 1.0
+ */
+package controller;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import javafx.application.Platform;
+import javafx.concurrent.Task;
+import model.Album;
+import model.Photo;
+import model.User;
+import service.PersistenceService;
+import util.ContentHasher;
+import util.ImageFiles;
+import util.ImageMetadata;
+import util.ImagePyramid;
+import util.PerceptualHash;
+import util.ThumbnailPack;
+
+class ImportTask extends Task<Integer> {
+
+    private static final int QUEUE_CAPACITY = 64;
+    private static final int COMMIT_BATCH = 100;
+    // Commit a partial batch once the pipeline has been quiet for this long.
+    private static final long COMMIT_IDLE_MILLIS = 250;
+    // How often blocked stages wake up to check for cancellation.
+    private static final long POLL_MILLIS = 100;
+    // Batches handed to the FX thread but not applied yet; keeps the FX queue short.
+    private static final int MAX_PENDING_BATCHES = 2;
+
+    // One photo as it moves through the stages.
+    private static class Item {
+        final String path;
+        ImageMetadata metadata;
+        Long perceptualHash;
+        ContentHasher.Digest digest;
+        byte[] thumbnail;
+
+        Item(String path) {
+            this.path = path;
+        }
+    }
+
+    // Marks the end of a stage's output.
+    private static final Item END = new Item(null);
+
+    private final User user;
+    private final Album album;
+    private final Path folder;
+    private final Set<String> existingPaths = new HashSet<>();
+
+    private final AtomicInteger scanned = new AtomicInteger();
+    private final AtomicInteger committed = new AtomicInteger();
+    private volatile boolean scanFinished;
+    private final Semaphore pendingBatches = new Semaphore(MAX_PENDING_BATCHES);
+
+    /**
+     * Creates an import; must be called on the JavaFX application thread.
+     *
+     * @param user   the owner of the album
+     * @param album  the album to import into
+     * @param folder the folder to import
+     */
+    ImportTask(User user, Album album, Path folder) {
+        this.user = user;
+        this.album = album;
+        this.folder = folder;
+        // Photos already in the album are skipped during the scan, before any work is done on them.
+        for (Photo photo : album.getPhotos()) {
+            existingPaths.add(photo.getFilepath());
+        }
+    }
+
+    @Override
+    protected Integer call() throws Exception {
+        int workers = Math.max(1, Runtime.getRuntime().availableProcessors());
+        BlockingQueue<Item> toMetadata = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        BlockingQueue<Item> toHash = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        BlockingQueue<Item> toThumbnail = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        BlockingQueue<Item> toCommit = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+        ExecutorService stages = Executors.newFixedThreadPool(1 + workers * 3, runnable -> {
+            Thread thread = new Thread(runnable, "import-stage");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long start = System.nanoTime();
+        try {
+            stages.execute(() -> scan(toMetadata));
+            startStage(stages, workers, toMetadata, toHash, item -> {
+                item.metadata = ImageMetadata.read(item.path);
+            });
+            startStage(stages, workers, toHash, toThumbnail, item -> {
+                try {
+                    item.perceptualHash = PerceptualHash.compute(item.path);
+                } catch (IOException e) {
+                    System.err.println("Could not hash " + item.path + ": " + e.getMessage());
+                }
+                item.digest = ContentHasher.digest(Paths.get(item.path));
+            });
+            startStage(stages, workers, toThumbnail, toCommit, item -> {
+                item.thumbnail = ThumbnailPack.encodeThumbnail(item.path);
+            });
+            commit(toCommit, start);
+        } finally {
+            stages.shutdownNow();
+            // Queued behind every batch already handed to the FX thread, so it saves all of them.
+            Platform.runLater(() -> PersistenceService.saveUser(user));
+        }
+        return committed.get();
+    }
+
+    // Walks the folder and feeds image paths to the first stage.
+    private void scan(BlockingQueue<Item> out) {
+        try {
+            Files.walkFileTree(folder, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (isCancelled()) {
+                        return FileVisitResult.TERMINATE;
+                    }
+                    String path = file.toAbsolutePath().toString();
+                    if (attrs.isRegularFile() && ImageFiles.isImage(path) && existingPaths.add(path)) {
+                        if (!put(out, new Item(path))) {
+                            return FileVisitResult.TERMINATE;
+                        }
+                        scanned.incrementAndGet();
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    System.err.println("Skipping " + file + ": " + e.getMessage());
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            System.err.println("Failed to scan " + folder + ": " + e.getMessage());
+        } finally {
+            scanFinished = true;
+            put(out, END);
+        }
+    }
+
+    /**
+     * Starts a stage of several workers. Each worker takes items from its input, applies the
+     * work and passes them on; the last worker to see the end marker forwards it.
+     */
+    private void startStage(ExecutorService stages, int workers, BlockingQueue<Item> in, BlockingQueue<Item> out,
+            Consumer<Item> work) {
+        AtomicInteger running = new AtomicInteger(workers);
+        for (int i = 0; i < workers; i++) {
+            stages.execute(() -> {
+                try {
+                    Item item;
+                    while ((item = take(in)) != null && item != END) {
+                        work.accept(item);
+                        if (!put(out, item)) {
+                            return;
+                        }
+                    }
+                    if (item == END) {
+                        put(in, END); // Let the other workers of this stage see it too.
+                    }
+                } finally {
+                    if (running.decrementAndGet() == 0) {
+                        put(out, END);
+                    }
+                }
+            });
+        }
+    }
+
+    // Collects finished items into batches and applies them to the album on the FX thread.
+    private void commit(BlockingQueue<Item> in, long start) throws InterruptedException {
+        List<Item> batch = new ArrayList<>(COMMIT_BATCH);
+        while (!isCancelled()) {
+            Item item = in.poll(COMMIT_IDLE_MILLIS, TimeUnit.MILLISECONDS);
+            if (item != null && item != END) {
+                batch.add(item);
+            }
+            if (!batch.isEmpty() && (item == null || item == END || batch.size() == COMMIT_BATCH)) {
+                pendingBatches.acquire();
+                if (isCancelled()) {
+                    break;
+                }
+                List<Item> ready = batch;
+                Platform.runLater(() -> apply(ready));
+                committed.addAndGet(ready.size());
+                batch = new ArrayList<>(COMMIT_BATCH);
+            }
+            reportProgress(start);
+            if (item == END) {
+                break;
+            }
+        }
+    }
+
+    // Runs on the FX thread: adds one batch of finished photos to the album.
+    private void apply(List<Item> batch) {
+        try {
+            List<Photo> photos = new ArrayList<>(batch.size());
+            Map<String, byte[]> encoded = new HashMap<>();
+            for (Item item : batch) {
+                ImageMetadata m = item.metadata;
+                Photo photo = new Photo(item.path, "", m.getDateTaken(), m.getWidth(), m.getHeight(),
+                        m.getOrientation());
+                if (item.perceptualHash != null) {
+                    photo.setPerceptualHash(item.perceptualHash);
+                }
+                photo.setContentDigest(item.digest);
+                if (item.thumbnail != null) {
+                    encoded.put(item.path, item.thumbnail);
+                }
+                photos.add(photo);
+            }
+            // Thumbnails travel with the batch, and only for photos the album actually took.
+            Map<String, byte[]> thumbnails = new HashMap<>();
+            for (Photo photo : album.addPhotos(photos)) {
+                byte[] thumbnail = encoded.get(photo.getFilepath());
+                if (thumbnail != null) {
+                    thumbnails.put(photo.getFilepath(), thumbnail);
+                }
+                if (ImagePyramid.isLarge(photo.getWidth(), photo.getHeight())) {
+                    ImagePyramid.generateInBackground(photo.getFilepath());
+                }
+            }
+            // Append the encoded thumbnails to the album's pack while they are still in memory.
+            List<String> paths = new ArrayList<>(album.getPhotos().size());
+            for (Photo photo : album.getPhotos()) {
+                paths.add(photo.getFilepath());
+            }
+            ThumbnailPack.syncInBackground(album.getId(), paths, thumbnails, null);
+        } finally {
+            pendingBatches.release();
+        }
+    }
+
+    private void reportProgress(long start) {
+        int done = committed.get();
+        int found = scanned.get();
+        double seconds = Math.max(1e-3, (System.nanoTime() - start) / 1e9);
+        updateMessage(String.format("Imported %d of %d%s photos (%.1f photos/s)", done, found,
+                scanFinished ? "" : "+", done / seconds));
+        if (scanFinished) {
+            updateProgress(done, Math.max(found, 1));
+        } else {
+            updateProgress(-1, 1); // Total still unknown.
+        }
+    }
+
+    // Puts an item, giving up if the import is cancelled. Returns false if it gave up.
+    private boolean put(BlockingQueue<Item> queue, Item item) {
+        try {
+            while (!queue.offer(item, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (isCancelled()) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    // Takes an item, returning null if the import is cancelled.
+    private Item take(BlockingQueue<Item> queue) {
+        try {
+            Item item;
+            while ((item = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS)) == null) {
+                if (isCancelled()) {
+                    return null;
+                }
+            }
+            return item;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+}
@@ -4,14 +4,14 @@
  * <p>
  * This controller validates user input from the login screen, distinguishes
  * between regular, stock, and admin users, and loads or creates user data accordingly.
- * For the stock user, it also ensures that a stock album is created and populated with
- * images from the designated stock folder. The controller then navigates to the appropriate view
+ * For the stock user, it also ensures that a stock album exists and is kept in sync with
+ * the designated stock folder. The controller then navigates to the appropriate view
  * based on the user type.
  * </p>
  * 
  * <p>
- * Session management is handled via a simple inner SessionManager class that tracks the current
- * user and currently selected album.
+ * Session management is handled via a small SessionManager class that tracks the session of the
+ * desktop UI, with its current user and currently selected album, in the {@link SessionRegistry}.
  * </p>
  * 
  * @author Adam Student
@@ -23,9 +23,6 @@ package controller;
 
 import java.io.File;
 import java.io.IOException;
-import java.time.Instant;
-import java.time.LocalDateTime;
-import java.time.ZoneId;
 
 import app.Photos;
 import javafx.event.ActionEvent;
@@ -33,9 +30,10 @@ import javafx.fxml.FXML;
 import javafx.scene.control.Alert;
 import javafx.scene.control.TextField;
 import model.Album;
-import model.Photo;
 import model.User;
-import util.SerializationUtil;
+import service.PersistenceService;
+import service.Session;
+import service.SessionRegistry;
 
 public class LoginController {
 
@@ -60,81 +58,73 @@ public class LoginController {
             }
         } else if (username.equalsIgnoreCase("stock")) {
             // For stock user, load/create stock user and ensure stock album is set up with
-            // the stock photos
-            try {
-                // Load or create the stock user from disk.
-                User stockUser = (User) SerializationUtil.load("data/users/stock.dat");
-                if (stockUser == null) {
-                    stockUser = new User("stock");
-                }
-
-                // Check if the stock album exists.
-                Album stockAlbum = null;
-                for (Album album : stockUser.getAlbums()) {
-                    if (album.getName().equalsIgnoreCase("stock")) {
-                        stockAlbum = album;
-                        break;
-                    }
+            // the stock photos. The user file is read in the background.
+            PersistenceService.loadUser("stock").thenAccept(this::openStockUser);
+        } else {
+            // For regular users, check if they exist.
+            PersistenceService.loadUser(username).thenAccept(user -> {
+                if (user == null) {
+                    showError("User doesn't exist. Please try again or contact admin.");
+                    return;
                 }
 
-                // If the stock album is missing, create it and load stock images.
-                if (stockAlbum == null) {
-                    stockAlbum = new Album("stock");
-                    stockUser.addAlbum(stockAlbum);
-
-                    // Set up the stock folder. All stock images should reside in this folder.
-                    File stockFolder = new File("data/stock");
-                    if (stockFolder.exists() && stockFolder.isDirectory()) {
-                        // List common image formats.
-                        File[] imageFiles = stockFolder
-                                .listFiles((dir, name) -> name.toLowerCase().matches(".*\\.(png|jpg|jpeg|gif|bmp)$"));
-                        if (imageFiles != null) {
-                            for (File imageFile : imageFiles) {
-                                // Use the file's last modified time as the photo's date.
-                                LocalDateTime dateTaken = LocalDateTime.ofInstant(
-                                        Instant.ofEpochMilli(imageFile.lastModified()),
-                                        ZoneId.systemDefault());
-                                // Create a new Photo with the file path, empty caption, and date taken.
-                                Photo photo = new Photo(imageFile.getAbsolutePath(), "", dateTaken);
-                                stockAlbum.addPhoto(photo);
-                            }
-                        }
-                    }
+                try {
+                    // Set the current user in session management.
+                    SessionManager.setCurrentUser(user);
+                    FolderAlbumSync.start(SessionManager.getCurrentUser());
+                    Photos.setRoot("primary");
+                } catch (IOException e) {
+                    showError("Failed to load the primary view.");
+                    e.printStackTrace();
                 }
+            });
+        }
 
-                // Save the stock user data with updated album and photo information.
-                SerializationUtil.save(stockUser, "data/users/stock.dat");
+        File dataDir = new File("data/users");
+        if (!dataDir.exists()) {
+            dataDir.mkdirs();
+        }
+    }
 
-                // Set the current user (in session management) and navigate to the primary
-                // view.
-                SessionManager.setCurrentUser(stockUser);
-                Photos.setRoot("primary");
-            } catch (IOException e) {
-                showError("Failed to load the stock user view.");
-                e.printStackTrace();
+    // Runs once the stock user has been read; creates it on the first login.
+    private void openStockUser(User stockUser) {
+        try {
+            // Another session may already be working on the stock user; carry on with its copy.
+            User shared = SessionRegistry.openUser("stock");
+            if (shared != null) {
+                stockUser = shared;
+            } else if (stockUser == null) {
+                stockUser = new User("stock");
             }
-        } else {
-            // For regular users, check if they exist.
-            User user = (User) SerializationUtil.load("data/users/" + username + ".dat");
 
-            if (user == null) {
-                showError("User doesn't exist. Please try again or contact admin.");
-                return;
+            // Check if the stock album exists.
+            Album stockAlbum = stockUser.findAlbum("stock");
+
+            // If the stock album is missing, create it.
+            if (stockAlbum == null) {
+                stockAlbum = new Album("stock");
+                stockUser.addAlbum(stockAlbum);
             }
 
-            try {
-                // Set the current user in session management.
-                SessionManager.setCurrentUser(user);
-                Photos.setRoot("primary");
-            } catch (IOException e) {
-                showError("Failed to load the primary view.");
-                e.printStackTrace();
+            // The stock album mirrors the stock folder. Its manifest records what was seen
+            // on the last login, so only files added, removed or renamed since then are
+            // applied; the first login imports the whole folder.
+            File stockFolder = new File("data/stock");
+            if (stockFolder.isDirectory()) {
+                stockAlbum.setSourceFolder(stockFolder.getAbsolutePath());
             }
-        }
 
-        File dataDir = new File("data/users");
-        if (!dataDir.exists()) {
-            dataDir.mkdirs();
+            // Save the stock user data with updated album and photo information.
+            PersistenceService.saveUser(stockUser);
+
+            // Set the current user (in session management) and navigate to the primary
+            // view.
+            SessionManager.setCurrentUser(stockUser);
+            FolderAlbumSync.start(SessionManager.getCurrentUser());
+            Photos.setRoot("primary");
+        } catch (IOException e) {
+            showError("Failed to load the stock user view.");
+            e.printStackTrace();
         }
     }
 
@@ -147,24 +137,36 @@ public class LoginController {
     }
 }
 
-// A simple session management class to track the current user
+// Tracks the session of the desktop UI. The state itself lives in a Session from the
+// SessionRegistry, so other sessions (other windows, the server) can run alongside it.
 class SessionManager {
-    private static User currentUser;
-    private static Album currentAlbum;
+    private static volatile Session current;
 
+    public static Session getSession() {
+        return current;
+    }
+
+    // Opens a session for the user, closing the previous one; null just logs out.
     public static void setCurrentUser(User user) {
-        currentUser = user;
+        Session previous = current;
+        current = user == null ? null : SessionRegistry.open(user);
+        SessionRegistry.close(previous);
     }
 
     public static User getCurrentUser() {
-        return currentUser;
+        Session session = current;
+        return session == null ? null : session.getUser();
     }
 
     public static void setCurrentAlbum(Album album) {
-        currentAlbum = album;
+        Session session = current;
+        if (session != null) {
+            session.setCurrentAlbum(album);
+        }
     }
 
     public static Album getCurrentAlbum() {
-        return currentAlbum;
+        Session session = current;
+        return session == null ? null : session.getCurrentAlbum();
     }
 }
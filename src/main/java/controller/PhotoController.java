@@ -5,9 +5,9 @@
  * <p>
  * This controller is responsible for loading photo images, managing photo 
  * metadata (such as captions and tags), and displaying the photo's capture date.
- * The capture date is determined by checking the file’s last modified timestamp;
- * if the photo has been edited, it can optionally display a separate “last edited”
- * time. Additionally, the controller manages navigation operations (e.g., moving
+ * The capture date is read once from the image header (EXIF DateTimeOriginal, or the
+ * file's last modified time) when the photo is imported; if the photo has been edited,
+ * it can optionally display a separate “last edited” time. Additionally, the controller manages navigation operations (e.g., moving
  * between photos, deleting or copying photos) and persists changes by saving
  * updates via serialization.
  * </p>
@@ -20,17 +20,14 @@
 package controller;
 
 import java.io.File;
-import java.io.IOException;
 import java.net.URL;
-import java.nio.file.Files;
-import java.nio.file.attribute.BasicFileAttributes;
 import java.time.LocalDateTime;
-import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.HashSet;
 import java.util.Optional;
 import java.util.ResourceBundle;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 import javafx.event.ActionEvent;
 import javafx.fxml.FXML;
@@ -39,23 +36,35 @@ import javafx.scene.control.Alert;
 import javafx.scene.control.ComboBox;
 import javafx.scene.control.Label;
 import javafx.scene.control.ListView;
+import javafx.scene.control.ScrollPane;
 import javafx.scene.control.TextField;
 import javafx.scene.control.TextInputDialog;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
+import javafx.scene.input.ScrollEvent;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 import model.Album;
 import model.Photo;
 import model.Tag;
 import model.User;
-import util.SerializationUtil;
+import service.ImageService;
+import service.LibraryService;
+import service.PersistenceService;
+import util.ImageFiles;
+import util.ImageMetadata;
+import util.ImagePyramid;
+import util.ImageUtil;
+import view.TiledImageView;
 
 public class PhotoController {
 
     @FXML
     private ImageView photoImageView;
 
+    @FXML
+    private ScrollPane imageScrollPane; // Viewport around the image; used for zoom and pan
+
     @FXML
     private TextField photoCaptionField; // Editable caption field
 
@@ -81,6 +90,20 @@ public class PhotoController {
     private Photo selectedPhoto;
     private User currentUser;
 
+    // Display-sized decoding state for the selected photo. The image is decoded at
+    // roughly the size it is drawn at and re-decoded at a higher resolution only
+    // when the window grows or the user zooms in.
+    private static final double MIN_ZOOM = 1.0;
+    private static final double MAX_ZOOM = 8.0;
+    private double zoom = MIN_ZOOM;
+    private int decodedWidth;
+    private int decodedHeight;
+    private Image pendingImage; // Higher resolution decode still loading in the background
+    private boolean viewportListenersInstalled;
+    private Node imageViewContent; // Original scroll pane content wrapping photoImageView
+    private TiledImageView tiledView; // Used instead of photoImageView for very large photos
+    private double tiledFitScale;
+
     // A static set of known tag types to persist for the session.
     private static final Set<String> knownTagTypes = new HashSet<>();
 
@@ -127,20 +150,38 @@ public class PhotoController {
         FileChooser fileChooser = new FileChooser();
         fileChooser.setTitle("Select Photo");
         fileChooser.getExtensionFilters().addAll(
-                new FileChooser.ExtensionFilter("Image Files", "*.png", "*.jpg", "*.jpeg", "*.gif", "*.bmp"));
+                new FileChooser.ExtensionFilter("Image Files", ImageFiles.EXTENSION_PATTERNS));
 
         File selectedFile = fileChooser.showOpenDialog(null);
         if (selectedFile != null) {
-            // Create a new photo with the file's last modified date as the date taken
-            LocalDateTime dateTaken = LocalDateTime.now(); // You can improve this by actually reading the file
-                                                           // attribute if desired.
-            Photo newPhoto = new Photo(selectedFile.getAbsolutePath(), "", dateTaken);
-
-            // Add the photo to the current album
-            currentAlbum.addPhoto(newPhoto);
-
-            showInfo("Photo added successfully.");
-            setSelectedPhoto(newPhoto);
+            if (currentAlbum.containsPath(selectedFile.getAbsolutePath())) {
+                showError("The selected photo already exists in this album.");
+                return;
+            }
+            // Read the capture date, dimensions and orientation from the file header.
+            Album album = currentAlbum;
+            LibraryService.readPhoto(selectedFile.getAbsolutePath()).thenAccept(newPhoto -> {
+                if (album.containsPath(newPhoto.getFilepath())) {
+                    return; // Added some other way while the header was being read.
+                }
+                if (ImagePyramid.isLarge(newPhoto.getWidth(), newPhoto.getHeight())) {
+                    ImagePyramid.generateInBackground(newPhoto.getFilepath());
+                }
+
+                // Add the photo to the current album
+                album.addPhoto(newPhoto);
+
+                showInfo("Photo added successfully.");
+                setSelectedPhoto(newPhoto);
+                DuplicateCheck.run(album, newPhoto, () -> {
+                    if (selectedPhoto == newPhoto) {
+                        photoImageView.setImage(null);
+                        photoCaptionField.clear();
+                        tagListView.getItems().clear();
+                        photoDateLabel.setText("");
+                    }
+                });
+            });
         }
     }
 
@@ -169,6 +210,7 @@ public class PhotoController {
         }
         String newCaption = photoCaptionField.getText().trim();
         selectedPhoto.setCaption(newCaption);
+        photoEdited();
         showInfo("Caption updated successfully.");
     }
 
@@ -204,15 +246,14 @@ public class PhotoController {
         knownTagTypes.add(tagType);
         refreshTagTypeComboBox();
 
-        Tag newTag = new Tag(tagType, tagValue);
+        Tag newTag = currentUser.getTagDictionary().intern(tagType, tagValue);
         selectedPhoto.addTag(newTag);
+        // Save the updated user object once every album holding the photo took the change.
+        photoEdited().thenRun(() -> PersistenceService.saveUser(currentUser));
 
         refreshTagList();
         tagValueField.clear();
         showInfo("Tag added: " + tagType + "=" + tagValue);
-
-        // Save the updated user object so that tag changes are persisted.
-        SerializationUtil.save(currentUser, "data/users/" + currentUser.getUsername() + ".dat");
     }
 
     @FXML
@@ -229,13 +270,14 @@ public class PhotoController {
         // Expected format: "name=value"
         String[] parts = selectedTag.split("=");
         if (parts.length == 2) {
-            Tag tagToRemove = new Tag(parts[0].trim(), parts[1].trim());
-            selectedPhoto.removeTag(tagToRemove);
+            Tag tagToRemove = currentUser.getTagDictionary().find(parts[0].trim(), parts[1].trim());
+            if (tagToRemove != null) {
+                selectedPhoto.removeTag(tagToRemove);
+                // Save the updated user object once every album holding the photo took the removal.
+                photoEdited().thenRun(() -> PersistenceService.saveUser(currentUser));
+            }
             refreshTagList();
             showInfo("Tag removed: " + selectedTag);
-
-            // Save the updated user object so that removal is persisted.
-            SerializationUtil.save(currentUser, "data/users/" + currentUser.getUsername() + ".dat");
         }
     }
 
@@ -253,7 +295,7 @@ public class PhotoController {
                 knownTagTypes.add(newTagType);
                 refreshTagTypeComboBox();
                 showInfo("New tag type added: " + newTagType);
-                SerializationUtil.save(currentUser, "data/users/" + currentUser.getUsername() + ".dat");
+                PersistenceService.saveUser(currentUser);
             }
         }
     }
@@ -276,19 +318,17 @@ public class PhotoController {
             showError("Please select a destination album.");
             return;
         }
-        Album destinationAlbum = null;
-        for (Album album : currentUser.getAlbums()) {
-            if (album.getName().equals(selectedAlbumName)) {
-                destinationAlbum = album;
-                break;
-            }
-        }
+        Album destinationAlbum = currentUser.findAlbum(selectedAlbumName);
         if (destinationAlbum == null) {
             showError("Destination album not found.");
             return;
         }
-        destinationAlbum.addPhoto(selectedPhoto);
-        showInfo("Photo copied to album '" + selectedAlbumName + "' successfully.");
+        // The destination's photos are read in the background before it takes the photo.
+        Photo photo = selectedPhoto;
+        LibraryService.loadAlbum(destinationAlbum).thenAccept(album -> {
+            album.addPhoto(photo);
+            showInfo("Photo copied to album '" + selectedAlbumName + "' successfully.");
+        });
     }
 
     @FXML
@@ -302,70 +342,80 @@ public class PhotoController {
             showError("Please select a destination album.");
             return;
         }
-        Album destinationAlbum = null;
-        for (Album album : currentUser.getAlbums()) {
-            if (album.getName().equals(selectedAlbumName)) {
-                destinationAlbum = album;
-                break;
-            }
-        }
+        Album destinationAlbum = currentUser.findAlbum(selectedAlbumName);
         if (destinationAlbum == null) {
             showError("Destination album not found.");
             return;
         }
-        currentAlbum.deletePhoto(selectedPhoto);
-        destinationAlbum.addPhoto(selectedPhoto);
-
-        // Clear display as photo is moved out.
-        photoImageView.setImage(null);
-        photoCaptionField.clear();
-        tagListView.getItems().clear();
-        photoDateLabel.setText("");
+        // The destination's photos are read in the background before it takes the photo.
+        Photo photo = selectedPhoto;
+        Album source = currentAlbum;
+        LibraryService.loadAlbum(destinationAlbum).thenAccept(album -> {
+            source.deletePhoto(photo);
+            album.addPhoto(photo);
+
+            // Clear display as photo is moved out.
+            if (selectedPhoto == photo) {
+                photoImageView.setImage(null);
+                photoCaptionField.clear();
+                tagListView.getItems().clear();
+                photoDateLabel.setText("");
+            }
 
-        showInfo("Photo moved to album '" + selectedAlbumName + "' successfully.");
+            showInfo("Photo moved to album '" + selectedAlbumName + "' successfully.");
+        });
     }
 
     @FXML
     private void handleNextPhoto() {
-        if (currentAlbum == null || currentAlbum.getPhotos().isEmpty()) {
+        if (currentAlbum == null || currentAlbum.getPhotoCount() == 0) {
             return;
         }
-        int currentIndex = currentAlbum.getPhotos().indexOf(selectedPhoto);
-        int nextIndex = (currentIndex + 1) % currentAlbum.getPhotos().size();
-        setSelectedPhoto(currentAlbum.getPhotos().get(nextIndex));
+        // Steps through the album in its chosen sort order without searching for the current photo.
+        setSelectedPhoto(currentAlbum.cursor(selectedPhoto).next());
     }
 
     @FXML
     private void handlePreviousPhoto() {
-        if (currentAlbum == null || currentAlbum.getPhotos().isEmpty()) {
+        if (currentAlbum == null || currentAlbum.getPhotoCount() == 0) {
             return;
         }
-        int currentIndex = currentAlbum.getPhotos().indexOf(selectedPhoto);
-        int previousIndex = (currentIndex - 1 + currentAlbum.getPhotos().size()) % currentAlbum.getPhotos().size();
-        setSelectedPhoto(currentAlbum.getPhotos().get(previousIndex));
+        setSelectedPhoto(currentAlbum.cursor(selectedPhoto).previous());
+    }
+
+    // Keeps every album holding the selected photo sorted and saved after its caption or tags
+    // change. Albums not in memory are read in the background first.
+    private CompletableFuture<Void> photoEdited() {
+        return LibraryService.photoEdited(currentUser, selectedPhoto);
     }
 
     public void setSelectedPhoto(Photo photo) {
         this.selectedPhoto = photo;
         if (photo != null) {
-            try {
-                Image image = new Image("file:" + photo.getFilepath());
-                photoImageView.setImage(image);
-            } catch (Exception e) {
-                photoImageView.setImage(null);
-                showError("Failed to load the image.");
+            installViewportListeners();
+            zoom = MIN_ZOOM;
+            if (!photo.hasDimensions()) {
+                // Photos saved before dimensions were recorded: read the header once, in the
+                // background, and switch to tiles if it turns out to be a large photo.
+                ImageService.readMetadata(photo.getFilepath()).thenAccept(metadata -> {
+                    photo.setDimensions(metadata.getWidth(), metadata.getHeight(), metadata.getOrientation());
+                    if (selectedPhoto == photo && photo.hasDimensions()) {
+                        showTiledViewIfAvailable(photo);
+                        updateDisplayImage();
+                    }
+                });
             }
+            decodedWidth = 0;
+            decodedHeight = 0;
+            pendingImage = null;
+            photoImageView.setImage(null);
+            showTiledViewIfAvailable(photo);
+            updateDisplayImage();
             photoCaptionField.setText(photo.getCaption());
 
             // Determine which date to display: if the photo was edited, use lastEdited;
-            // otherwise, use the file's last modified date.
-            LocalDateTime displayDate;
-            if (photo.getLastEdited() != null) {
-                displayDate = photo.getLastEdited();
-            } else {
-                File file = new File(photo.getFilepath());
-                displayDate = getLastModifiedDate(file, photo.getDateTaken());
-            }
+            // otherwise, use the capture date recorded at import.
+            LocalDateTime displayDate = photo.getLastEdited() != null ? photo.getLastEdited() : photo.getDateTaken();
 
             // Format the date to be cleaner
             DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
@@ -376,26 +426,131 @@ public class PhotoController {
         }
     }
 
-    private void refreshTagList() {
-        tagListView.getItems().clear();
-        if (selectedPhoto != null) {
-            for (Tag tag : selectedPhoto.getTags()) {
-                tagListView.getItems().add(tag.getName() + "=" + tag.getValue());
+    /**
+     * Hooks the viewport size, window render scale and Ctrl+scroll zoom up to
+     * {@link #updateDisplayImage()}. Done lazily because the viewer is populated
+     * through setSelectedPhoto rather than an initialize callback.
+     */
+    private void installViewportListeners() {
+        if (viewportListenersInstalled || imageScrollPane == null) {
+            return;
+        }
+        viewportListenersInstalled = true;
+        imageViewContent = imageScrollPane.getContent();
+        imageScrollPane.viewportBoundsProperty().addListener((obs, oldBounds, newBounds) -> updateDisplayImage());
+        imageScrollPane.addEventFilter(ScrollEvent.SCROLL, event -> {
+            if (!event.isControlDown() || event.getDeltaY() == 0) {
+                return;
             }
+            double factor = event.getDeltaY() > 0 ? 1.25 : 0.8;
+            // Tiled photos may be zoomed in until one source pixel covers two screen pixels.
+            double maxZoom = tiledView != null ? Math.max(MAX_ZOOM, 2.0 / tiledFitScale) : MAX_ZOOM;
+            zoom = Math.max(MIN_ZOOM, Math.min(maxZoom, zoom * factor));
+            updateDisplayImage();
+            event.consume();
+        });
+    }
+
+    /**
+     * Sizes the image view to the viewport and current zoom, and decodes the selected
+     * photo at a higher resolution if the view now needs more pixels than the current
+     * decode provides. The previous image stays on screen until the sharper one has
+     * finished loading, so zooming and resizing refine the picture progressively.
+     */
+    private void updateDisplayImage() {
+        if (selectedPhoto == null) {
+            return;
+        }
+        double viewWidth = 600;
+        double viewHeight = 400;
+        if (imageScrollPane != null && imageScrollPane.getViewportBounds().getWidth() > 0) {
+            viewWidth = imageScrollPane.getViewportBounds().getWidth();
+            viewHeight = imageScrollPane.getViewportBounds().getHeight();
+        }
+        if (tiledView != null) {
+            tiledFitScale = Math.min(viewWidth / tiledView.getDisplayWidth(), viewHeight / tiledView.getDisplayHeight());
+            tiledView.setScale(tiledFitScale * zoom);
+            return;
+        }
+        // The view shows the pixels as stored, turned upright; a quarter turn swaps the box
+        // the stored image has to fit.
+        int orientation = selectedPhoto.getOrientation();
+        boolean swap = ImageMetadata.swapsAxes(orientation);
+        ImageUtil.orient(photoImageView, orientation);
+        double fitWidth = (swap ? viewHeight : viewWidth) * zoom;
+        double fitHeight = (swap ? viewWidth : viewHeight) * zoom;
+        photoImageView.setFitWidth(fitWidth);
+        photoImageView.setFitHeight(fitHeight);
+
+        // Convert layout units to device pixels on HiDPI screens.
+        double renderScale = 1.0;
+        if (photoImageView.getScene() != null && photoImageView.getScene().getWindow() != null) {
+            renderScale = photoImageView.getScene().getWindow().getOutputScaleX();
         }
+        int requestWidth = ImageUtil.decodeSize(fitWidth * renderScale, selectedPhoto.getWidth());
+        int requestHeight = ImageUtil.decodeSize(fitHeight * renderScale, selectedPhoto.getHeight());
+        if (requestWidth <= decodedWidth && requestHeight <= decodedHeight) {
+            return; // The current decode already has enough pixels.
+        }
+        decodedWidth = requestWidth;
+        decodedHeight = requestHeight;
+
+        Photo photo = selectedPhoto;
+        Image image = ImageUtil.loadScaled(photo.getFilepath(), requestWidth, requestHeight);
+        if (photoImageView.getImage() == null) {
+            // Nothing shown yet: display the image as soon as it starts loading.
+            photoImageView.setImage(image);
+            image.errorProperty().addListener((obs, wasError, isError) -> {
+                if (isError && selectedPhoto == photo) {
+                    photoImageView.setImage(null);
+                    showError("Failed to load the image.");
+                }
+            });
+            return;
+        }
+        // Keep the lower resolution image visible until the new decode completes.
+        pendingImage = image;
+        image.progressProperty().addListener((obs, oldProgress, progress) -> {
+            if (progress.doubleValue() >= 1.0 && !image.isError() && pendingImage == image
+                    && selectedPhoto == photo) {
+                photoImageView.setImage(image);
+                pendingImage = null;
+            }
+        });
     }
 
     /**
-     * Reads the last modified date from the file. If it fails, falls back to the
-     * provided fallback date.
+     * Switches the viewer to tiles for photos large enough to have a pyramid. The photo is
+     * shown through a display-sized decode while the pyramid is opened in the background,
+     * and stays that way if the pyramid has not been generated yet (e.g. for photos
+     * imported earlier); it is then generated for the next time the photo is opened.
      */
-    private LocalDateTime getLastModifiedDate(File file, LocalDateTime fallback) {
-        try {
-            BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
-            long millis = attrs.lastModifiedTime().toMillis();
-            return LocalDateTime.ofInstant(java.time.Instant.ofEpochMilli(millis), ZoneId.systemDefault());
-        } catch (IOException e) {
-            return fallback;
+    private void showTiledViewIfAvailable(Photo photo) {
+        if (tiledView != null) {
+            tiledView.dispose();
+            tiledView = null;
+        }
+        if (imageScrollPane == null) {
+            return;
+        }
+        imageScrollPane.setContent(imageViewContent);
+        if (ImagePyramid.isLarge(photo.getWidth(), photo.getHeight())) {
+            ImageService.openPyramid(photo.getFilepath()).thenAccept(pyramid -> {
+                // Another photo may have been selected while the pyramid was being opened.
+                if (pyramid != null && selectedPhoto == photo && tiledView == null) {
+                    tiledView = new TiledImageView(pyramid, photo.getOrientation(), imageScrollPane);
+                    imageScrollPane.setContent(tiledView);
+                }
+            });
+        }
+    }
+
+    private void refreshTagList() {
+        tagListView.getItems().clear();
+        if (selectedPhoto != null) {
+            for (Tag tag : selectedPhoto.getTags()) {
+                tagListView.getItems().add(tag.getName() + "=" + tag.getValue());
+            }
         }
     }
 
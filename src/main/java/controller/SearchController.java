@@ -8,6 +8,16 @@
  * </p>
  *
  * <p>
+ * The first search {@link SearchService} runs indexes the photos in scope in the background
+ * as one columnar {@link PhotoStore} per album, mapped from the files saved with the albums,
+ * and both kinds of search run there as scans over its columns rather than walking every
+ * photo object. Opening the view reads nothing. Choosing an album drops the index, and the
+ * next search indexes that album alone. Results are rows
+ * read from the stores; the photos themselves are looked up only to create an album from
+ * them.
+ * </p>
+ *
+ * <p>
  * The controller interacts with the current user's albums and photos, and updates the UI with the
  * search results. It also handles navigation back to the main view.
  * </p>
@@ -24,6 +34,8 @@ import java.time.LocalDateTime;
 import java.time.LocalTime;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
 
 import app.Photos;
 import javafx.fxml.FXML;
@@ -35,11 +47,18 @@ import javafx.scene.control.ListView;
 import javafx.scene.control.TextField;
 import model.Album;
 import model.Photo;
+import model.PhotoStore;
 import model.Tag;
 import model.User;
+import service.ImageService;
+import service.LibraryService;
+import service.SearchService;
 
 public class SearchController {
 
+    // Set this system property to true to build the search store in off-heap memory.
+    static final String OFF_HEAP_PROPERTY = "photos.offHeapStore";
+
     @FXML
     private DatePicker startDatePicker;
 
@@ -50,16 +69,22 @@ public class SearchController {
     private TextField tagQueryField; // e.g., "person=alice" or "person=alice AND location=paris"
 
     @FXML
-    private ListView<Photo> searchResultsListView;
+    private ListView<PhotoStore.Row> searchResultsListView;
 
     @FXML
     private ComboBox<String> albumComboBox;
 
     // Maintains search results
-    private List<Photo> searchResults = new ArrayList<>();
+    private List<PhotoStore.Row> searchResults = new ArrayList<>();
 
     private User currentUser;
 
+    // Columnar copy of the photos in scope, or null until the first search builds it.
+    private SearchService.Index index;
+
+    // The album the index covers, or null for the whole library.
+    private Album scope;
+
     @FXML
     private void initialize() {
         System.out.println("SearchController initialized!");
@@ -68,26 +93,30 @@ public class SearchController {
         for (Album album : currentUser.getAlbums()) {
             albumComboBox.getItems().add(album.getName());
         }
+        albumComboBox.valueProperty().addListener((obs, oldName, newName) -> {
+            scope = newName == null ? null : currentUser.findAlbum(newName);
+            index = null;
+        });
         // Set a custom cell factory (if desired) for displaying image thumbnails, etc.
-        searchResultsListView.setCellFactory(listView -> new javafx.scene.control.ListCell<Photo>() {
+        searchResultsListView.setCellFactory(listView -> new javafx.scene.control.ListCell<PhotoStore.Row>() {
             private javafx.scene.image.ImageView imageView = new javafx.scene.image.ImageView();
 
             @Override
-            protected void updateItem(Photo photo, boolean empty) {
+            protected void updateItem(PhotoStore.Row photo, boolean empty) {
                 super.updateItem(photo, empty);
                 if (empty || photo == null) {
                     setText(null);
                     setGraphic(null);
                 } else {
                     setText(photo.getCaption());
-                    try {
-                        javafx.scene.image.Image thumbnail = new javafx.scene.image.Image("file:" + photo.getFilepath(),
-                                60, 60, true, true);
-                        imageView.setImage(thumbnail);
-                        setGraphic(imageView);
-                    } catch (Exception e) {
-                        setGraphic(null);
-                    }
+                    // Decoded in the background; a recycled cell ignores thumbnails of its old photo.
+                    imageView.setImage(null);
+                    setGraphic(imageView);
+                    ImageService.loadThumbnail(null, photo.getFilepath(), 60).thenAccept(thumbnail -> {
+                        if (getItem() == photo) {
+                            imageView.setImage(thumbnail);
+                        }
+                    });
                 }
             }
         });
@@ -104,29 +133,7 @@ public class SearchController {
         LocalDateTime startDateTime = startDate.atStartOfDay();
         LocalDateTime endDateTime = endDate.atTime(LocalTime.MAX);
 
-        searchResults.clear();
-        List<Photo> photosToSearch = new ArrayList<>();
-        if (albumComboBox.getValue() != null) {
-            // Search in a specific album:
-            for (Album album : currentUser.getAlbums()) {
-                if (album.getName().equals(albumComboBox.getValue())) {
-                    photosToSearch.addAll(album.getPhotos());
-                    break;
-                }
-            }
-        } else {
-            // Search across all albums
-            for (Album album : currentUser.getAlbums()) {
-                photosToSearch.addAll(album.getPhotos());
-            }
-        }
-        for (Photo photo : photosToSearch) {
-            LocalDateTime photoDate = photo.getDateTaken();
-            if (!photoDate.isBefore(startDateTime) && !photoDate.isAfter(endDateTime)) {
-                searchResults.add(photo);
-            }
-        }
-        updateSearchResultsView();
+        search(built -> built.takenBetween(startDateTime, endDateTime));
     }
 
     @FXML
@@ -136,7 +143,6 @@ public class SearchController {
             showError("Please enter a tag query.");
             return;
         }
-        searchResults.clear();
 
         String operator = null;
         String[] parts = null;
@@ -159,41 +165,47 @@ public class SearchController {
             }
             String key = kv[0].trim();
             String value = kv[1].trim();
-            tagConditions.add(new Tag(key, value));
+            // Photos hold canonical tags, so matching against the canonical instance is an identity check.
+            Tag canonical = currentUser.getTagDictionary().find(key, value);
+            tagConditions.add(canonical != null ? canonical : new Tag(key, value));
         }
 
-        List<Photo> photosToSearch = new ArrayList<>();
-        if (albumComboBox.getValue() != null) {
-            for (Album album : currentUser.getAlbums()) {
-                if (album.getName().equals(albumComboBox.getValue())) {
-                    photosToSearch.addAll(album.getPhotos());
-                    break;
-                }
-            }
+        if ("AND".equals(operator)) {
+            search(built -> built.taggedWithAll(tagConditions));
         } else {
-            for (Album album : currentUser.getAlbums()) {
-                photosToSearch.addAll(album.getPhotos());
-            }
+            search(built -> built.taggedWithAny(tagConditions));
         }
+    }
 
-        for (Photo photo : photosToSearch) {
-            boolean matches = false;
-            if (operator == null) {
-                matches = photo.getTags().contains(tagConditions.get(0));
-            } else if (operator.equals("AND")) {
-                matches = photo.getTags().containsAll(tagConditions);
-            } else if (operator.equals("OR")) {
-                for (Tag condition : tagConditions) {
-                    if (photo.getTags().contains(condition)) {
-                        matches = true;
-                        break;
-                    }
-                }
-            }
-            if (matches) {
-                searchResults.add(photo);
-            }
+    // Runs a query on the index of the chosen album, or of the whole library if none is
+    // chosen, indexing it first if needed. Results for a scope no longer chosen are dropped.
+    private void search(Function<SearchService.Index, CompletableFuture<List<PhotoStore.Row>>> query) {
+        Album album = scope;
+        CompletableFuture<SearchService.Index> ready;
+        if (index != null) {
+            ready = CompletableFuture.completedFuture(index);
+        } else {
+            // Opt-in for very large libraries: keep copied search columns outside the Java heap.
+            boolean offHeap = Boolean.getBoolean(OFF_HEAP_PROPERTY);
+            ready = (album == null ? SearchService.index(currentUser, offHeap)
+                    : SearchService.index(currentUser, album, offHeap)).thenApply(built -> {
+                        if (scope == album) {
+                            index = built;
+                        }
+                        return built;
+                    });
         }
+        ready.thenCompose(query).thenAccept(matches -> {
+            if (scope == album) {
+                showResults(matches);
+            }
+        });
+    }
+
+    // The index covers only the chosen album, so every match is in scope.
+    private void showResults(List<PhotoStore.Row> matches) {
+        searchResults.clear();
+        searchResults.addAll(matches);
         updateSearchResultsView();
     }
 
@@ -214,12 +226,26 @@ public class SearchController {
             return;
         }
         String newAlbumName = "Search Results Album";
-        Album newAlbum = new Album(newAlbumName);
-        for (Photo photo : searchResults) {
-            newAlbum.addPhoto(photo);
+        if (currentUser.hasAlbumNamed(newAlbumName)) {
+            showError("An album named '" + newAlbumName + "' already exists.");
+            return;
+        }
+        List<Long> ids = new ArrayList<>(searchResults.size());
+        for (PhotoStore.Row row : searchResults) {
+            ids.add(row.getId());
         }
-        currentUser.addAlbum(newAlbum);
-        showInfo("New album '" + newAlbumName + "' created with " + searchResults.size() + " photos.");
+        // The new album shares the photos themselves, read from one album holding each.
+        LibraryService.findPhotos(currentUser, ids).thenAccept(photos -> {
+            Album newAlbum = new Album(newAlbumName);
+            for (Photo photo : photos) {
+                newAlbum.addPhoto(photo);
+            }
+            if (!currentUser.addAlbum(newAlbum)) {
+                showError("An album named '" + newAlbumName + "' already exists.");
+                return;
+            }
+            showInfo("New album '" + newAlbumName + "' created with " + photos.size() + " photos.");
+        });
     }
 
     @FXML
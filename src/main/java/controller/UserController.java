@@ -6,7 +6,8 @@
  * This controller is responsible for displaying the current user's albums using a TableView.
  * It configures the table columns to show album names, photo counts, and date ranges, and
  * provides functionality for actions such as opening an album, creating, renaming, or deleting
- * an album, as well as logging out and quitting the application.
+ * an album, creating albums that mirror a folder on disk, reporting near-duplicate photos
+ * across the library, as well as logging out and quitting the application.
  * </p>
  * 
  * @author Adam Student
@@ -16,20 +17,37 @@
 
 package controller;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 import app.Photos;
 import javafx.application.Platform;
+import javafx.collections.ObservableList;
 import javafx.fxml.FXML;
 import javafx.scene.control.Alert;
 import javafx.scene.control.TableColumn;
 import javafx.scene.control.TableView;
+import javafx.scene.control.TextArea;
 import javafx.scene.control.TextInputDialog;
 import javafx.scene.control.cell.PropertyValueFactory;
+import javafx.stage.DirectoryChooser;
 import model.Album;
+import model.LibraryEvent;
+import model.Photo;
 import model.User;
-import util.SerializationUtil;
+import util.ContentHasher;
+import util.PerceptualHash;
+import service.Background;
+import service.LibraryService;
+import service.PersistenceService;
 
 public class UserController {
 
@@ -49,18 +67,53 @@ public class UserController {
 
         // Configure the TableColumn cell value factories
         albumNameColumn.setCellValueFactory(new PropertyValueFactory<>("name"));
-        photoCountColumn.setCellValueFactory(new PropertyValueFactory<>("photoCount"));
-        dateRangeColumn.setCellValueFactory(new PropertyValueFactory<>("dateRange"));
+        // Count and date range are kept up to date by the album itself, so rendering a row
+        // never touches its photos and the table follows background imports on its own.
+        photoCountColumn.setCellValueFactory(cell -> cell.getValue().photoCountProperty().asObject());
+        dateRangeColumn.setCellValueFactory(cell -> cell.getValue().dateRangeProperty());
 
         // Load the user's albums into the TableView
         if (albumTableView != null && currentUser.getAlbums() != null) {
             albumTableView.getItems().addAll(currentUser.getAlbums());
         }
+
+        // Albums added, renamed or removed from then on, here or by a merge with another
+        // process's save, update just their own rows.
+        LibraryEvent.Listener listener = this::libraryChanged;
+        currentUser.addListener(listener);
+        albumTableView.sceneProperty().addListener((obs, oldScene, scene) -> {
+            if (scene == null) {
+                currentUser.removeListener(listener);
+            }
+        });
+    }
+
+    private void libraryChanged(LibraryEvent event) {
+        ObservableList<Album> items = albumTableView.getItems();
+        switch (event.getType()) {
+            case ALBUM_ADDED:
+                items.add(event.getAlbum());
+                break;
+            case ALBUM_REMOVED:
+                items.remove(event.getAlbum());
+                break;
+            case ALBUM_RENAMED:
+                // Setting the album again redraws just its row with the new name.
+                int index = items.indexOf(event.getAlbum());
+                if (index >= 0) {
+                    items.set(index, event.getAlbum());
+                }
+                break;
+            default:
+                // Counts and date ranges follow the albums' own properties.
+        }
     }
 
     @FXML
     private void handleLogout() {
+        FolderAlbumSync.stopAll();
         saveUserData();
+        SessionManager.setCurrentUser(null);
         try {
             Photos.setRoot("login"); // Redirect to the login screen
         } catch (IOException e) {
@@ -72,7 +125,9 @@ public class UserController {
     @FXML
     private void handleQuit() {
         // Save any pending changes before exiting
+        FolderAlbumSync.stopAll();
         saveUserData();
+        // Photos.stop() waits for the save to reach the disk.
         Platform.exit();
     }
 
@@ -84,16 +139,19 @@ public class UserController {
             return;
         }
 
-        // Set the current album for later retrieval
-        SessionManager.setCurrentAlbum(selectedAlbum);
-
-        try {
-            // Switch to the album details view (album_details.fxml)
-            Photos.setRoot("album_details");
-        } catch (IOException e) {
-            showError("Failed to load the album details view.");
-            e.printStackTrace();
-        }
+        // Read the album's photos in the background before switching views.
+        LibraryService.loadAlbum(selectedAlbum).thenAccept(album -> {
+            // Set the current album for later retrieval
+            SessionManager.setCurrentAlbum(album);
+
+            try {
+                // Switch to the album details view (album_details.fxml)
+                Photos.setRoot("album_details");
+            } catch (IOException e) {
+                showError("Failed to load the album details view.");
+                e.printStackTrace();
+            }
+        });
     }
 
     @FXML
@@ -112,29 +170,57 @@ public class UserController {
             User currentUser = getCurrentUser(); // Alternatively, use SessionManager.getCurrentUser()
 
             // Check if an album with the same name already exists
-            for (Album album : currentUser.getAlbums()) {
-                if (album.getName().equalsIgnoreCase(albumName)) {
-                    showError("An album with this name already exists.");
-                    return;
-                }
+            if (currentUser.hasAlbumNamed(albumName)) {
+                showError("An album with this name already exists.");
+                return;
             }
 
             // No duplicate found; create the album
             Album newAlbum = new Album(albumName);
             currentUser.addAlbum(newAlbum);
 
-            // If you're using a TableView (or ListView) to display albums, update it
-            if (albumTableView != null) {
-                albumTableView.getItems().add(newAlbum);
-            }
-
             // Save the updated user data to disk
-            SerializationUtil.save(currentUser, "data/users/" + currentUser.getUsername() + ".dat");
+            saveUserData();
 
             showInfo("Album '" + albumName + "' created successfully.");
         }
     }
 
+    @FXML
+    private void handleAddFolderAlbum() {
+        DirectoryChooser chooser = new DirectoryChooser();
+        chooser.setTitle("Choose a Folder to Keep in Sync");
+        File folder = chooser.showDialog(albumTableView.getScene().getWindow());
+        if (folder == null) {
+            return;
+        }
+
+        User currentUser = getCurrentUser();
+        String folderPath = folder.getAbsolutePath();
+        for (Album album : currentUser.getAlbums()) {
+            if (folderPath.equals(album.getSourceFolder())) {
+                showError("Album '" + album.getName() + "' already mirrors this folder.");
+                return;
+            }
+        }
+
+        // Name the album after the folder, numbering it if that name is taken.
+        String baseName = folder.getName().isEmpty() ? folderPath : folder.getName();
+        String albumName = baseName;
+        for (int n = 2; currentUser.hasAlbumNamed(albumName); n++) {
+            albumName = baseName + " (" + n + ")";
+        }
+
+        Album newAlbum = new Album(albumName);
+        newAlbum.setSourceFolder(folderPath);
+        currentUser.addAlbum(newAlbum);
+        saveUserData();
+
+        // The first sync finds every image in the folder; later ones follow changes on disk.
+        FolderAlbumSync.start(currentUser, newAlbum);
+        showInfo("Album '" + albumName + "' created. Photos in " + folderPath + " will be added in the background.");
+    }
+
     @FXML
     private void handleDeleteAlbum() {
         Album selectedAlbum = albumTableView.getSelectionModel().getSelectedItem();
@@ -144,10 +230,10 @@ public class UserController {
         }
 
         User currentUser = getCurrentUser();
+        FolderAlbumSync.stop(selectedAlbum);
         currentUser.removeAlbum(selectedAlbum);
-
-        // Update the TableView
-        albumTableView.getItems().remove(selectedAlbum);
+        saveUserData();
+        PersistenceService.deleteAlbum(currentUser, selectedAlbum);
 
         showInfo("Album '" + selectedAlbum.getName() + "' deleted successfully.");
     }
@@ -168,25 +254,112 @@ public class UserController {
         Optional<String> result = dialog.showAndWait();
         if (result.isPresent() && !result.get().trim().isEmpty()) {
             String newName = result.get().trim();
-            selectedAlbum.renameAlbum(newName);
-
-            // Update the TableView
-            albumTableView.refresh();
+            if (!getCurrentUser().renameAlbum(selectedAlbum, newName)) {
+                showError("An album with this name already exists.");
+                return;
+            }
 
             showInfo("Album renamed to '" + newName + "' successfully.");
         }
     }
 
+    @FXML
+    private void handleFindDuplicates() {
+        User currentUser = getCurrentUser();
+        // Every album's photos are needed, so read any that are not in memory yet first.
+        LibraryService.loadAlbums(currentUser).thenAccept(this::reportDuplicates);
+    }
+
+    private void reportDuplicates(User currentUser) {
+        // Photos imported before hashing existed have no perceptual hash yet.
+        Set<Photo> unhashed = new LinkedHashSet<>();
+        // Content digests are refreshed for every photo; files unchanged since their last
+        // digest are skipped by size and modification time.
+        Map<String, ContentHasher.Digest> known = new HashMap<>();
+        for (Album album : currentUser.getAlbums()) {
+            for (Photo photo : album.getPhotos()) {
+                if (!photo.hasPerceptualHash()) {
+                    unhashed.add(photo);
+                }
+                known.putIfAbsent(photo.getFilepath(), photo.getContentDigest());
+            }
+        }
+        List<String> paths = new ArrayList<>();
+        for (Photo photo : unhashed) {
+            paths.add(photo.getFilepath());
+        }
+
+        CompletableFuture<Map<String, Long>> hashing = Background.call(() -> PerceptualHash.computeAll(paths));
+        CompletableFuture<Map<String, ContentHasher.Digest>> digesting = Background
+                .call(() -> ContentHasher.refresh(known));
+        hashing.thenAcceptBoth(digesting, (hashes, digests) -> {
+            for (Photo photo : unhashed) {
+                Long hash = hashes.get(photo.getFilepath());
+                if (hash != null) {
+                    photo.setPerceptualHash(hash);
+                    currentUser.photoEdited(photo);
+                }
+            }
+            boolean digestsChanged = false;
+            for (Album album : currentUser.getAlbums()) {
+                for (Photo photo : album.getPhotos()) {
+                    ContentHasher.Digest digest = digests.get(photo.getFilepath());
+                    if (digest != null && digest != photo.getContentDigest()) {
+                        photo.setContentDigest(digest);
+                        album.photoEdited(photo);
+                        digestsChanged = true;
+                    }
+                }
+            }
+            if (!hashes.isEmpty() || digestsChanged) {
+                saveUserData();
+            }
+            showDuplicateReport(currentUser.findDuplicateGroups(PerceptualHash.NEAR_DUPLICATE_DISTANCE));
+        });
+    }
+
+    private void showDuplicateReport(List<List<Photo>> groups) {
+        if (groups.isEmpty()) {
+            showInfo("No near-duplicate photos found.");
+            return;
+        }
+        User currentUser = getCurrentUser();
+        StringBuilder report = new StringBuilder();
+        for (int i = 0; i < groups.size(); i++) {
+            report.append("Group ").append(i + 1).append(":\n");
+            for (Photo photo : groups.get(i)) {
+                report.append("  ").append(photo).append("  [");
+                for (Photo other : groups.get(i)) {
+                    if (other != photo && photo.hasSameContent(other)) {
+                        report.append("identical file; ");
+                        break;
+                    }
+                }
+                List<Album> albums = currentUser.findAlbumsContaining(photo);
+                for (int j = 0; j < albums.size(); j++) {
+                    report.append(j == 0 ? "" : ", ").append(albums.get(j).getName());
+                }
+                report.append("]\n");
+            }
+        }
+        TextArea reportArea = new TextArea(report.toString());
+        reportArea.setEditable(false);
+        reportArea.setWrapText(true);
+        Alert alert = new Alert(Alert.AlertType.INFORMATION);
+        alert.setTitle("Duplicate Report");
+        alert.setHeaderText(groups.size() + " group(s) of near-duplicate photos found.");
+        alert.getDialogPane().setContent(reportArea);
+        alert.showAndWait();
+    }
+
     // Utility methods for UserController
     private User getCurrentUser() {
         return SessionManager.getCurrentUser();
     }
 
     private void saveUserData() {
-        // Logic to save user data to disk
-        // This would use SerializationUtil in a real implementation
-        SerializationUtil.save(SessionManager.getCurrentUser(),
-                "data/users/" + SessionManager.getCurrentUser().getUsername() + ".dat");
+        // Captured now, written to disk in the background
+        PersistenceService.saveUser(SessionManager.getCurrentUser());
     }
 
     private void showError(String message) {
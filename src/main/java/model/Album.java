@@ -5,7 +5,45 @@
  * This class provides functionality to add, delete, and rename the album, as well as
  * to retrieve information about the album such as the number of photos it contains and
  * the date range during which the photos were taken. Duplicate photos (identified by 
- * their file paths) are not added to the album.
+ * their file paths) are not added to the album. Photos are indexed by normalized file path
+ * in insertion order, so membership checks, adds and removals take constant time. The photo
+ * count and date range are maintained incrementally and exposed as observable properties.
+ * </p>
+ *
+ * <p>
+ * An album can also be viewed in a chosen {@link SortOrder}. The sorted sequence is kept up
+ * to date as photos are added and removed, and a {@link Cursor} steps through it to the next
+ * or previous photo in constant time and jumps to a position in logarithmic time.
+ * </p>
+ *
+ * <p>
+ * The photos themselves are saved in a file of their own under {@code data/albums}, along
+ * with a {@link PhotoStore} file of their metadata in columns, and the album record saved
+ * with its user carries only the name, count and date range. Photos are
+ * loaded the first time they are needed. Once saved, they are held only through a soft
+ * reference, so photos of albums that have not been used recently can be dropped under
+ * memory pressure and are reloaded transparently. Loading reuses any photo already in memory
+ * with the same id, so a photo shared by several albums stays a single object.
+ * </p>
+ *
+ * <p>
+ * Threads other than the owner read an album through an immutable {@link AlbumSnapshot}.
+ * The album caches its snapshot until it changes, along with its loaded contents, so an
+ * album whose photos were dropped from memory does not keep a copy of them alive either.
+ * </p>
+ *
+ * <p>
+ * Every change to the album, and every photo edit reported through {@link #photoEdited(Photo)},
+ * is passed on to the owning user's listeners as a {@link LibraryEvent} naming the photos
+ * involved, so views can update just those photos.
+ * </p>
+ *
+ * <p>
+ * Every save of a changed album stamps its record with a new random revision. When another
+ * process saved the same user in the meantime, {@link #mergeStored(Album)} compares the
+ * revision on disk with the one this album was read or written as: if they match, the other
+ * process left the album alone. Otherwise an album with no unsaved changes simply takes the
+ * stored one, and an album with changes on both sides merges photos by id.
  * </p>
  *
  * @author Adam Student
@@ -14,76 +52,1181 @@
  */
 package model;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.time.LocalDateTime;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+import util.OrderedSequence;
+import util.SerializationUtil;
+
+import javafx.beans.property.ReadOnlyIntegerProperty;
+import javafx.beans.property.ReadOnlyIntegerWrapper;
+import javafx.beans.property.ReadOnlyStringProperty;
+import javafx.beans.property.ReadOnlyStringWrapper;
 
 public class Album implements Serializable {
     private static final long serialVersionUID = 1L;
 
+    /**
+     * The orders an album's photos can be viewed in. Ties are broken by photo id, so every
+     * order is total.
+     */
+    public enum SortOrder {
+        INSERTION("Date added", null),
+        DATE_TAKEN("Date taken", Comparator.comparing(Photo::getDateTaken,
+                Comparator.nullsFirst(Comparator.<LocalDateTime>naturalOrder()))),
+        CAPTION("Caption", Comparator.comparing((Photo p) -> p.getCaption() == null ? "" : p.getCaption(),
+                String.CASE_INSENSITIVE_ORDER)),
+        LAST_EDITED("Last edited", Comparator.comparing(Photo::getLastEdited,
+                Comparator.nullsLast(Comparator.<LocalDateTime>reverseOrder())));
+
+        private final String label;
+        private final Comparator<Photo> order;
+
+        SortOrder(String label, Comparator<Photo> order) {
+            this.label = label;
+            this.order = order == null ? null : order.thenComparingLong(Photo::getId);
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    /**
+     * A position in the album's sorted sequence. Stepping past either end wraps around.
+     * A cursor whose photo has been removed from the album restarts at the first photo.
+     */
+    public class Cursor {
+        private Photo current;
+
+        private Cursor(Photo start) {
+            current = start;
+        }
+
+        /** The photo at the cursor, or null if the album is empty. */
+        public Photo current() {
+            if (current == null || !ordered().contains(current)) {
+                current = ordered().first();
+            }
+            return current;
+        }
+
+        /** Moves to the next photo and returns it. */
+        public Photo next() {
+            Photo at = current();
+            if (at != null) {
+                Photo next = ordered().next(at);
+                current = next != null ? next : ordered().first();
+            }
+            return current;
+        }
+
+        /** Moves to the previous photo and returns it. */
+        public Photo previous() {
+            Photo at = current();
+            if (at != null) {
+                Photo previous = ordered().previous(at);
+                current = previous != null ? previous : ordered().last();
+            }
+            return current;
+        }
+
+        /** Returns the position of the cursor from 0, or -1 if the album is empty. */
+        public int position() {
+            Photo at = current();
+            return at == null ? -1 : ordered().indexOf(at);
+        }
+
+        /** Moves to a position and returns the photo there. */
+        public Photo moveTo(int position) {
+            current = ordered().get(position);
+            return current;
+        }
+    }
+
+    // The serialized form is declared explicitly: photos are normally written to a file of
+    // their own, and the album record carries only the header (name, count, date range).
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("name", String.class),
+            new ObjectStreamField("photosByPath", LinkedHashMap.class),
+            new ObjectStreamField("photos", ArrayList.class),
+            new ObjectStreamField("id", String.class),
+            new ObjectStreamField("sourceFolder", String.class),
+            new ObjectStreamField("sortOrder", SortOrder.class),
+            new ObjectStreamField("storedCount", int.class),
+            new ObjectStreamField("storedFirstDate", LocalDateTime.class),
+            new ObjectStreamField("storedLastDate", LocalDateTime.class),
+            new ObjectStreamField("revision", long.class) };
+
+    // Folder holding one photo file per album, named after the album id.
+    private static final String PHOTO_DIRECTORY = "data/albums";
+
+    // Windows and macOS file systems ignore case by default, so paths are compared without it there.
+    private static final boolean CASE_INSENSITIVE_PATHS = System.getProperty("os.name", "")
+            .toLowerCase(Locale.ROOT).matches("(windows|mac).*");
+
+    // Photos currently loaded in any album, by id. Loading an album reuses these instances,
+    // so a photo in several albums is still one object once its albums are loaded again.
+    private static final Map<Long, WeakReference<Photo>> LIVE_PHOTOS = new HashMap<>();
+    private static int livePhotosPurgeAt = 1024;
+
+    /**
+     * The loaded contents of an album. Held strongly while they have unsaved changes and
+     * softly afterwards, so the collector can drop them under memory pressure.
+     */
+    private static class Contents {
+        // Photos keyed by normalized file path, in the order they were added.
+        LinkedHashMap<String, Photo> photosByPath;
+        // Read-only list view handed out by getPhotos(), rebuilt after the album changes.
+        List<Photo> photoList;
+        // How many photos were taken at each capture time, kept up to date as photos come
+        // and go, so the earliest and latest dates are known without a scan.
+        final TreeMap<LocalDateTime, Integer> dateCounts = new TreeMap<>();
+        // The photos in the album's sort order; built on first use.
+        OrderedSequence<Photo> orderedPhotos;
+        // Snapshot of the album with these contents; null after any change.
+        AlbumSnapshot snapshot;
+        // Sorted ids of the photos in the album's file as last read or written here.
+        long[] storedIds;
+
+        Contents(LinkedHashMap<String, Photo> photosByPath) {
+            this.photosByPath = photosByPath;
+            for (Photo p : photosByPath.values()) {
+                dateCounts.merge(p.getDateTaken(), 1, Integer::sum);
+            }
+            storedIds = new long[photosByPath.size()];
+            int i = 0;
+            for (Photo p : photosByPath.values()) {
+                storedIds[i++] = p.getId();
+            }
+            Arrays.sort(storedIds);
+        }
+    }
+
     private String name;
-    private ArrayList<Photo> photos;
+    // Stable identifier that survives renames; used to name per-album files such as the thumbnail pack.
+    private String id;
+    // Folder on disk this album mirrors, or null for an ordinary album.
+    private String sourceFolder;
+    // Order the album is viewed in; null in albums saved before sorting existed.
+    private SortOrder sortOrder;
+    // Header kept current with the contents, so an album that is not loaded can still show them.
+    private int storedCount;
+    private LocalDateTime storedFirstDate;
+    private LocalDateTime storedLastDate;
+    // Random stamp of the saved state this album is based on; 0 for albums saved before stamps.
+    private long revision;
+    // Contents with changes not yet saved; null once they have been written out.
+    private transient Contents contents;
+    // Counts changes to the contents, so a deferred save can tell whether it saved the latest.
+    private transient long version;
+    // Contents that match the saved file and may be dropped and reloaded.
+    private transient SoftReference<Contents> savedContents;
+    // Dictionary the tags of loaded photos are interned into; set by the owning user.
+    private transient TagDictionary tagDictionary;
+    // User whose listeners hear about changes to the album; null while it belongs to none.
+    private transient User owner;
+    private transient ReadOnlyIntegerWrapper photoCount;
+    private transient ReadOnlyStringWrapper dateRange;
+    // Snapshot of the header alone, used while the photos are not loaded.
+    private transient AlbumSnapshot headerSnapshot;
+    // Whether the album has been saved (or was loaded from a save) at least once.
+    private transient boolean stored;
+    // Whether the name, folder or sort order changed since the last save.
+    private transient boolean headerDirty;
+    // Ids of photos removed since the last save, so a merge does not bring them back.
+    private transient Set<Long> removedPhotoIds;
 
     public Album(String name) {
         this.name = name;
-        this.photos = new ArrayList<>();
+        this.contents = new Contents(new LinkedHashMap<>());
+    }
+
+    /**
+     * Normalizes a file path for use as a membership key, so that different spellings of
+     * the same file (relative, or with "." and ".." segments) count as one photo. On Windows
+     * and macOS, whose file systems ignore case by default, the key is also folded to lower
+     * case; elsewhere paths differing only in case name different files and stay apart.
+     *
+     * @param filePath the path of a photo file
+     * @return the normalized absolute path
+     */
+    public static String pathKey(String filePath) {
+        String key;
+        try {
+            key = Paths.get(filePath).toAbsolutePath().normalize().toString();
+        } catch (InvalidPathException e) {
+            key = filePath;
+        }
+        return CASE_INSENSITIVE_PATHS ? key.toLowerCase(Locale.ROOT) : key;
     }
 
     public void addPhoto(Photo p) {
-        // Check if a photo with the same file path already exists
-        for (Photo existing : photos) {
-            if (existing.getFilepath().equals(p.getFilepath())) {
-                return; // Do not add duplicate photo
+        Contents c = modify();
+        // Do not add a duplicate photo with the same file path
+        if (c.photosByPath.putIfAbsent(pathKey(p.getFilepath()), p) == null) {
+            c.photoList = null;
+            added(c, p);
+            publishStats();
+            fire(LibraryEvent.Type.PHOTOS_ADDED, List.of(p));
+        }
+    }
+
+    /**
+     * Returns whether the album holds a photo of the given file.
+     *
+     * @param filePath the path of the photo file
+     * @return true if a photo with that path is in the album
+     */
+    public boolean containsPath(String filePath) {
+        return contents().photosByPath.containsKey(pathKey(filePath));
+    }
+
+    /**
+     * Returns whether this exact photo (not just another photo of the same file) is in the album.
+     *
+     * @param p the photo to look for
+     * @return true if the album holds the photo
+     */
+    public boolean containsPhoto(Photo p) {
+        return p.equals(contents().photosByPath.get(pathKey(p.getFilepath())));
+    }
+
+    /**
+     * Adds many photos in one pass, skipping any whose file path is already in the album
+     * or appears earlier in the batch.
+     *
+     * @param batch the photos to add
+     * @return the photos actually added
+     */
+    public List<Photo> addPhotos(Collection<Photo> batch) {
+        Contents c = modify();
+        List<Photo> added = new ArrayList<>();
+        for (Photo p : batch) {
+            if (c.photosByPath.putIfAbsent(pathKey(p.getFilepath()), p) == null) {
+                added.add(p);
+                added(c, p);
             }
         }
-        photos.add(p);
+        if (!added.isEmpty()) {
+            c.photoList = null;
+            publishStats();
+            fire(LibraryEvent.Type.PHOTOS_ADDED, added);
+        }
+        return added;
     }
 
-    public void deletePhoto(Photo p) {
+    /**
+     * Removes every photo whose file path is in the given set.
+     *
+     * @param filePaths the file paths to remove
+     * @return the photos actually removed
+     */
+    public List<Photo> removePhotosByPath(Collection<String> filePaths) {
+        Contents c = modify();
+        List<Photo> removed = new ArrayList<>();
+        for (String path : filePaths) {
+            Photo p = c.photosByPath.remove(pathKey(path));
+            if (p != null) {
+                removed.add(p);
+                removed(c, p);
+                removedPhotoIds().add(p.getId());
+            }
+        }
+        if (!removed.isEmpty()) {
+            c.photoList = null;
+            publishStats();
+            fire(LibraryEvent.Type.PHOTOS_REMOVED, removed);
+        }
+        return removed;
+    }
 
-        photos.remove(p);
+    /**
+     * Returns the album's photo of the given file.
+     *
+     * @param filePath the path of the photo file
+     * @return the photo, or null if the album holds none with that path
+     */
+    public Photo findPhoto(String filePath) {
+        return contents().photosByPath.get(pathKey(filePath));
+    }
 
+    /**
+     * Re-keys photos whose file paths were changed, keeping them in place in the album. A
+     * moved photo landing on a file the album already holds is dropped. Called by the user
+     * for every album holding the photos; see {@link User#relocatePhotos(Album, Map)}.
+     *
+     * @param moved the photos, already pointed at their new paths
+     */
+    void photosMoved(Set<Photo> moved) {
+        Contents c = contents();
+        boolean holdsAny = false;
+        for (Photo p : c.photosByPath.values()) {
+            if (moved.contains(p)) {
+                holdsAny = true;
+                break;
+            }
+        }
+        if (!holdsAny) {
+            return;
+        }
+        modify();
+        // Photos that stayed put keep their paths; a moved photo gives way to them.
+        Set<String> stayed = new HashSet<>();
+        for (Map.Entry<String, Photo> entry : c.photosByPath.entrySet()) {
+            if (!moved.contains(entry.getValue())) {
+                stayed.add(entry.getKey());
+            }
+        }
+        // Re-key in one pass so the moved photos keep their position.
+        LinkedHashMap<String, Photo> rekeyed = new LinkedHashMap<>();
+        List<Photo> kept = new ArrayList<>();
+        List<Photo> dropped = new ArrayList<>();
+        for (Map.Entry<String, Photo> entry : c.photosByPath.entrySet()) {
+            Photo p = entry.getValue();
+            if (!moved.contains(p)) {
+                rekeyed.put(entry.getKey(), p);
+                continue;
+            }
+            String key = pathKey(p.getFilepath());
+            if (stayed.contains(key) || rekeyed.putIfAbsent(key, p) != null) {
+                removed(c, p); // Moved onto a file the album already had.
+                dropped.add(p);
+            } else {
+                kept.add(p);
+            }
+        }
+        c.photosByPath = rekeyed;
+        c.photoList = null;
+        publishStats();
+        if (!dropped.isEmpty()) {
+            fire(LibraryEvent.Type.PHOTOS_REMOVED, dropped);
+        }
+        if (!kept.isEmpty()) {
+            fire(LibraryEvent.Type.PHOTOS_EDITED, kept);
+        }
+    }
+
+    public void deletePhoto(Photo p) {
+        Contents c = modify();
+        Photo removed = c.photosByPath.remove(pathKey(p.getFilepath()));
+        if (removed != null) {
+            c.photoList = null;
+            removed(c, removed);
+            removedPhotoIds().add(removed.getId());
+            publishStats();
+            fire(LibraryEvent.Type.PHOTOS_REMOVED, List.of(removed));
+        }
     }
 
     public void renameAlbum(String newName) {
         name = newName;
+        headerDirty = true;
+        headerChanged();
+        fire(LibraryEvent.Type.ALBUM_RENAMED, List.of());
     }
 
     public String getName() {
         return name;
     }
 
-    public ArrayList<Photo> getPhotos() {
-        return photos;
+    public String getId() {
+        if (id == null) {
+            // New albums get one the first time it is needed.
+            id = UUID.randomUUID().toString();
+            headerChanged();
+        }
+        return id;
+    }
+
+    /**
+     * Gives an album saved before ids existed the id it keeps from then on. The id is derived
+     * from the owner and the album's name, so every process that reads the same old record
+     * gives the album the same id and their saves merge as one album. Called on load by the
+     * owning user.
+     *
+     * @param owner the owning user's name
+     */
+    void assignLegacyId(String owner) {
+        if (id == null) {
+            id = UUID.nameUUIDFromBytes((owner + '/' + name).getBytes(StandardCharsets.UTF_8)).toString();
+        }
+    }
+
+    /**
+     * Returns the folder this album is kept in sync with.
+     *
+     * @return the absolute folder path, or null if the album is not folder-backed
+     */
+    public String getSourceFolder() {
+        return sourceFolder;
+    }
+
+    public void setSourceFolder(String sourceFolder) {
+        this.sourceFolder = sourceFolder;
+        headerDirty = true;
+        headerChanged();
+    }
+
+    /**
+     * Returns the album's photos in the order they were added, loading them if needed. The
+     * list is read-only; use the album's methods to change its contents.
+     *
+     * @return an unmodifiable list of the photos
+     */
+    public List<Photo> getPhotos() {
+        Contents c = contents();
+        if (c.photoList == null) {
+            c.photoList = Collections.unmodifiableList(new ArrayList<>(c.photosByPath.values()));
+        }
+        return c.photoList;
+    }
+
+    /**
+     * Returns whether the album's photos are in memory. The name, count and date range are
+     * always available without loading them.
+     *
+     * @return true if the photos are loaded
+     */
+    public boolean isLoaded() {
+        return contents != null || (savedContents != null && savedContents.get() != null);
+    }
+
+    /**
+     * Returns whether the album's photos have changes not yet written to its files, so its
+     * saved store does not describe them.
+     *
+     * @return true if the photos are pinned in memory until the next save
+     */
+    public boolean hasUnsavedPhotos() {
+        return contents != null;
+    }
+
+    /**
+     * Deletes the files holding the album's photos and their store. Call only once the
+     * album is gone for good and its owner has been saved without it.
+     */
+    public void deleteStoredPhotos() {
+        for (String file : new String[] { photoFile(), storeFile() }) {
+            try {
+                Files.deleteIfExists(Paths.get(file));
+            } catch (IOException e) {
+                System.err.println("Could not delete " + file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Maps the store saved with the album's photos, without loading them or touching the
+     * album, so it may be called from a background thread. Meant for albums without
+     * unsaved photos, whose store matches their saved photos.
+     *
+     * @return the store, or null if it is missing or was saved for another revision of the
+     *         album
+     */
+    public PhotoStore mapStore() {
+        Path file = Paths.get(storeFile());
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try {
+            PhotoStore store = PhotoStore.map(file);
+            return store.getRevision() == revision && store.size() == storedCount ? store : null;
+        } catch (IOException e) {
+            System.err.println("Could not map " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Builds the album's store again from its photo file, saves it for next time and maps
+     * it, without touching the album, so it may be called from a background thread. For
+     * albums whose store {@link #mapStore()} could not map; callers keep saves of the album
+     * from running meanwhile. A store whose photos were only given ids as they were read is
+     * not saved, since those ids change on every read.
+     *
+     * @return the store, kept on the Java heap if it could not be saved
+     */
+    public PhotoStore rebuildStore() {
+        long current = revision;
+        List<Photo> stored = readStoredPhotos();
+        for (Photo p : stored) {
+            if (p.hasUnsavedId()) {
+                return PhotoStore.of(stored);
+            }
+        }
+        Path file = Paths.get(storeFile());
+        try {
+            PhotoStore.save(file, snapshotsOf(stored), current);
+            return PhotoStore.map(file);
+        } catch (IOException e) {
+            System.err.println("Could not save " + file + ": " + e.getMessage());
+            return PhotoStore.of(stored);
+        }
+    }
+
+    /**
+     * Returns the order the album is viewed in.
+     *
+     * @return the sort order
+     */
+    public SortOrder getSortOrder() {
+        return sortOrder == null ? SortOrder.INSERTION : sortOrder;
+    }
+
+    /**
+     * Changes the order the album is viewed in, re-sorting its photos once.
+     *
+     * @param sortOrder the new order
+     */
+    public void setSortOrder(SortOrder sortOrder) {
+        if (sortOrder != getSortOrder()) {
+            this.sortOrder = sortOrder;
+            if (isLoaded()) {
+                contents().orderedPhotos = null;
+            }
+            headerDirty = true;
+            headerChanged();
+            fire(LibraryEvent.Type.ALBUM_RESORTED, List.of());
+        }
+    }
+
+    /**
+     * Returns the album's photos in its sort order. The list is read-only and reflects later
+     * changes to the album; looking up an element by position takes logarithmic time.
+     *
+     * @return a view of the sorted photos
+     */
+    public List<Photo> getSortedPhotos() {
+        return new AbstractList<Photo>() {
+            @Override
+            public Photo get(int index) {
+                return ordered().get(index);
+            }
+
+            @Override
+            public int size() {
+                return ordered().size();
+            }
+
+            @Override
+            public int indexOf(Object o) {
+                // Walk up from the photo's node instead of scanning the list.
+                return o instanceof Photo ? ordered().indexOf((Photo) o) : -1;
+            }
+
+            @Override
+            public Iterator<Photo> iterator() {
+                // Follow the neighbour links rather than looking up each position.
+                return new Iterator<Photo>() {
+                    private Photo next = ordered().first();
+
+                    @Override
+                    public boolean hasNext() {
+                        return next != null;
+                    }
+
+                    @Override
+                    public Photo next() {
+                        if (next == null) {
+                            throw new NoSuchElementException();
+                        }
+                        Photo p = next;
+                        next = ordered().next(p);
+                        return p;
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Returns a cursor over the sorted photos.
+     *
+     * @param start the photo to start at; the first photo is used if it is null or not in the album
+     * @return the cursor
+     */
+    public Cursor cursor(Photo start) {
+        return new Cursor(start);
+    }
+
+    /**
+     * Records that a photo in this album was edited: moves it to its new place in the sort
+     * order, and keeps the album's contents in memory until they have been saved.
+     *
+     * @param p the edited photo
+     */
+    public void photoEdited(Photo p) {
+        if (containsPhoto(p)) {
+            Contents c = modify();
+            if (c.orderedPhotos != null) {
+                c.orderedPhotos.reposition(p);
+            }
+            fire(LibraryEvent.Type.PHOTOS_EDITED, List.of(p));
+        }
     }
 
     public int getPhotoCount() {
-        return photos.size();
+        return storedCount;
     }
 
     public String getDateRange() {
+        return formatDateRange();
+    }
 
-        if (photos.isEmpty()) {
-            return "No photos";
+    /**
+     * Returns the number of photos as an observable property that follows every change.
+     *
+     * @return the photo count property
+     */
+    public ReadOnlyIntegerProperty photoCountProperty() {
+        statistics();
+        return photoCount.getReadOnlyProperty();
+    }
+
+    /**
+     * Returns the capture date range of the photos as an observable property that follows
+     * every change.
+     *
+     * @return the date range property
+     */
+    public ReadOnlyStringProperty dateRangeProperty() {
+        statistics();
+        return dateRange.getReadOnlyProperty();
+    }
+
+    /**
+     * Gives the album to a user: the tags of its photos are interned into the user's
+     * dictionary when they are loaded, and its changes are reported to the user's listeners.
+     * Called by the owning user.
+     *
+     * @param user the owning user
+     */
+    void attach(User user) {
+        owner = user;
+        tagDictionary = user.getTagDictionary();
+        if (contents != null) {
+            for (Photo p : contents.photosByPath.values()) {
+                p.internTags(tagDictionary);
+            }
         }
-        LocalDateTime earliest = photos.get(0).getDateTaken();
-        LocalDateTime latest = photos.get(0).getDateTaken();
+    }
 
-        for (Photo photo : photos) {
-            LocalDateTime date = photo.getDateTaken();
-            if (date.isBefore(earliest)) {
-                earliest = date;
+    /**
+     * Stops reporting the album's changes once it has been removed from its user.
+     */
+    void detach() {
+        owner = null;
+    }
+
+    /**
+     * Returns an immutable copy of the album as it is now, with its photos if they are in
+     * memory. Must be called on the thread that modifies the album. Repeated calls return
+     * the same snapshot until the album changes; changes to its photos count once they are
+     * reported through {@link #photoEdited(Photo)}, as they must be to be saved. After any
+     * change the snapshot is rebuilt from scratch, in time proportional to the album's size.
+     *
+     * @return the snapshot
+     */
+    AlbumSnapshot snapshot() {
+        Contents c = loadedContents();
+        if (c == null) {
+            if (headerSnapshot == null) {
+                headerSnapshot = new AlbumSnapshot(getId(), name, sourceFolder, getSortOrder(), storedCount,
+                        formatDateRange(), null, null);
+            }
+            return headerSnapshot;
+        }
+        if (c.snapshot == null) {
+            List<PhotoSnapshot> photos = new ArrayList<>(c.photosByPath.size());
+            for (Photo p : c.photosByPath.values()) {
+                photos.add(p.snapshot());
             }
-            if (date.isAfter(latest)) {
-                latest = date;
+            photos = Collections.unmodifiableList(photos);
+            List<PhotoSnapshot> sorted = photos;
+            if (getSortOrder() != SortOrder.INSERTION) {
+                sorted = new ArrayList<>(photos.size());
+                for (Photo p : getSortedPhotos()) {
+                    sorted.add(p.snapshot());
+                }
+                sorted = Collections.unmodifiableList(sorted);
             }
+            c.snapshot = new AlbumSnapshot(getId(), name, sourceFolder, getSortOrder(), storedCount,
+                    formatDateRange(), photos, sorted);
+        }
+        return c.snapshot;
+    }
+
+    // Drops the cached snapshots after the name, id, folder or sort order changed.
+    private void headerChanged() {
+        headerSnapshot = null;
+        Contents c = loadedContents();
+        if (c != null) {
+            c.snapshot = null;
+        }
+    }
+
+    // Returns the contents if they are in memory, without loading them.
+    private Contents loadedContents() {
+        return contents != null ? contents : savedContents == null ? null : savedContents.get();
+    }
+
+    // Returns the contents, loading them from the album's photo file if they are not in memory.
+    private Contents contents() {
+        if (contents != null) {
+            return contents;
         }
+        Contents c = savedContents == null ? null : savedContents.get();
+        if (c == null) {
+            c = new Contents(load());
+            savedContents = new SoftReference<>(c);
+        }
+        return c;
+    }
 
-        return "From " + earliest.toString() + " to " + latest.toString();
+    // Returns the contents, pinned in memory until the next save because they are about to change.
+    private Contents modify() {
+        contents = contents();
+        version++;
+        contents.snapshot = null;
+        headerSnapshot = null;
+        return contents;
+    }
+
+    /**
+     * Marks the contents as saved after a deferred write of the given version succeeded,
+     * unless they have changed again since.
+     */
+    void markSaved(long savedVersion, long[] savedIds) {
+        stored = true;
+        Contents saved = loadedContents();
+        if (saved != null) {
+            saved.storedIds = savedIds;
+        }
+        if (contents != null && version == savedVersion) {
+            savedContents = new SoftReference<>(contents);
+            contents = null;
+            removedPhotoIds = null;
+        }
+    }
+
+    /**
+     * Returns whether the album has been saved, or was loaded from a save.
+     *
+     * @return true if the album exists on disk
+     */
+    boolean isStored() {
+        return stored;
+    }
+
+    /**
+     * Returns whether the album has changes that have not been written yet.
+     *
+     * @return true if its photos or header changed since the last save
+     */
+    boolean hasUnsavedChanges() {
+        return contents != null || headerDirty;
+    }
+
+    /**
+     * Merges the same album as another process saved it into this one. Must be called on
+     * the thread that modifies the album.
+     *
+     * @param theirs the album as read from the stored user record
+     * @return photos of this album that took over newer edits from the stored copy
+     */
+    List<Photo> mergeStored(Album theirs) {
+        List<Photo> adopted = new ArrayList<>();
+        if (theirs.revision == revision) {
+            return adopted; // The other process left it as we last saw it.
+        }
+        if (contents == null) {
+            // No unsaved photo changes: the stored photos replace ours, and the stored
+            // header too unless ours was changed.
+            boolean renamed = !headerDirty && !name.equals(theirs.name);
+            if (!headerDirty) {
+                name = theirs.name;
+                sourceFolder = theirs.sourceFolder;
+                sortOrder = theirs.sortOrder;
+            }
+            storedCount = theirs.storedCount;
+            storedFirstDate = theirs.storedFirstDate;
+            storedLastDate = theirs.storedLastDate;
+            savedContents = null;
+            revision = theirs.revision;
+            headerChanged();
+            showStats();
+            if (renamed) {
+                fire(LibraryEvent.Type.ALBUM_RENAMED, List.of());
+            }
+            fire(LibraryEvent.Type.PHOTOS_RELOADED, List.of());
+            return adopted;
+        }
+        // Changed on both sides: keep the photos added on either side, drop those removed on
+        // either side, and take whichever copy of a shared photo was edited last.
+        // A photo is the same on both sides if it has the same id and the same file. Ids
+        // minted before they were random, or given on load to photos saved without one, can
+        // differ for the same file or coincide for different files, so the file decides.
+        Contents c = modify();
+        Map<Long, Photo> ours = new HashMap<>();
+        for (Photo p : c.photosByPath.values()) {
+            ours.put(p.getId(), p);
+        }
+        List<Photo> stored = theirs.readStoredPhotos();
+        List<Photo> addedHere = new ArrayList<>();
+        List<Photo> removedHere = new ArrayList<>();
+        // Ids, as numbered here, of the photos in their file.
+        Set<Long> storedNow = new HashSet<>();
+        for (Photo p : stored) {
+            Photo mine = ours.get(p.getId());
+            if (mine == null || !samePath(mine, p)) {
+                mine = c.photosByPath.get(pathKey(p.getFilepath()));
+            }
+            if (mine != null) {
+                storedNow.add(mine.getId());
+                if (mine.adoptIfNewer(p)) {
+                    if (tagDictionary != null) {
+                        mine.internTags(tagDictionary);
+                    }
+                    adopted.add(mine);
+                }
+            } else if (removedPhotoIds == null || !removedPhotoIds.contains(p.getId())) {
+                Photo live = canonical(p);
+                if (live != p && !samePath(live, p)) {
+                    // Their id already belongs to another file here: number theirs afresh.
+                    p.renumber();
+                    live = canonical(p);
+                }
+                if (live == p && tagDictionary != null) {
+                    p.internTags(tagDictionary);
+                }
+                if (c.photosByPath.putIfAbsent(pathKey(live.getFilepath()), live) == null) {
+                    added(c, live);
+                    addedHere.add(live);
+                }
+                storedNow.add(live.getId());
+            } else {
+                storedNow.add(p.getId());
+            }
+        }
+        for (Photo mine : ours.values()) {
+            // In the file we last saw but not in theirs: removed there.
+            if (!storedNow.contains(mine.getId()) && Arrays.binarySearch(c.storedIds, mine.getId()) >= 0) {
+                c.photosByPath.remove(pathKey(mine.getFilepath()));
+                removed(c, mine);
+                removedHere.add(mine);
+            }
+        }
+        c.photoList = null;
+        c.orderedPhotos = null;
+        c.storedIds = new long[storedNow.size()];
+        int i = 0;
+        for (long id : storedNow) {
+            c.storedIds[i++] = id;
+        }
+        Arrays.sort(c.storedIds);
+        publishStats();
+        revision = theirs.revision;
+        if (!removedHere.isEmpty()) {
+            fire(LibraryEvent.Type.PHOTOS_REMOVED, removedHere);
+        }
+        if (!addedHere.isEmpty()) {
+            fire(LibraryEvent.Type.PHOTOS_ADDED, addedHere);
+        }
+        // Adopted edits are reported by the user, once for every album holding the photo.
+        return adopted;
+    }
+
+    private static boolean samePath(Photo a, Photo b) {
+        return pathKey(a.getFilepath()).equals(pathKey(b.getFilepath()));
+    }
+
+    private Set<Long> removedPhotoIds() {
+        if (removedPhotoIds == null) {
+            removedPhotoIds = new HashSet<>();
+        }
+        return removedPhotoIds;
+    }
+
+    private String photoFile() {
+        return PHOTO_DIRECTORY + "/" + getId() + ".photos";
+    }
+
+    private String storeFile() {
+        return PHOTO_DIRECTORY + "/" + getId() + ".store";
+    }
+
+    private static List<PhotoSnapshot> snapshotsOf(List<Photo> photos) {
+        List<PhotoSnapshot> snapshots = new ArrayList<>(photos.size());
+        for (Photo p : photos) {
+            snapshots.add(p.snapshot());
+        }
+        return snapshots;
+    }
+
+    private LinkedHashMap<String, Photo> load() {
+        return canonicalize(readStoredPhotos());
+    }
+
+    /**
+     * Reads the album's saved photos from its photo file without touching the album, so it
+     * may be called from a background thread. Pass the result to {@link #installPhotos(List)}
+     * on the application thread.
+     *
+     * @return the saved photos, or an empty list if there are none or they cannot be read
+     */
+    public List<Photo> readStoredPhotos() {
+        String file = photoFile();
+        if (!Files.exists(Paths.get(file))) {
+            if (storedCount > 0) {
+                System.err.println("Photos of album '" + name + "' are missing from " + file);
+            }
+            return new ArrayList<>();
+        }
+        List<Photo> stored = SerializationUtil.load(file);
+        if (stored == null) {
+            System.err.println("Could not load the photos of album '" + name + "'");
+            return new ArrayList<>();
+        }
+        return stored;
+    }
+
+    /**
+     * Makes photos read by {@link #readStoredPhotos()} the album's contents, unless the album
+     * has been loaded in the meantime.
+     *
+     * @param stored the photos read from the album's file
+     */
+    public void installPhotos(List<Photo> stored) {
+        if (!isLoaded()) {
+            savedContents = new SoftReference<>(new Contents(canonicalize(stored)));
+        }
+    }
+
+    // Swaps in already loaded instances of the photos and interns the tags of the others.
+    private LinkedHashMap<String, Photo> canonicalize(List<Photo> stored) {
+        LinkedHashMap<String, Photo> loaded = new LinkedHashMap<>();
+        for (Photo p : stored) {
+            Photo live = canonical(p);
+            if (live == p && tagDictionary != null) {
+                p.internTags(tagDictionary);
+            }
+            loaded.putIfAbsent(pathKey(live.getFilepath()), live);
+        }
+        return loaded;
+    }
+
+    /**
+     * Returns the photo with the given id if some album has it in memory.
+     *
+     * @param id the photo's id
+     * @return the photo, or null if it is not loaded
+     */
+    static synchronized Photo livePhoto(long id) {
+        WeakReference<Photo> ref = LIVE_PHOTOS.get(id);
+        return ref == null ? null : ref.get();
+    }
+
+    /**
+     * Installs photos read by {@link #readStoredPhotos()} for the owner's photo index. If any
+     * of them was only given an id as it was read, the album is kept in memory until its next
+     * save, so the ids the index records for them are the ones that get saved.
+     *
+     * @param stored the photos read from the album's file
+     */
+    void installIndexed(List<Photo> stored) {
+        installPhotos(stored);
+        for (Photo p : stored) {
+            if (p.hasUnsavedId()) {
+                modify();
+                return;
+            }
+        }
+    }
+
+    // Returns the loaded instance of a photo if there is one, otherwise registers this one.
+    private static synchronized Photo canonical(Photo p) {
+        WeakReference<Photo> ref = LIVE_PHOTOS.get(p.getId());
+        Photo live = ref == null ? null : ref.get();
+        if (live != null) {
+            return live;
+        }
+        LIVE_PHOTOS.put(p.getId(), new WeakReference<>(p));
+        if (LIVE_PHOTOS.size() >= livePhotosPurgeAt) {
+            LIVE_PHOTOS.values().removeIf(r -> r.get() == null);
+            livePhotosPurgeAt = Math.max(1024, LIVE_PHOTOS.size() * 2);
+        }
+        return p;
+    }
+
+    private OrderedSequence<Photo> ordered() {
+        Contents c = contents();
+        if (c.orderedPhotos == null) {
+            c.orderedPhotos = new OrderedSequence<>(getSortOrder().order);
+            for (Photo p : c.photosByPath.values()) {
+                c.orderedPhotos.add(p);
+            }
+        }
+        return c.orderedPhotos;
+    }
+
+    // Updates the capture-time counts and sorted sequence for a photo that joined the album.
+    private void added(Contents c, Photo p) {
+        canonical(p);
+        c.dateCounts.merge(p.getDateTaken(), 1, Integer::sum);
+        if (c.orderedPhotos != null) {
+            c.orderedPhotos.add(p);
+        }
+    }
+
+    // Updates the capture-time counts and sorted sequence for a photo that left the album.
+    private void removed(Contents c, Photo p) {
+        c.dateCounts.merge(p.getDateTaken(), -1, (count, d) -> count + d == 0 ? null : count + d);
+        if (c.orderedPhotos != null) {
+            c.orderedPhotos.remove(p);
+        }
+    }
+
+    // Tells the owning user's listeners about a change to this album.
+    private void fire(LibraryEvent.Type type, List<Photo> photos) {
+        if (owner != null) {
+            owner.fire(new LibraryEvent(type, this, Collections.unmodifiableList(photos)));
+        }
+    }
+
+    // Creates the properties on first use, from the header so the photos need not be loaded.
+    private void statistics() {
+        if (photoCount == null) {
+            photoCount = new ReadOnlyIntegerWrapper(this, "photoCount", storedCount);
+            dateRange = new ReadOnlyStringWrapper(this, "dateRange", formatDateRange());
+        }
+    }
+
+    // Copies the counts of the (modified) contents into the header and the properties.
+    private void publishStats() {
+        Contents c = contents;
+        storedCount = c.photosByPath.size();
+        storedFirstDate = c.dateCounts.isEmpty() ? null : c.dateCounts.firstKey();
+        storedLastDate = c.dateCounts.isEmpty() ? null : c.dateCounts.lastKey();
+        showStats();
+    }
+
+    // Copies the header counts into the properties, if anyone is watching them.
+    private void showStats() {
+        if (photoCount != null) {
+            photoCount.set(storedCount);
+            dateRange.set(formatDateRange());
+        }
+    }
+
+    private String formatDateRange() {
+        if (storedCount == 0) {
+            return "No photos";
+        }
+        return "From " + storedFirstDate + " to " + storedLastDate;
     }
 
     public String toString() {
         return name;
     }
 
-}
\ No newline at end of file
+    // Writes unsaved photos to the album's own file and the header to the stream. If the
+    // photo file cannot be written, the photos are written inline so nothing is lost. While a
+    // SaveBatch is capturing, a snapshot of the photos is handed to it instead, to be
+    // serialized and written later on another thread along with their store.
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        LinkedHashMap<String, Photo> inline = null;
+        SaveBatch batch = SaveBatch.capturing();
+        if (batch != null && hasUnsavedChanges()) {
+            // A new state of the album: stamp it so other processes can tell it changed.
+            revision = ThreadLocalRandom.current().nextLong();
+            headerDirty = false;
+        }
+        if (contents != null && batch != null) {
+            batch.addAlbum(this, photoFile(), storeFile(), snapshot().getPhotos(), version, revision);
+        } else if (contents != null) {
+            Files.createDirectories(Paths.get(PHOTO_DIRECTORY));
+            if (SerializationUtil.save(new ArrayList<>(contents.photosByPath.values()), photoFile())) {
+                savedContents = new SoftReference<>(contents);
+                contents = null;
+            } else {
+                inline = contents.photosByPath;
+            }
+        }
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("name", name);
+        fields.put("photosByPath", inline);
+        fields.put("photos", null);
+        fields.put("id", getId());
+        fields.put("sourceFolder", sourceFolder);
+        fields.put("sortOrder", sortOrder);
+        fields.put("storedCount", storedCount);
+        fields.put("storedFirstDate", storedFirstDate);
+        fields.put("storedLastDate", storedLastDate);
+        fields.put("revision", revision);
+        out.writeFields();
+    }
+
+    // Reads the header. Albums saved before photos had their own file carry them inline
+    // (older ones still as a plain list); those are kept in memory and moved to the file on
+    // the next save.
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        name = (String) fields.get("name", null);
+        id = (String) fields.get("id", null);
+        sourceFolder = (String) fields.get("sourceFolder", null);
+        sortOrder = (SortOrder) fields.get("sortOrder", null);
+        storedCount = fields.get("storedCount", 0);
+        storedFirstDate = (LocalDateTime) fields.get("storedFirstDate", null);
+        storedLastDate = (LocalDateTime) fields.get("storedLastDate", null);
+        revision = fields.get("revision", 0L);
+        stored = true;
+        LinkedHashMap<String, Photo> photosByPath = (LinkedHashMap<String, Photo>) fields.get("photosByPath", null);
+        ArrayList<Photo> photos = (ArrayList<Photo>) fields.get("photos", null);
+        if (photosByPath == null && photos != null) {
+            photosByPath = new LinkedHashMap<>();
+            for (Photo p : photos) {
+                photosByPath.putIfAbsent(pathKey(p.getFilepath()), p);
+            }
+        }
+        if (photosByPath != null) {
+            for (Photo p : photosByPath.values()) {
+                canonical(p);
+            }
+            contents = new Contents(photosByPath);
+            publishStats();
+        }
+    }
+
+}
@@ -0,0 +1,129 @@
+/**
+ * An immutable copy of an album at one moment.
+ *
+ * <p>
+ * The header (name, id, count, date range, sort order) is always present. The photos are
+ * present only if the album was loaded when the snapshot was taken; albums that are not in
+ * memory are not read from disk just to take a snapshot. The photo lists hold the photos'
+ * own cached {@link PhotoSnapshot}s, so a new album snapshot after one photo was edited
+ * shares every other photo with the previous one. The lists themselves are not shared:
+ * each snapshot of a loaded album copies them in full.
+ * </p>
+ *
+ * @author Adam Student
+ * @author Neer Patel
+ * @version 1.0
+ */
+package model;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Read-only view of an album, safe to share between threads.
+ */
+public final class AlbumSnapshot {
+
+    private final String id;
+    private final String name;
+    private final String sourceFolder;
+    private final Album.SortOrder sortOrder;
+    private final int photoCount;
+    private final String dateRange;
+    // In the order they were added, and in the album's sort order; null if not loaded.
+    private final List<PhotoSnapshot> photos;
+    private final List<PhotoSnapshot> sortedPhotos;
+    // Ids of the photos, built on first use.
+    private volatile Set<Long> photoIds;
+
+    AlbumSnapshot(String id, String name, String sourceFolder, Album.SortOrder sortOrder, int photoCount,
+            String dateRange, List<PhotoSnapshot> photos, List<PhotoSnapshot> sortedPhotos) {
+        this.id = id;
+        this.name = name;
+        this.sourceFolder = sourceFolder;
+        this.sortOrder = sortOrder;
+        this.photoCount = photoCount;
+        this.dateRange = dateRange;
+        // The album builds both lists for this snapshot alone and hands them over unmodifiable.
+        this.photos = photos;
+        this.sortedPhotos = sortedPhotos;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getSourceFolder() {
+        return sourceFolder;
+    }
+
+    public Album.SortOrder getSortOrder() {
+        return sortOrder;
+    }
+
+    public int getPhotoCount() {
+        return photoCount;
+    }
+
+    public String getDateRange() {
+        return dateRange;
+    }
+
+    /**
+     * Returns whether the photos were captured along with the header.
+     *
+     * @return true if {@link #getPhotos()} is available
+     */
+    public boolean isLoaded() {
+        return photos != null;
+    }
+
+    /**
+     * Returns the photos in the order they were added.
+     *
+     * @return an unmodifiable list, or null if the album was not loaded
+     */
+    public List<PhotoSnapshot> getPhotos() {
+        return photos;
+    }
+
+    /**
+     * Returns the photos in the album's sort order.
+     *
+     * @return an unmodifiable list, or null if the album was not loaded
+     */
+    public List<PhotoSnapshot> getSortedPhotos() {
+        return sortedPhotos;
+    }
+
+    /**
+     * Returns whether a photo is in the album.
+     *
+     * @param photoId the photo's id
+     * @return true if the album was loaded and holds that photo
+     */
+    public boolean containsPhoto(long photoId) {
+        if (photos == null) {
+            return false;
+        }
+        Set<Long> ids = photoIds;
+        if (ids == null) {
+            ids = new HashSet<>();
+            for (PhotoSnapshot photo : photos) {
+                ids.add(photo.getId());
+            }
+            photoIds = ids;
+        }
+        return ids.contains(photoId);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
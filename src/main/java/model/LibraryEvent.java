@@ -0,0 +1,103 @@
+/**
+ * A change to a user's library, as reported to the views and indexes that follow it.
+ *
+ * <p>
+ * Instead of rebuilding everything after each change, anything that shows or indexes the
+ * library subscribes with {@link User#addListener(Listener)} and is told exactly what
+ * changed: which album was added, renamed or removed, and which photos of an album were
+ * added, removed or edited. Applying an event costs in proportion to the photos it names,
+ * not to the size of the album or library.
+ * </p>
+ *
+ * <p>
+ * Events are delivered on the thread that modified the user, right after the change, so a
+ * listener sees the album in its new state. Photos are shared between albums and report
+ * their edits through {@link User#photoEdited(Photo)}, as they must to be saved, so an edit
+ * to a caption or tags arrives as one {@link Type#PHOTOS_EDITED} event for each album that
+ * holds the photo.
+ * </p>
+ *
+ * @author Adam Student
+ * @author Neer Patel
+ * @version 1.0
+ */
+package model;
+
+import java.util.List;
+
+/**
+ * An album- or photo-level change to a library.
+ */
+public final class LibraryEvent {
+
+    /**
+     * The kinds of change.
+     */
+    public enum Type {
+        /** An album joined the library. */
+        ALBUM_ADDED,
+        /** An album was renamed. */
+        ALBUM_RENAMED,
+        /** An album left the library. */
+        ALBUM_REMOVED,
+        /** The album's sort order changed, so all of its photos moved. */
+        ALBUM_RESORTED,
+        /** Photos joined the album. */
+        PHOTOS_ADDED,
+        /** Photos left the album. */
+        PHOTOS_REMOVED,
+        /** Photos of the album were edited and may have moved in its sort order. */
+        PHOTOS_EDITED,
+        /** The album's photos were replaced wholesale, by a copy another process saved. */
+        PHOTOS_RELOADED
+    }
+
+    /**
+     * Receives the changes to a library.
+     */
+    public interface Listener {
+        /**
+         * Called on the thread that modified the library, after the change.
+         *
+         * @param event the change
+         */
+        void libraryChanged(LibraryEvent event);
+    }
+
+    private final Type type;
+    private final Album album;
+    private final List<Photo> photos;
+
+    LibraryEvent(Type type, Album album, List<Photo> photos) {
+        this.type = type;
+        this.album = album;
+        this.photos = photos;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Returns the album that changed, or that the changed photos belong to.
+     *
+     * @return the album
+     */
+    public Album getAlbum() {
+        return album;
+    }
+
+    /**
+     * Returns the photos the change is about.
+     *
+     * @return an unmodifiable list, empty for album-level changes
+     */
+    public List<Photo> getPhotos() {
+        return photos;
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + album.getName() + " (" + photos.size() + " photo(s))";
+    }
+}
@@ -0,0 +1,159 @@
+/**
+ * An immutable copy of a user's whole library at one moment.
+ *
+ * <p>
+ * The user's albums and photos are changed in place on the thread that owns the user: the
+ * JavaFX application thread, or a server request holding the user's session lock. Saves,
+ * searches and server reads run on other threads, and instead of locking the user they read
+ * a library snapshot. The owner publishes a new snapshot with {@link User#publish()}, which
+ * replaces the previous one in a single volatile write, so a reader sees either the old
+ * library or the new one and never a mix of the two.
+ * </p>
+ *
+ * <p>
+ * Snapshots share structure only between albums. Each album and each photo caches its own
+ * snapshot until it changes, so a new library snapshot reuses the album snapshots of every
+ * album that did not change. A changed album is copied again in full: its new snapshot
+ * reuses the snapshots of its unchanged photos, but builds both of its photo lists anew,
+ * which takes time proportional to the album's size. Editing one photo therefore costs a
+ * new snapshot of that photo and two new lists of references for each album holding it.
+ * </p>
+ *
+ * @author Adam Student
+ * @author Neer Patel
+ * @version 1.0
+ */
+package model;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Read-only view of a user's albums and photos, safe to share between threads.
+ */
+public final class LibrarySnapshot {
+
+    private final String username;
+    private final long revision;
+    private final List<AlbumSnapshot> albums;
+    // Every distinct photo of the loaded albums by id, in album order; built on first use.
+    private volatile Map<Long, PhotoSnapshot> photosById;
+
+    LibrarySnapshot(String username, long revision, List<AlbumSnapshot> albums) {
+        this.username = username;
+        this.revision = revision;
+        this.albums = albums;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * Returns the number of this snapshot among those published for the user. It grows by
+     * one with every publish that found a change.
+     *
+     * @return the revision
+     */
+    public long getRevision() {
+        return revision;
+    }
+
+    /**
+     * Returns the albums in the user's order.
+     *
+     * @return an unmodifiable list of the albums
+     */
+    public List<AlbumSnapshot> getAlbums() {
+        return albums;
+    }
+
+    /**
+     * Returns whether the photos of every album were captured.
+     *
+     * @return true if every album snapshot is loaded
+     */
+    public boolean isComplete() {
+        for (AlbumSnapshot album : albums) {
+            if (!album.isLoaded()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finds an album by name, ignoring case.
+     *
+     * @param name the album name
+     * @return the album, or null if there is none with that name
+     */
+    public AlbumSnapshot findAlbum(String name) {
+        if (name == null) {
+            return null;
+        }
+        String key = name.toLowerCase(Locale.ROOT);
+        for (AlbumSnapshot album : albums) {
+            if (album.getName().toLowerCase(Locale.ROOT).equals(key)) {
+                return album;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds an album by id.
+     *
+     * @param id the album id
+     * @return the album, or null if there is none with that id
+     */
+    public AlbumSnapshot findAlbumById(String id) {
+        for (AlbumSnapshot album : albums) {
+            if (album.getId().equals(id)) {
+                return album;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds a photo in any loaded album.
+     *
+     * @param photoId the photo's id
+     * @return the photo, or null if no loaded album holds it
+     */
+    public PhotoSnapshot findPhoto(long photoId) {
+        return photosById().get(photoId);
+    }
+
+    /**
+     * Returns each photo of the loaded albums once, even if it appears in more than one
+     * album, in the same order as {@link PhotoStore#distinctPhotos(User)} at the time the
+     * snapshot was published.
+     *
+     * @return an unmodifiable list of the distinct photos
+     */
+    public List<PhotoSnapshot> distinctPhotos() {
+        return List.copyOf(photosById().values());
+    }
+
+    private Map<Long, PhotoSnapshot> photosById() {
+        Map<Long, PhotoSnapshot> photos = photosById;
+        if (photos == null) {
+            photos = new LinkedHashMap<>();
+            for (AlbumSnapshot album : albums) {
+                if (album.isLoaded()) {
+                    for (PhotoSnapshot photo : album.getPhotos()) {
+                        photos.putIfAbsent(photo.getId(), photo);
+                    }
+                }
+            }
+            photos = Collections.unmodifiableMap(photos);
+            photosById = photos;
+        }
+        return photos;
+    }
+}
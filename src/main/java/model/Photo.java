@@ -7,34 +7,141 @@
  * whenever the photo’s caption or tags are modified. The file path is used to retrieve and display the image.
  * </p>
  *
+ * <p>
+ * The pixel dimensions and EXIF orientation are read from the image header when the photo is
+ * imported and stored here, so layout and sorting never need to open the image file again.
+ * A perceptual hash of the image content is stored as well once it has been computed, and is
+ * used to spot resized or re-exported copies of the same shot, together with a digest of the
+ * file's bytes that identifies exact copies and detects changes to the file.
+ * </p>
+ *
+ * <p>
+ * Every photo has a permanent numeric id. Equality and hashing use only the id, so they are
+ * cheap and stay valid while the caption, tags or even the file path change.
+ * </p>
+ *
+ * <p>
+ * A photo is changed in place by its owner's thread. Other threads read it through an
+ * immutable {@link PhotoSnapshot}, which is cached here and dropped by every change.
+ * </p>
+ *
  * @author Adam Student
  * @author Neer Patel
  * @version 1.0
  */
 package model;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.security.SecureRandom;
 import java.time.LocalDateTime;
 import java.util.HashSet;
-import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import util.ContentHasher;
+import util.ImageMetadata;
 
 public class Photo implements Serializable {
     private static final long serialVersionUID = 1L;
 
+    // Ids are handed out in sequence from a random starting point below 2^62, so sequences
+    // of different processes, even ones started in the same millisecond, practically never
+    // overlap, and a sequence has room to grow without wrapping around to 0.
+    private static final AtomicLong NEXT_ID = new AtomicLong((new SecureRandom().nextLong() >>> 2) + 1);
+
+    // Identity of the photo: never changes, and is the only thing equals and hashCode look at.
+    private long id;
     private String filepath;
     private String caption;
     private final LocalDateTime dateTaken;
     private Set<Tag> tags;
     private LocalDateTime lastEdited;
+    // Pixel dimensions as stored in the file (0 if unknown) and the EXIF orientation (1-8).
+    private int width;
+    private int height;
+    private int orientation;
+    // 64-bit difference hash of the image content; only meaningful if perceptualHashed is set.
+    private long perceptualHash;
+    private boolean perceptualHashed;
+    // SHA-256 of the file content with the size and time it was computed for; null until hashed.
+    private ContentHasher.Digest contentDigest;
+    // Immutable copy of the fields above; null after any change until asked for again.
+    private transient PhotoSnapshot snapshot;
+    // Set when the photo was read from a file saved before ids existed.
+    private transient boolean unsavedId;
 
     public Photo(String filepath, String caption, LocalDateTime dateTaken) {
+        this.id = NEXT_ID.getAndIncrement();
         this.filepath = filepath;
         this.caption = caption;
         this.dateTaken = dateTaken;
         this.tags = new HashSet<>();
     }
 
+    public Photo(String filepath, String caption, LocalDateTime dateTaken, int width, int height, int orientation) {
+        this(filepath, caption, dateTaken);
+        this.width = width;
+        this.height = height;
+        this.orientation = orientation;
+    }
+
+    // Recreates a photo, id included, from a snapshot; used to write snapshots to disk.
+    Photo(PhotoSnapshot s) {
+        this.id = s.getId();
+        this.filepath = s.getFilepath();
+        this.caption = s.getCaption();
+        this.dateTaken = s.getDateTaken();
+        this.tags = new HashSet<>(s.getTags());
+        this.lastEdited = s.getLastEdited();
+        this.width = s.getWidth();
+        this.height = s.getHeight();
+        this.orientation = s.getRawOrientation();
+        this.perceptualHash = s.getPerceptualHash();
+        this.perceptualHashed = s.hasPerceptualHash();
+        this.contentDigest = s.getContentDigest();
+    }
+
+    /**
+     * Takes over the caption, tags and other metadata of a stored copy of this photo if that
+     * copy was edited more recently, as when another process edited the photo. The file path
+     * is kept, since the album indexes the photo by it.
+     *
+     * @param stored the same photo as read from disk
+     * @return true if the stored copy was newer and was taken over
+     */
+    boolean adoptIfNewer(Photo stored) {
+        if (stored.lastEdited == null || (lastEdited != null && !stored.lastEdited.isAfter(lastEdited))) {
+            return false;
+        }
+        caption = stored.caption;
+        tags = stored.tags;
+        lastEdited = stored.lastEdited;
+        width = stored.width;
+        height = stored.height;
+        orientation = stored.orientation;
+        perceptualHash = stored.perceptualHash;
+        perceptualHashed = stored.perceptualHashed;
+        contentDigest = stored.contentDigest;
+        snapshot = null;
+        return true;
+    }
+
+    /**
+     * Returns an immutable copy of the photo as it is now. Must be called on the thread that
+     * modifies the photo; the copy itself may be handed to and read by any thread. Repeated
+     * calls return the same copy until the photo changes.
+     *
+     * @return the snapshot
+     */
+    public PhotoSnapshot snapshot() {
+        if (snapshot == null) {
+            snapshot = new PhotoSnapshot(id, filepath, caption, dateTaken, tags, lastEdited, width, height,
+                    orientation, perceptualHash, perceptualHashed, contentDigest);
+        }
+        return snapshot;
+    }
+
     public void addTag(Tag tag) {
         // Enforce single-value restriction for certain tag types
         if ("location".equalsIgnoreCase(tag.getName())) {
@@ -42,12 +149,28 @@ public class Photo implements Serializable {
         }
         tags.add(tag); // Add the tag (Set ensures no duplicates)
         this.lastEdited = LocalDateTime.now();
+        snapshot = null;
+    }
+
+    /**
+     * Replaces this photo's tags with their canonical instances from a dictionary.
+     *
+     * @param dictionary the owning user's tag dictionary
+     */
+    public void internTags(TagDictionary dictionary) {
+        Set<Tag> interned = new HashSet<>(Math.max(4, tags.size() * 2));
+        for (Tag tag : tags) {
+            interned.add(dictionary.intern(tag));
+        }
+        tags = interned;
+        snapshot = null;
     }
 
     public void removeTag(Tag tag) {
         if (tags.contains(tag))
             tags.remove(tag);
         this.lastEdited = LocalDateTime.now();
+        snapshot = null;
     }
 
     public LocalDateTime getDateTaken() {
@@ -58,6 +181,18 @@ public class Photo implements Serializable {
         return filepath;
     }
 
+    /**
+     * Points the photo at a new location after its file was moved or renamed on disk.
+     * Albums index their photos by path, so moves go through
+     * {@link User#relocatePhotos(Album, java.util.Map)}, which re-keys every album holding it.
+     *
+     * @param filepath the new path of the same file
+     */
+    public void setFilepath(String filepath) {
+        this.filepath = filepath;
+        snapshot = null;
+    }
+
     public String getCaption() {
         return caption;
     }
@@ -65,6 +200,7 @@ public class Photo implements Serializable {
     public void setCaption(String caption) {
         this.caption = caption;
         this.lastEdited = LocalDateTime.now();
+        snapshot = null;
     }
 
     public Set<Tag> getTags() {
@@ -75,6 +211,96 @@ public class Photo implements Serializable {
         return lastEdited;
     }
 
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getOrientation() {
+        return orientation == 0 ? 1 : orientation;
+    }
+
+    /**
+     * Returns the width of the photo as displayed, after its EXIF orientation is applied.
+     *
+     * @return the displayed width in pixels, 0 if unknown
+     */
+    public int getDisplayWidth() {
+        return ImageMetadata.swapsAxes(orientation) ? height : width;
+    }
+
+    /**
+     * Returns the height of the photo as displayed, after its EXIF orientation is applied.
+     *
+     * @return the displayed height in pixels, 0 if unknown
+     */
+    public int getDisplayHeight() {
+        return ImageMetadata.swapsAxes(orientation) ? width : height;
+    }
+
+    public boolean hasDimensions() {
+        return width > 0 && height > 0;
+    }
+
+    /**
+     * Records the header metadata of the image. Used at import time and to backfill
+     * photos saved before dimensions were stored; does not count as an edit.
+     */
+    public void setDimensions(int width, int height, int orientation) {
+        this.width = width;
+        this.height = height;
+        this.orientation = orientation;
+        snapshot = null;
+    }
+
+    public boolean hasPerceptualHash() {
+        return perceptualHashed;
+    }
+
+    public long getPerceptualHash() {
+        return perceptualHash;
+    }
+
+    public void setPerceptualHash(long perceptualHash) {
+        this.perceptualHash = perceptualHash;
+        this.perceptualHashed = true;
+        snapshot = null;
+    }
+
+    public ContentHasher.Digest getContentDigest() {
+        return contentDigest;
+    }
+
+    public void setContentDigest(ContentHasher.Digest contentDigest) {
+        this.contentDigest = contentDigest;
+        snapshot = null;
+    }
+
+    /**
+     * Returns whether this photo's file has the same content as another photo's, judged by
+     * their stored digests.
+     *
+     * @param other the photo to compare with
+     * @return true if both have digests and they are equal
+     */
+    public boolean hasSameContent(Photo other) {
+        return contentDigest != null && other.contentDigest != null
+                && contentDigest.getHash().equals(other.contentDigest.getHash());
+    }
+
+    /**
+     * Returns the photo's permanent id. A photo copied into several albums is the same photo
+     * and has the same id; two photos of the same file added separately have different ids.
+     *
+     * @return the id
+     */
+    public long getId() {
+        return id;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (o == this)
@@ -82,14 +308,40 @@ public class Photo implements Serializable {
         if (!(o instanceof Photo)) {
             return false;
         }
-        Photo photo = (Photo) o;
-        return Objects.equals(filepath, photo.getFilepath()) && Objects.equals(caption, photo.getCaption())
-                && Objects.equals(dateTaken, photo.getDateTaken()) && Objects.equals(tags, photo.getTags());
+        return id == ((Photo) o).id;
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(filepath, caption, dateTaken, tags);
+        return Long.hashCode(id);
+    }
+
+    /**
+     * Gives the photo a new id, when a copy read from another process's save turns out to
+     * share its id with a different photo here.
+     */
+    void renumber() {
+        id = NEXT_ID.getAndIncrement();
+        snapshot = null;
+    }
+
+    // Photos saved before ids existed get one on load; it is kept from the next save on.
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (id == 0) {
+            id = NEXT_ID.getAndIncrement();
+            unsavedId = true;
+        }
+    }
+
+    /**
+     * Returns whether the photo was given its id as it was read, because it was saved
+     * before ids existed.
+     *
+     * @return true if the id was made up on load
+     */
+    boolean hasUnsavedId() {
+        return unsavedId;
     }
 
     @Override
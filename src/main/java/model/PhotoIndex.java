@@ -0,0 +1,288 @@
+/**
+ * Which of a user's albums hold each photo, and each photo's perceptual hash, saved with
+ * the user record.
+ *
+ * <p>
+ * Album photos live in files of their own and are loaded only when needed, so asking the
+ * albums themselves which of them hold a photo, or which photos look alike, would load the
+ * whole library. The index answers both from the user record instead: it maps every photo
+ * id to the ids of the albums holding it and to the photo's file path, and keeps a BK-tree
+ * over the photo ids by perceptual hash, rebuilt from the saved hashes on first use. The user keeps it current
+ * from its {@link LibraryEvent}s; a photo's entry is dropped when the last album holding it
+ * lets it go.
+ * </p>
+ *
+ * @author Adam Student
+ * @author Neer Patel
+ * @version 1.0
+ */
+package model;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import util.BKTree;
+
+final class PhotoIndex implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    // One photo: the albums holding it, its file path, and its hash once known.
+    private static final class Entry implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        String[] albumIds = new String[0];
+        boolean hashed;
+        long hash;
+        // Null only in entries saved before paths were recorded.
+        String path;
+    }
+
+    private final HashMap<Long, Entry> entries = new HashMap<>();
+    // Near-duplicate index over the ids of hashed photos; rebuilt from the entries on first use.
+    private transient BKTree<Long> similarity;
+
+    /**
+     * Brings the index up to date with a change to the library.
+     *
+     * @param event the change
+     */
+    void apply(LibraryEvent event) {
+        String albumId = event.getAlbum().getId();
+        switch (event.getType()) {
+            case ALBUM_ADDED:
+                // Albums built before they joined the user bring their photos along. An album
+                // that is not loaded came from another process's save; see copyAlbum.
+                if (event.getAlbum().isLoaded()) {
+                    for (Photo p : event.getAlbum().getPhotos()) {
+                        add(albumId, p);
+                    }
+                }
+                break;
+            case ALBUM_REMOVED:
+                removeAlbum(albumId);
+                break;
+            case PHOTOS_ADDED:
+                for (Photo p : event.getPhotos()) {
+                    add(albumId, p);
+                }
+                break;
+            case PHOTOS_REMOVED:
+                for (Photo p : event.getPhotos()) {
+                    remove(albumId, p.getId());
+                }
+                break;
+            case PHOTOS_EDITED:
+                for (Photo p : event.getPhotos()) {
+                    Entry entry = entries.get(p.getId());
+                    if (entry != null) {
+                        entry.path = p.getFilepath(); // Moving a file is reported as an edit.
+                        updateHash(p.getId(), entry, p);
+                    }
+                }
+                break;
+            default:
+                // Renames and sorting do not change membership; reloads are handled by copyAlbum.
+                break;
+        }
+    }
+
+    /**
+     * Records that an album holds a photo.
+     *
+     * @param albumId the album's id
+     * @param p       the photo
+     */
+    void add(String albumId, Photo p) {
+        Entry entry = entries.computeIfAbsent(p.getId(), id -> new Entry());
+        if (!Arrays.asList(entry.albumIds).contains(albumId)) {
+            entry.albumIds = Arrays.copyOf(entry.albumIds, entry.albumIds.length + 1);
+            entry.albumIds[entry.albumIds.length - 1] = albumId;
+        }
+        entry.path = p.getFilepath();
+        updateHash(p.getId(), entry, p);
+    }
+
+    /**
+     * Records that an album no longer holds a photo, dropping the photo once no album does.
+     *
+     * @param albumId the album's id
+     * @param photoId the photo's id
+     */
+    void remove(String albumId, long photoId) {
+        Entry entry = entries.get(photoId);
+        if (entry == null) {
+            return;
+        }
+        List<String> kept = new ArrayList<>(Arrays.asList(entry.albumIds));
+        kept.remove(albumId);
+        if (kept.isEmpty()) {
+            drop(photoId, entry);
+            entries.remove(photoId);
+        } else {
+            entry.albumIds = kept.toArray(new String[0]);
+        }
+    }
+
+    /**
+     * Makes an album's photos those the other index records for it, for an album whose
+     * photos were taken over wholesale from another process's save along with that index.
+     *
+     * @param albumId the album's id
+     * @param from    the index saved with the album
+     */
+    void copyAlbum(String albumId, PhotoIndex from) {
+        removeAlbum(albumId);
+        for (Map.Entry<Long, Entry> theirs : from.entries.entrySet()) {
+            if (!Arrays.asList(theirs.getValue().albumIds).contains(albumId)) {
+                continue;
+            }
+            long photoId = theirs.getKey();
+            Entry entry = entries.computeIfAbsent(photoId, id -> new Entry());
+            entry.albumIds = Arrays.copyOf(entry.albumIds, entry.albumIds.length + 1);
+            entry.albumIds[entry.albumIds.length - 1] = albumId;
+            if (entry.path == null) {
+                entry.path = theirs.getValue().path;
+            }
+            if (!entry.hashed && theirs.getValue().hashed) {
+                entry.hashed = true;
+                entry.hash = theirs.getValue().hash;
+                if (similarity != null) {
+                    similarity.add(entry.hash, photoId);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the ids of the albums holding a photo.
+     *
+     * @param photoId the photo's id
+     * @return the album ids, empty if no album holds the photo
+     */
+    List<String> albumsOf(long photoId) {
+        Entry entry = entries.get(photoId);
+        return entry == null ? List.of() : Arrays.asList(entry.albumIds);
+    }
+
+    /**
+     * Returns the file paths of all indexed photos.
+     *
+     * @return the paths, each once
+     */
+    Set<String> paths() {
+        Set<String> paths = new HashSet<>();
+        for (Entry entry : entries.values()) {
+            paths.add(entry.path);
+        }
+        return paths;
+    }
+
+    /**
+     * Returns whether some entry was saved before paths were recorded, so the index has to
+     * be rebuilt from the albums for {@link #paths()} to be complete.
+     *
+     * @return true if a path is missing
+     */
+    boolean isMissingPaths() {
+        for (Entry entry : entries.values()) {
+            if (entry.path == null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds the photos whose hash is within the given distance of a hash.
+     *
+     * @param hash        the hash to compare against
+     * @param maxDistance the largest Hamming distance to report
+     * @return the ids of the photos, in no particular order
+     */
+    List<Long> similar(long hash, int maxDistance) {
+        return similarity().search(hash, maxDistance);
+    }
+
+    /**
+     * Groups the hashed photos into clusters of near-duplicates.
+     *
+     * @param maxDistance the largest Hamming distance between hashes within a group
+     * @return the ids of groups of two or more photos that look alike
+     */
+    List<List<Long>> duplicateGroups(int maxDistance) {
+        List<List<Long>> groups = new ArrayList<>();
+        Set<Long> grouped = new HashSet<>();
+        for (Map.Entry<Long, Entry> entry : entries.entrySet()) {
+            if (!entry.getValue().hashed || !grouped.add(entry.getKey())) {
+                continue;
+            }
+            List<Long> group = new ArrayList<>();
+            group.add(entry.getKey());
+            for (long similar : similar(entry.getValue().hash, maxDistance)) {
+                if (grouped.add(similar)) {
+                    group.add(similar);
+                }
+            }
+            if (group.size() > 1) {
+                groups.add(group);
+            }
+        }
+        return groups;
+    }
+
+    private void removeAlbum(String albumId) {
+        Iterator<Map.Entry<Long, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Entry> entry = it.next();
+            List<String> kept = new ArrayList<>(Arrays.asList(entry.getValue().albumIds));
+            if (!kept.remove(albumId)) {
+                continue;
+            }
+            if (kept.isEmpty()) {
+                drop(entry.getKey(), entry.getValue());
+                it.remove();
+            } else {
+                entry.getValue().albumIds = kept.toArray(new String[0]);
+            }
+        }
+    }
+
+    // Indexes the photo's hash if it is new or changed.
+    private void updateHash(long photoId, Entry entry, Photo p) {
+        if (!p.hasPerceptualHash() || (entry.hashed && entry.hash == p.getPerceptualHash())) {
+            return;
+        }
+        drop(photoId, entry);
+        entry.hashed = true;
+        entry.hash = p.getPerceptualHash();
+        if (similarity != null) {
+            similarity.add(entry.hash, photoId);
+        }
+    }
+
+    // Takes a photo out of the similarity tree.
+    private void drop(long photoId, Entry entry) {
+        if (entry.hashed && similarity != null) {
+            similarity.remove(entry.hash, photoId);
+        }
+    }
+
+    private BKTree<Long> similarity() {
+        if (similarity == null) {
+            similarity = new BKTree<>();
+            for (Map.Entry<Long, Entry> entry : entries.entrySet()) {
+                if (entry.getValue().hashed) {
+                    similarity.add(entry.getValue().hash, entry.getKey());
+                }
+            }
+        }
+        return similarity;
+    }
+}
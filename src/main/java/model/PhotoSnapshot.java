@@ -0,0 +1,141 @@
+/**
+ * An immutable copy of a photo's fields at one moment.
+ *
+ * <p>
+ * Photos are edited in place on the thread that owns the user, so a background task that
+ * read a {@link Photo} directly could see a caption from before an edit and tags from after
+ * it, or a tag set in the middle of being changed. Snapshots are what such tasks read
+ * instead. A photo caches its snapshot until it is next changed, so taking snapshots of
+ * photos that have not changed costs nothing and the same snapshot is shared by every
+ * library snapshot that contains the photo.
+ * </p>
+ *
+ * @author Adam Student
+ * @author Neer Patel
+ * @version 1.0
+ */
+package model;
+
+import java.time.LocalDateTime;
+import java.util.Set;
+
+import util.ContentHasher;
+import util.ImageMetadata;
+
+/**
+ * Read-only view of a photo, safe to share between threads.
+ */
+public final class PhotoSnapshot {
+
+    private final long id;
+    private final String filepath;
+    private final String caption;
+    private final LocalDateTime dateTaken;
+    private final Set<Tag> tags;
+    private final LocalDateTime lastEdited;
+    private final int width;
+    private final int height;
+    private final int orientation;
+    private final long perceptualHash;
+    private final boolean perceptualHashed;
+    private final ContentHasher.Digest contentDigest;
+
+    PhotoSnapshot(long id, String filepath, String caption, LocalDateTime dateTaken, Set<Tag> tags,
+            LocalDateTime lastEdited, int width, int height, int orientation, long perceptualHash,
+            boolean perceptualHashed, ContentHasher.Digest contentDigest) {
+        this.id = id;
+        this.filepath = filepath;
+        this.caption = caption;
+        this.dateTaken = dateTaken;
+        // Copying hashes every tag here, on the owner's thread, before the snapshot is shared.
+        this.tags = Set.copyOf(tags);
+        this.lastEdited = lastEdited;
+        this.width = width;
+        this.height = height;
+        this.orientation = orientation;
+        this.perceptualHash = perceptualHash;
+        this.perceptualHashed = perceptualHashed;
+        this.contentDigest = contentDigest;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getFilepath() {
+        return filepath;
+    }
+
+    public String getCaption() {
+        return caption;
+    }
+
+    public LocalDateTime getDateTaken() {
+        return dateTaken;
+    }
+
+    /**
+     * Returns the photo's tags.
+     *
+     * @return an unmodifiable set of the tags
+     */
+    public Set<Tag> getTags() {
+        return tags;
+    }
+
+    public LocalDateTime getLastEdited() {
+        return lastEdited;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getOrientation() {
+        return orientation == 0 ? 1 : orientation;
+    }
+
+    /**
+     * Returns the width of the photo as displayed, after its EXIF orientation is applied.
+     *
+     * @return the displayed width in pixels, 0 if unknown
+     */
+    public int getDisplayWidth() {
+        return ImageMetadata.swapsAxes(orientation) ? height : width;
+    }
+
+    /**
+     * Returns the height of the photo as displayed, after its EXIF orientation is applied.
+     *
+     * @return the displayed height in pixels, 0 if unknown
+     */
+    public int getDisplayHeight() {
+        return ImageMetadata.swapsAxes(orientation) ? width : height;
+    }
+
+    // The orientation as stored, 0 for photos saved before it was recorded.
+    int getRawOrientation() {
+        return orientation;
+    }
+
+    public boolean hasPerceptualHash() {
+        return perceptualHashed;
+    }
+
+    public long getPerceptualHash() {
+        return perceptualHash;
+    }
+
+    public ContentHasher.Digest getContentDigest() {
+        return contentDigest;
+    }
+
+    @Override
+    public String toString() {
+        return (caption == null || caption.isEmpty()) ? "Photo: " + filepath : caption;
+    }
+}
@@ -0,0 +1,664 @@
+/**
+ * A compact, column-oriented copy of the metadata of many photos.
+ *
+ * <p>
+ * Each {@link Photo} is a small graph of objects: a path string, a caption, two date-time
+ * objects and a hash set of tags, most of whose memory goes to object headers and pointers.
+ * A PhotoStore keeps the same metadata as one column per field instead. Dates are stored as
+ * epoch seconds and nanoseconds, paths as an index into a dictionary of folders plus a file
+ * name in a packed UTF-8 string section, captions the same way, and tags both per row and as
+ * sorted posting lists of rows per tag. A row costs a few dozen bytes, and date and tag
+ * queries run as sequential scans over the columns.
+ * </p>
+ *
+ * <p>
+ * All columns live in a single {@link ByteBuffer} laid out as a header, a table of section
+ * offsets and the sections themselves. The buffer may be an ordinary heap buffer, a direct
+ * buffer outside the Java heap, or a read-only mapping of a store file. Either way the store
+ * itself is one buffer plus the small table of distinct tags, rather than several objects per
+ * photo.
+ * </p>
+ *
+ * <p>
+ * Every saved album has such a file next to its photo file, written by the same save and
+ * stamped with the album revision it describes (see {@link Album#mapStore()}). Mapping it
+ * reads an album's metadata without loading its photos: the columns are paged in from the
+ * file as they are read and never copied onto the Java heap.
+ * </p>
+ *
+ * <p>
+ * A store is built from photos in a given order, and row {@code i} describes the
+ * {@code i}-th photo, so callers can map query results back to their own photo list. Rows
+ * are read through {@link Row}, a lightweight view with the same getters as Photo. A store
+ * is a snapshot: later edits to the photos it was built from are not reflected in it.
+ * </p>
+ *
+ * @author Adam Student
+ * @author Neer Patel
+ * @version 1.0
+ */
+package model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import util.VersionedFile;
+
+public class PhotoStore {
+
+    private static final int MAGIC = 0x50535452; // "PSTR"
+    private static final int VERSION = 2;
+
+    // Marks a missing date in the seconds columns.
+    private static final long NO_DATE = Long.MIN_VALUE;
+
+    // Sections, in the order they are written; the header holds the offset of each.
+    private static final int IDS = 0;
+    private static final int TAKEN_SECONDS = 1;
+    private static final int TAKEN_NANOS = 2;
+    private static final int EDITED_SECONDS = 3;
+    private static final int EDITED_NANOS = 4;
+    private static final int FOLDER_IDS = 5;
+    private static final int WIDTHS = 6;
+    private static final int HEIGHTS = 7;
+    private static final int ORIENTATIONS = 8;
+    private static final int FILE_NAMES = 9;
+    private static final int CAPTIONS = 10;
+    private static final int FOLDERS = 11;
+    // The tags of row r are the tag ids from TAG_OFFSETS[r] up to TAG_OFFSETS[r + 1].
+    private static final int TAG_OFFSETS = 12;
+    private static final int TAG_IDS = 13;
+    // Each distinct tag as name, NUL, value.
+    private static final int TAG_NAMES = 14;
+    // The rows carrying tag t, ascending, are POSTINGS[POSTING_OFFSETS[t]] up to POSTINGS[POSTING_OFFSETS[t + 1]].
+    private static final int POSTING_OFFSETS = 15;
+    private static final int POSTINGS = 16;
+    private static final int SECTION_COUNT = 17;
+
+    // Magic, version, row count, the album revision, then one offset per section.
+    private static final int REVISION_OFFSET = 12;
+    private static final int SECTIONS_OFFSET = 20;
+    private static final int HEADER_BYTES = SECTIONS_OFFSET + 4 * SECTION_COUNT;
+
+    private final ByteBuffer buffer;
+    private final int size;
+    private final int[] sections = new int[SECTION_COUNT];
+    // The distinct tags, decoded once; there are few of them however many photos there are.
+    private final Tag[] tags;
+    private final Map<Tag, Integer> tagIndex = new HashMap<>();
+
+    /**
+     * A read-only view of one row, with the same getters as {@link Photo}. Views hold only
+     * the store and the row number, so they are cheap to create and discard.
+     */
+    public final class Row {
+        private final int row;
+
+        private Row(int row) {
+            this.row = row;
+        }
+
+        public int getRow() {
+            return row;
+        }
+
+        public long getId() {
+            return longAt(IDS, row);
+        }
+
+        public String getFilepath() {
+            return Paths.get(string(FOLDERS, intAt(FOLDER_IDS, row)), string(FILE_NAMES, row)).toString();
+        }
+
+        public String getCaption() {
+            return string(CAPTIONS, row);
+        }
+
+        public LocalDateTime getDateTaken() {
+            return toDate(longAt(TAKEN_SECONDS, row), intAt(TAKEN_NANOS, row));
+        }
+
+        public LocalDateTime getLastEdited() {
+            return toDate(longAt(EDITED_SECONDS, row), intAt(EDITED_NANOS, row));
+        }
+
+        public int getWidth() {
+            return intAt(WIDTHS, row);
+        }
+
+        public int getHeight() {
+            return intAt(HEIGHTS, row);
+        }
+
+        public int getOrientation() {
+            return buffer.get(sections[ORIENTATIONS] + row);
+        }
+
+        public List<Tag> getTags() {
+            int from = intAt(TAG_OFFSETS, row);
+            int to = intAt(TAG_OFFSETS, row + 1);
+            List<Tag> rowTags = new ArrayList<>(to - from);
+            for (int i = from; i < to; i++) {
+                rowTags.add(tags[intAt(TAG_IDS, i)]);
+            }
+            return rowTags;
+        }
+
+        /**
+         * Copies the row into a snapshot, for code written against snapshots. The store keeps
+         * no hashes, so the copy has none.
+         *
+         * @return the snapshot
+         */
+        public PhotoSnapshot toSnapshot() {
+            return new PhotoSnapshot(getId(), getFilepath(), getCaption(), getDateTaken(), new HashSet<>(getTags()),
+                    getLastEdited(), getWidth(), getHeight(), getOrientation(), 0, false, null);
+        }
+
+        @Override
+        public String toString() {
+            String caption = getCaption();
+            return caption.isEmpty() ? "Photo: " + getFilepath() : caption;
+        }
+    }
+
+    private PhotoStore(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a photo store");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported photo store version " + buffer.getInt(4));
+        }
+        size = buffer.getInt(8);
+        for (int s = 0; s < SECTION_COUNT; s++) {
+            sections[s] = buffer.getInt(SECTIONS_OFFSET + 4 * s);
+        }
+        tags = new Tag[buffer.getInt(sections[TAG_NAMES])];
+        for (int t = 0; t < tags.length; t++) {
+            String entry = string(TAG_NAMES, t);
+            int split = entry.indexOf('\u0000');
+            tags[t] = new Tag(entry.substring(0, split), entry.substring(split + 1));
+            tagIndex.put(tags[t], t);
+        }
+    }
+
+    /**
+     * Builds a store on the Java heap with one row per photo, in the order given. Must be
+     * called on the thread that modifies the photos.
+     *
+     * @param photos the photos to copy
+     * @return the store
+     */
+    public static PhotoStore of(List<Photo> photos) {
+        return wrap(ByteBuffer.wrap(encode(snapshots(photos), 0)));
+    }
+
+    /**
+     * Builds a store on the Java heap from a library snapshot, with row i describing element
+     * i of {@link LibrarySnapshot#distinctPhotos()}. May be called on any thread.
+     *
+     * @param library the snapshot to copy
+     * @return the store
+     */
+    public static PhotoStore of(LibrarySnapshot library) {
+        return wrap(ByteBuffer.wrap(encode(library.distinctPhotos(), 0)));
+    }
+
+    /**
+     * Builds a store outside the Java heap, in a direct buffer, with one row per photo in the
+     * order given. The memory is released when the store becomes unreachable. Must be called
+     * on the thread that modifies the photos.
+     *
+     * @param photos the photos to copy
+     * @return the store
+     */
+    public static PhotoStore offHeap(List<Photo> photos) {
+        return direct(encode(snapshots(photos), 0));
+    }
+
+    /**
+     * Builds a store outside the Java heap from a library snapshot, with row i describing
+     * element i of {@link LibrarySnapshot#distinctPhotos()}. May be called on any thread.
+     *
+     * @param library the snapshot to copy
+     * @return the store
+     */
+    public static PhotoStore offHeap(LibrarySnapshot library) {
+        return direct(encode(library.distinctPhotos(), 0));
+    }
+
+    /**
+     * Builds a store from an album snapshot, with row i describing element i of
+     * {@link AlbumSnapshot#getPhotos()}. May be called on any thread.
+     *
+     * @param album   the snapshot to copy, of a loaded album
+     * @param offHeap whether to keep the store in a direct buffer outside the Java heap
+     * @return the store
+     */
+    public static PhotoStore of(AlbumSnapshot album, boolean offHeap) {
+        byte[] encoded = encode(album.getPhotos(), 0);
+        return offHeap ? direct(encoded) : wrap(ByteBuffer.wrap(encoded));
+    }
+
+    /**
+     * Opens a store file by mapping it read-only. Columns are paged in from the file as they
+     * are read and never copied onto the Java heap.
+     *
+     * @param file the store file
+     * @return the store
+     * @throws IOException if the file cannot be mapped or is not a photo store
+     */
+    public static PhotoStore map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            // The mapping stays valid after the channel is closed.
+            return new PhotoStore(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Writes a store file for the photos of an album, through a temporary file and an atomic
+     * move, so a mapping of the previous file stays intact.
+     *
+     * @param file     the store file
+     * @param photos   the album's photos
+     * @param revision the album revision the photos belong to
+     * @throws IOException if the file cannot be written
+     */
+    static void save(Path file, List<PhotoSnapshot> photos, long revision) throws IOException {
+        VersionedFile.replace(file, encode(photos, revision));
+    }
+
+    private static PhotoStore direct(byte[] encoded) {
+        ByteBuffer direct = ByteBuffer.allocateDirect(encoded.length);
+        direct.put(encoded).flip();
+        return wrap(direct);
+    }
+
+    private static List<PhotoSnapshot> snapshots(List<Photo> photos) {
+        List<PhotoSnapshot> snapshots = new ArrayList<>(photos.size());
+        for (Photo photo : photos) {
+            snapshots.add(photo.snapshot());
+        }
+        return snapshots;
+    }
+
+    /**
+     * Lists each photo of a user once, in album order, skipping copies of a photo that
+     * appear in more than one album. Row i of {@code PhotoStore.of(distinctPhotos(user))}
+     * is element i of this list.
+     *
+     * @param user the user
+     * @return the user's distinct photos
+     */
+    public static List<Photo> distinctPhotos(User user) {
+        Set<Photo> distinct = new LinkedHashSet<>();
+        for (Album album : user.getAlbums()) {
+            distinct.addAll(album.getPhotos());
+        }
+        return new ArrayList<>(distinct);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the revision of the album whose saved photos the store describes.
+     *
+     * @return the revision, 0 for stores not built for a saved album
+     */
+    public long getRevision() {
+        return buffer.getLong(REVISION_OFFSET);
+    }
+
+    /**
+     * Returns whether the columns are held outside the Java heap.
+     *
+     * @return true for direct and file-mapped stores
+     */
+    public boolean isOffHeap() {
+        return buffer.isDirect();
+    }
+
+    /**
+     * Returns a view of one row.
+     *
+     * @param row the row number
+     * @return the view
+     */
+    public Row row(int row) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+        }
+        return new Row(row);
+    }
+
+    /**
+     * Finds the rows whose capture time lies in a range, both ends included.
+     *
+     * @param from the earliest capture time
+     * @param to   the latest capture time
+     * @return the matching rows in ascending order
+     */
+    public int[] takenBetween(LocalDateTime from, LocalDateTime to) {
+        long fromSeconds = seconds(from);
+        int fromNanos = nanos(from);
+        long toSeconds = seconds(to);
+        int toNanos = nanos(to);
+        int[] matches = new int[size];
+        int count = 0;
+        for (int row = 0; row < size; row++) {
+            long s = longAt(TAKEN_SECONDS, row);
+            if (s == NO_DATE) {
+                continue;
+            }
+            int n = intAt(TAKEN_NANOS, row);
+            boolean afterStart = s > fromSeconds || (s == fromSeconds && n >= fromNanos);
+            boolean beforeEnd = s < toSeconds || (s == toSeconds && n <= toNanos);
+            if (afterStart && beforeEnd) {
+                matches[count++] = row;
+            }
+        }
+        return Arrays.copyOf(matches, count);
+    }
+
+    /**
+     * Finds the rows carrying every one of the given tags.
+     *
+     * @param required the tags to match
+     * @return the matching rows in ascending order
+     */
+    public int[] taggedWithAll(Collection<Tag> required) {
+        List<int[]> lists = new ArrayList<>();
+        for (Tag tag : required) {
+            int[] posting = posting(tag);
+            if (posting.length == 0) {
+                return posting; // No row has this tag, so none has them all.
+            }
+            lists.add(posting);
+        }
+        if (lists.isEmpty()) {
+            return new int[0];
+        }
+        // Intersect starting from the shortest list, so the work is bounded by the rarest tag.
+        lists.sort((a, b) -> Integer.compare(a.length, b.length));
+        int[] result = lists.get(0);
+        for (int i = 1; i < lists.size() && result.length > 0; i++) {
+            result = intersect(result, lists.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * Finds the rows carrying at least one of the given tags.
+     *
+     * @param wanted the tags to match
+     * @return the matching rows in ascending order
+     */
+    public int[] taggedWithAny(Collection<Tag> wanted) {
+        boolean[] hit = new boolean[size];
+        int count = 0;
+        for (Tag tag : wanted) {
+            for (int row : posting(tag)) {
+                if (!hit[row]) {
+                    hit[row] = true;
+                    count++;
+                }
+            }
+        }
+        int[] matches = new int[count];
+        for (int row = 0, i = 0; i < count; row++) {
+            if (hit[row]) {
+                matches[i++] = row;
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Returns the distinct tags used in the store.
+     *
+     * @return the tags, in order of first use
+     */
+    public List<Tag> getTags() {
+        return Collections.unmodifiableList(Arrays.asList(tags));
+    }
+
+    private static PhotoStore wrap(ByteBuffer buffer) {
+        try {
+            return new PhotoStore(buffer);
+        } catch (IOException e) {
+            throw new IllegalStateException("Encoded photo store is invalid", e);
+        }
+    }
+
+    // Lays out the columns of the given photos in the store format.
+    static byte[] encode(List<PhotoSnapshot> photos, long revision) {
+        int n = photos.size();
+        Map<String, Integer> folderIndex = new HashMap<>();
+        Map<Tag, Integer> tagIds = new HashMap<>();
+        List<String> folders = new ArrayList<>();
+        List<Tag> tags = new ArrayList<>();
+        int[] rowFolders = new int[n];
+        List<String> fileNames = new ArrayList<>(n);
+        List<String> captions = new ArrayList<>(n);
+        int[] tagOffsets = new int[n + 1];
+        int[] rowTags = new int[Math.max(16, n)];
+        int tagCount = 0;
+        for (int row = 0; row < n; row++) {
+            PhotoSnapshot photo = photos.get(row);
+            Path path = Paths.get(photo.getFilepath());
+            String folder = path.getParent() == null ? "" : path.getParent().toString();
+            rowFolders[row] = folderIndex.computeIfAbsent(folder, f -> {
+                folders.add(f);
+                return folders.size() - 1;
+            });
+            fileNames.add(path.getFileName() == null ? "" : path.getFileName().toString());
+            captions.add(photo.getCaption());
+            for (Tag tag : photo.getTags()) {
+                if (tagCount == rowTags.length) {
+                    rowTags = Arrays.copyOf(rowTags, rowTags.length * 2);
+                }
+                rowTags[tagCount++] = tagIds.computeIfAbsent(tag, t -> {
+                    tags.add(t);
+                    return tags.size() - 1;
+                });
+            }
+            tagOffsets[row + 1] = tagCount;
+        }
+
+        // Rows are visited in order, so each posting list comes out sorted.
+        int[] postingOffsets = new int[tags.size() + 1];
+        for (int i = 0; i < tagCount; i++) {
+            postingOffsets[rowTags[i] + 1]++;
+        }
+        for (int t = 0; t < tags.size(); t++) {
+            postingOffsets[t + 1] += postingOffsets[t];
+        }
+        int[] postings = new int[tagCount];
+        int[] filled = Arrays.copyOf(postingOffsets, tags.size());
+        for (int row = 0; row < n; row++) {
+            for (int i = tagOffsets[row]; i < tagOffsets[row + 1]; i++) {
+                postings[filled[rowTags[i]]++] = row;
+            }
+        }
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_BYTES + n * 96);
+            DataOutputStream out = new DataOutputStream(bytes);
+            int[] offsets = new int[SECTION_COUNT];
+            out.write(new byte[HEADER_BYTES]); // Filled in below, once the offsets are known.
+
+            offsets[IDS] = out.size();
+            for (PhotoSnapshot photo : photos) {
+                out.writeLong(photo.getId());
+            }
+            offsets[TAKEN_SECONDS] = out.size();
+            for (PhotoSnapshot photo : photos) {
+                out.writeLong(seconds(photo.getDateTaken()));
+            }
+            offsets[TAKEN_NANOS] = out.size();
+            for (PhotoSnapshot photo : photos) {
+                out.writeInt(nanos(photo.getDateTaken()));
+            }
+            offsets[EDITED_SECONDS] = out.size();
+            for (PhotoSnapshot photo : photos) {
+                out.writeLong(seconds(photo.getLastEdited()));
+            }
+            offsets[EDITED_NANOS] = out.size();
+            for (PhotoSnapshot photo : photos) {
+                out.writeInt(nanos(photo.getLastEdited()));
+            }
+            offsets[FOLDER_IDS] = out.size();
+            writeInts(out, rowFolders, n);
+            offsets[WIDTHS] = out.size();
+            for (PhotoSnapshot photo : photos) {
+                out.writeInt(photo.getWidth());
+            }
+            offsets[HEIGHTS] = out.size();
+            for (PhotoSnapshot photo : photos) {
+                out.writeInt(photo.getHeight());
+            }
+            offsets[ORIENTATIONS] = out.size();
+            for (PhotoSnapshot photo : photos) {
+                out.writeByte(photo.getOrientation());
+            }
+            offsets[FILE_NAMES] = out.size();
+            writeStrings(out, fileNames);
+            offsets[CAPTIONS] = out.size();
+            writeStrings(out, captions);
+            offsets[FOLDERS] = out.size();
+            writeStrings(out, folders);
+            offsets[TAG_OFFSETS] = out.size();
+            writeInts(out, tagOffsets, n + 1);
+            offsets[TAG_IDS] = out.size();
+            writeInts(out, rowTags, tagCount);
+            offsets[TAG_NAMES] = out.size();
+            List<String> tagNames = new ArrayList<>(tags.size());
+            for (Tag tag : tags) {
+                tagNames.add(tag.getName() + '\u0000' + tag.getValue());
+            }
+            writeStrings(out, tagNames);
+            offsets[POSTING_OFFSETS] = out.size();
+            writeInts(out, postingOffsets, postingOffsets.length);
+            offsets[POSTINGS] = out.size();
+            writeInts(out, postings, postings.length);
+            out.flush();
+
+            byte[] encoded = bytes.toByteArray();
+            ByteBuffer header = ByteBuffer.wrap(encoded);
+            header.putInt(MAGIC).putInt(VERSION).putInt(n).putLong(revision);
+            for (int offset : offsets) {
+                header.putInt(offset);
+            }
+            return encoded;
+        } catch (IOException e) {
+            // Writing to an in-memory stream does not fail.
+            throw new IllegalStateException("Cannot encode photo store", e);
+        }
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            out.writeInt(values[i]);
+        }
+    }
+
+    // A string section: the count, count + 1 offsets into the bytes that follow, then the UTF-8 bytes.
+    private static void writeStrings(DataOutputStream out, List<String> values) throws IOException {
+        List<byte[]> encoded = new ArrayList<>(values.size());
+        out.writeInt(values.size());
+        out.writeInt(0);
+        int offset = 0;
+        for (String value : values) {
+            byte[] utf8 = value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+            encoded.add(utf8);
+            offset += utf8.length;
+            out.writeInt(offset);
+        }
+        for (byte[] utf8 : encoded) {
+            out.write(utf8);
+        }
+    }
+
+    private long longAt(int section, int index) {
+        return buffer.getLong(sections[section] + 8 * index);
+    }
+
+    private int intAt(int section, int index) {
+        return buffer.getInt(sections[section] + 4 * index);
+    }
+
+    private String string(int section, int index) {
+        int base = sections[section];
+        int count = buffer.getInt(base);
+        int offsets = base + 4;
+        int start = buffer.getInt(offsets + 4 * index);
+        int end = buffer.getInt(offsets + 4 * (index + 1));
+        byte[] utf8 = new byte[end - start];
+        buffer.get(offsets + 4 * (count + 1) + start, utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    private int[] posting(Tag tag) {
+        Integer t = tagIndex.get(tag);
+        if (t == null) {
+            return new int[0];
+        }
+        int from = intAt(POSTING_OFFSETS, t);
+        int[] rows = new int[intAt(POSTING_OFFSETS, t + 1) - from];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = intAt(POSTINGS, from + i);
+        }
+        return rows;
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        int[] out = new int[Math.min(a.length, b.length)];
+        int i = 0, j = 0, count = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                out[count++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(out, count);
+    }
+
+    private static long seconds(LocalDateTime date) {
+        return date == null ? NO_DATE : date.toEpochSecond(ZoneOffset.UTC);
+    }
+
+    private static int nanos(LocalDateTime date) {
+        return date == null ? 0 : date.getNano();
+    }
+
+    private static LocalDateTime toDate(long seconds, int nanos) {
+        return seconds == NO_DATE ? null : LocalDateTime.ofEpochSecond(seconds, nanos, ZoneOffset.UTC);
+    }
+}
@@ -0,0 +1,187 @@
+/**
+ * A user's saved state captured in memory, to be written to disk later on another thread.
+ *
+ * <p>
+ * Capturing publishes a {@link LibrarySnapshot} of the user, serializes the user record,
+ * which holds only the album headers, into a byte array, and keeps the snapshots of the
+ * photos of every album with unsaved changes. That is the only step that reads the model,
+ * so it runs on the thread that owns the model. The slow parts, serializing the photos and
+ * writing the files, work from the immutable snapshots on another thread. Album photo
+ * files, and the {@link PhotoStore} files of their metadata stamped with the album's new
+ * revision, are written before the user record that refers to them, each to a temporary file
+ * that is then moved into place, so a crash mid-save leaves the previous files intact.
+ * Albums are marked saved only after their file has been written, and only if they have
+ * not changed again since the capture.
+ * </p>
+ *
+ * <p>
+ * The user file is stamped with a version, and a batch remembers the version its user was
+ * based on. Writing takes the user file's cross-process lock, and only if the file on disk
+ * still has that version are the new files moved into place, stamped one higher. If another
+ * process saved the user in the meantime, nothing is written and the caller merges the
+ * stored user into its own with {@link User#mergeStored(User, long)} and saves again.
+ * </p>
+ *
+ * @author Adam Student
+ * @author Neer Patel
+ * @version 1.0
+ */
+package model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import util.VersionedFile;
+
+public class SaveBatch {
+
+    // Set on the capturing thread while the user is being serialized; read by Album.writeObject.
+    private static final ThreadLocal<SaveBatch> CAPTURING = new ThreadLocal<>();
+
+    private static class AlbumWrite {
+        final Album album;
+        final String file;
+        final String storeFile;
+        final List<PhotoSnapshot> photos;
+        final long version;
+        final long revision;
+
+        AlbumWrite(Album album, String file, String storeFile, List<PhotoSnapshot> photos, long version,
+                long revision) {
+            this.album = album;
+            this.file = file;
+            this.storeFile = storeFile;
+            this.photos = photos;
+            this.version = version;
+            this.revision = revision;
+        }
+    }
+
+    private final List<AlbumWrite> albums = new ArrayList<>();
+    private User user;
+    private LibrarySnapshot library;
+    private byte[] userRecord;
+    // Version of the user file this batch was captured on top of; it writes the next one.
+    private long baseVersion;
+    // Ids of the stored albums the user had removed when captured.
+    private Set<String> removedAlbums;
+
+    private SaveBatch() {
+    }
+
+    /**
+     * Captures a user's state. Must be called on the thread that modifies the user.
+     *
+     * @param user the user to save
+     * @return the captured state
+     * @throws IOException if the user cannot be serialized
+     */
+    public static SaveBatch capture(User user) throws IOException {
+        SaveBatch batch = new SaveBatch();
+        batch.user = user;
+        // Publishing first leaves every album's snapshot cached for writeObject to hand over.
+        batch.library = user.publish();
+        // A later batch builds on this one, which is queued to be written before it.
+        batch.baseVersion = user.storedVersion;
+        user.storedVersion++;
+        batch.removedAlbums = new HashSet<>(user.removedAlbumIds);
+        CAPTURING.set(batch);
+        try {
+            batch.userRecord = serialize(user);
+        } finally {
+            CAPTURING.remove();
+        }
+        return batch;
+    }
+
+    static SaveBatch capturing() {
+        return CAPTURING.get();
+    }
+
+    /**
+     * Returns the library snapshot published when the batch was captured, which is exactly
+     * what the batch saves.
+     *
+     * @return the snapshot
+     */
+    public LibrarySnapshot getLibrary() {
+        return library;
+    }
+
+    void addAlbum(Album album, String file, String storeFile, List<PhotoSnapshot> photos, long version,
+            long revision) {
+        albums.add(new AlbumWrite(album, file, storeFile, photos, version, revision));
+    }
+
+    /**
+     * Writes the captured files, unless another process saved the user since the version
+     * this batch is based on. May be called on any thread.
+     *
+     * @param userFile the file to write the user record to
+     * @return true if written, false if the user file had moved on and nothing was written
+     * @throws IOException if a file cannot be written; files already written are kept
+     */
+    @SuppressWarnings("try") // The lock is held for the block, never used in it.
+    public boolean write(String userFile) throws IOException {
+        // Serialize before taking the lock, so it is held only to check and move files.
+        List<byte[]> photoFiles = new ArrayList<>(albums.size());
+        List<byte[]> storeFiles = new ArrayList<>(albums.size());
+        for (AlbumWrite album : albums) {
+            // Written as ordinary photos, so the file reads back exactly as before snapshots.
+            ArrayList<Photo> photos = new ArrayList<>(album.photos.size());
+            for (PhotoSnapshot photo : album.photos) {
+                photos.add(new Photo(photo));
+            }
+            photoFiles.add(serialize(photos));
+            storeFiles.add(PhotoStore.encode(album.photos, album.revision));
+        }
+        Path target = Paths.get(userFile);
+        try (VersionedFile.Lock lock = VersionedFile.lock(target)) {
+            long stored = VersionedFile.readVersion(target);
+            if (stored != baseVersion) {
+                System.out.println(userFile + " is at version " + stored + ", not " + baseVersion
+                        + "; it was saved elsewhere and must be merged first.");
+                return false;
+            }
+            for (int i = 0; i < albums.size(); i++) {
+                VersionedFile.replace(Paths.get(albums.get(i).file), photoFiles.get(i));
+                VersionedFile.replace(Paths.get(albums.get(i).storeFile), storeFiles.get(i));
+            }
+            VersionedFile.write(target, baseVersion + 1, userRecord);
+        }
+        System.out.println("Data successfully saved to " + userFile);
+        return true;
+    }
+
+    /**
+     * Marks the captured albums as saved, so their photos may be released from memory.
+     * Call on the model's thread after {@link #write(String)} succeeded.
+     */
+    public void commit() {
+        for (AlbumWrite album : albums) {
+            long[] ids = new long[album.photos.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = album.photos.get(i).getId();
+            }
+            Arrays.sort(ids);
+            album.album.markSaved(album.version, ids);
+        }
+        user.removedAlbumIds.removeAll(removedAlbums);
+    }
+
+    private static byte[] serialize(Object obj) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(obj);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -7,24 +7,41 @@
  * This class implements Serializable to allow tags to be persisted as part of the photo data.
  * </p>
  *
+ * <p>
+ * The lower-cased comparison key and its hash are computed once, when a tag is created or
+ * loaded, and photos share canonical instances handed out by a {@link TagDictionary}.
+ * </p>
+ *
  * @author Adam Student
  * @author Neer Patel
  * @version 1.0
  */
 package model;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
-import java.util.Objects;
+import java.util.Locale;
 
 public class Tag implements Serializable {
     private static final long serialVersionUID = 1L;
 
     private String name;
     private String value;
+    // Case-insensitive comparison key and its hash; set on construction and on loading, and
+    // never changed afterwards, so other threads reading a published tag see both.
+    private transient String key;
+    private transient int hash;
 
     public Tag(String name, String value) {
         this.name = name;
         this.value = value;
+        computeKey();
+    }
+
+    private void computeKey() {
+        key = name.toLowerCase(Locale.ROOT) + '\u0000' + value.toLowerCase(Locale.ROOT);
+        hash = key.hashCode();
     }
 
     public String getName() {
@@ -43,12 +60,17 @@ public class Tag implements Serializable {
             return false;
         }
         Tag tag = (Tag) o;
-        return name.equalsIgnoreCase(tag.getName()) && value.equalsIgnoreCase(tag.getValue());
+        return hash == tag.hash && key.equals(tag.key);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(name.toLowerCase(), value.toLowerCase());
+        return hash;
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        computeKey();
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,66 @@
+/**
+ * Hands out one canonical {@link Tag} instance per distinct tag of a user.
+ *
+ * <p>
+ * A library usually has only a few hundred distinct tags spread over thousands of photos.
+ * Routing every tag through the dictionary means all photos tagged "person"="Alice" share
+ * one Tag object, so its strings are stored once and tag comparisons between canonical tags
+ * succeed on the identity check. Tags are matched by their case-insensitive form; the first
+ * spelling seen becomes the canonical one.
+ * </p>
+ *
+ * @author Adam Student
+ * @author Neer Patel
+ * @version 1.0
+ */
+package model;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class TagDictionary {
+
+    private final Map<Tag, Tag> canonical = new HashMap<>();
+
+    /**
+     * Returns the canonical instance of a tag, registering it if it is new.
+     *
+     * @param tag any tag
+     * @return the canonical tag equal to it
+     */
+    public Tag intern(Tag tag) {
+        Tag existing = canonical.putIfAbsent(tag, tag);
+        return existing != null ? existing : tag;
+    }
+
+    /**
+     * Returns the canonical tag with the given name and value, registering it if it is new.
+     *
+     * @param name  the tag name
+     * @param value the tag value
+     * @return the canonical tag
+     */
+    public Tag intern(String name, String value) {
+        return intern(new Tag(name, value));
+    }
+
+    /**
+     * Looks up the canonical tag with the given name and value without registering it.
+     *
+     * @param name  the tag name
+     * @param value the tag value
+     * @return the canonical tag, or null if no photo was ever given this tag
+     */
+    public Tag find(String name, String value) {
+        return canonical.get(new Tag(name, value));
+    }
+
+    /**
+     * Returns the number of distinct tags known.
+     *
+     * @return the tag count
+     */
+    public int size() {
+        return canonical.size();
+    }
+}
@@ -1,13 +1,49 @@
 package model;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * The base User class representing a generic user of the application.
  * It holds a username and a list of albums.
  * Implements Serializable for persistence.
  * 
+ * <p>
+ * The user record carries a {@link PhotoIndex} of which albums hold each photo and of the
+ * photos' perceptual hashes, kept current from the user's own change events, so finding
+ * the albums of a photo or its near-duplicates reads only the albums involved, never the
+ * whole library. The user also keeps a dictionary of canonical tags shared by all of its
+ * photos, and an index of its albums by case-insensitive name.
+ * </p>
+ *
+ * <p>
+ * The user's thread publishes immutable {@link LibrarySnapshot}s of the library for other
+ * threads to read without locking; see {@link #publish()}.
+ * </p>
+ *
+ * <p>
+ * The user also remembers which version of its file it is based on, and which stored albums
+ * it removed since, so that when another process saved the same user first the two can be
+ * merged with {@link #mergeStored(User, long)} instead of one overwriting the other.
+ * </p>
+ *
+ * <p>
+ * Views and indexes that follow the library subscribe with {@link #addListener} and are
+ * told about each album and photo that changed, as a {@link LibraryEvent}, instead of
+ * rereading the whole library.
+ * </p>
+ * 
  * @author Adam Student
  * @author Neer Patel
  * @version 1.0
@@ -17,6 +53,22 @@ public class User implements Serializable {
 
     protected String username;
     protected ArrayList<Album> albums;
+    // Albums of every photo and the photos' hashes; null only in users saved before it existed.
+    private PhotoIndex photoIndex;
+    // Canonical tag instances shared by all of the user's photos; rebuilt on load.
+    private transient TagDictionary tagDictionary;
+    // Albums by lower-cased name; rebuilt on first use after loading.
+    private transient Map<String, Album> albumsByName;
+    // The latest library snapshot; written by the owner's thread, read by any thread.
+    private transient volatile LibrarySnapshot published;
+    // Revision of the latest snapshot; only touched by the owner's thread.
+    private transient long revision;
+    // Version of the user file the next save builds on; advanced as saves are captured.
+    transient long storedVersion;
+    // Ids of stored albums removed since the last save, so a merge does not bring them back.
+    transient Set<String> removedAlbumIds = new HashSet<>();
+    // Told about every change to the albums and photos, on the owner's thread.
+    private transient List<LibraryEvent.Listener> listeners = new CopyOnWriteArrayList<>();
 
     /**
      * Constructs a User with the specified username.
@@ -26,6 +78,8 @@ public class User implements Serializable {
     public User(String username) {
         this.username = username;
         this.albums = new ArrayList<>();
+        this.tagDictionary = new TagDictionary();
+        this.photoIndex = new PhotoIndex();
     }
 
     /**
@@ -35,14 +89,14 @@ public class User implements Serializable {
      */
     public boolean addAlbum(Album album) {
         // Check if an album with the same name (ignoring case) already exists
-        for (Album existing : albums) {
-            if (existing.getName().equalsIgnoreCase(album.getName())) {
-                System.out.println("Album \"" + album.getName() + "\" already exists for user " + username + ".");
-                return false; // Album not added because it is a duplicate
-            }
+        if (albumIndex().putIfAbsent(nameKey(album.getName()), album) != null) {
+            System.out.println("Album \"" + album.getName() + "\" already exists for user " + username + ".");
+            return false; // Album not added because it is a duplicate
         }
         albums.add(album);
+        album.attach(this);
         System.out.println("Album \"" + album.getName() + "\" added for user " + username + ".");
+        fire(new LibraryEvent(LibraryEvent.Type.ALBUM_ADDED, album, List.of()));
         return true;
     }
 
@@ -53,12 +107,58 @@ public class User implements Serializable {
      */
     public void removeAlbum(Album album) {
         if (albums.remove(album)) {
+            albumIndex().remove(nameKey(album.getName()), album);
+            if (album.isStored()) {
+                removedAlbumIds.add(album.getId());
+            }
+            album.detach();
             System.out.println("Album \"" + album.getName() + "\" removed from user " + username + ".");
+            fire(new LibraryEvent(LibraryEvent.Type.ALBUM_REMOVED, album, List.of()));
         } else {
             System.out.println("Album \"" + album.getName() + "\" not found for user " + username + ".");
         }
     }
 
+    /**
+     * Finds one of the user's albums by name, ignoring case.
+     *
+     * @param name the album name
+     * @return the album, or null if the user has no album with that name
+     */
+    public Album findAlbum(String name) {
+        return name == null ? null : albumIndex().get(nameKey(name));
+    }
+
+    /**
+     * Returns whether the user has an album with the given name, ignoring case.
+     *
+     * @param name the album name
+     * @return true if the name is taken
+     */
+    public boolean hasAlbumNamed(String name) {
+        return findAlbum(name) != null;
+    }
+
+    /**
+     * Renames one of the user's albums, keeping album names unique regardless of case.
+     * Albums must be renamed through this method so that lookups by name stay correct.
+     *
+     * @param album   the album to rename
+     * @param newName the new name
+     * @return true if renamed, false if another album already has that name
+     */
+    public boolean renameAlbum(Album album, String newName) {
+        Album existing = findAlbum(newName);
+        if (existing != null && existing != album) {
+            return false;
+        }
+        albumIndex().remove(nameKey(album.getName()), album);
+        albumIndex().put(nameKey(newName), album);
+        // Renamed last, so listeners told about it can already find the album by its new name.
+        album.renameAlbum(newName);
+        return true;
+    }
+
     /**
      * Returns the list of albums owned by the user.
      *
@@ -68,6 +168,391 @@ public class User implements Serializable {
         return albums;
     }
 
+    /**
+     * Returns the dictionary of canonical tags for this user's photos. Tags added to photos
+     * should be obtained from it so that equal tags share one instance.
+     *
+     * @return the tag dictionary
+     */
+    public TagDictionary getTagDictionary() {
+        return tagDictionary;
+    }
+
+    /**
+     * Finds photos in any of the user's albums that look like the given photo. Only the
+     * albums holding the similar photos are read, and only if those photos are not in
+     * memory already; {@link #findAlbumsOfSimilarPhotos(Photo, int)} names them so they can
+     * be loaded beforehand. Index entries for photos that turn out to be gone from their
+     * album are dropped as they are encountered.
+     *
+     * @param photo       the photo to compare against (must have a perceptual hash)
+     * @param maxDistance the largest Hamming distance between hashes to report
+     * @return the similar photos, excluding the photo itself
+     */
+    public List<Photo> findSimilarPhotos(Photo photo, int maxDistance) {
+        List<Photo> similar = new ArrayList<>();
+        if (!photo.hasPerceptualHash()) {
+            return similar;
+        }
+        for (long id : photoIndex.similar(photo.getPerceptualHash(), maxDistance)) {
+            Photo candidate = id == photo.getId() ? null : findPhoto(id);
+            if (candidate != null && !similar.contains(candidate)) {
+                similar.add(candidate);
+            }
+        }
+        return similar;
+    }
+
+    /**
+     * Returns the albums to have in memory before calling
+     * {@link #findSimilarPhotos(Photo, int)}: one album holding each similar photo. Reads
+     * nothing but the user's photo index.
+     *
+     * @param photo       the photo to compare against
+     * @param maxDistance the largest Hamming distance between hashes to report
+     * @return the albums, without repeats
+     */
+    public List<Album> findAlbumsOfSimilarPhotos(Photo photo, int maxDistance) {
+        Set<Album> holding = new LinkedHashSet<>();
+        if (photo.hasPerceptualHash()) {
+            for (long id : photoIndex.similar(photo.getPerceptualHash(), maxDistance)) {
+                List<String> albumIds = photoIndex.albumsOf(id);
+                Album album = id == photo.getId() || albumIds.isEmpty() ? null : findAlbumById(albumIds.get(0));
+                if (album != null) {
+                    holding.add(album);
+                }
+            }
+        }
+        return new ArrayList<>(holding);
+    }
+
+    /**
+     * Groups all hashed photos of the user into clusters of near-duplicates. The groups
+     * come from the photo index; the albums holding their photos are read if they are not
+     * in memory.
+     *
+     * @param maxDistance the largest Hamming distance between hashes within a group
+     * @return groups of two or more photos that look alike
+     */
+    public List<List<Photo>> findDuplicateGroups(int maxDistance) {
+        List<List<Photo>> groups = new ArrayList<>();
+        for (List<Long> ids : photoIndex.duplicateGroups(maxDistance)) {
+            List<Photo> group = new ArrayList<>();
+            for (long id : ids) {
+                Photo photo = findPhoto(id);
+                if (photo != null) {
+                    group.add(photo);
+                }
+            }
+            if (group.size() > 1) {
+                groups.add(group);
+            }
+        }
+        return groups;
+    }
+
+    /**
+     * Records that a photo was edited in every album holding it, so each of them repositions
+     * it in its sort order and writes it out on the next save. Those albums are read if they
+     * are not in memory; callers on the application thread load them first.
+     *
+     * @param photo the edited photo
+     */
+    public void photoEdited(Photo photo) {
+        for (Album album : findAlbumsContaining(photo)) {
+            album.photoEdited(photo);
+        }
+    }
+
+    /**
+     * Points photos of an album at their new paths after their files were moved, keeping
+     * their captions and tags. A photo is shared by every album it was copied to, so all of
+     * them are re-keyed, not just the one whose folder reported the move. Those albums are
+     * read if they are not in memory; callers on the application thread load them first.
+     *
+     * @param album the album the moves were reported for
+     * @param moves a map from each old file path to its new path
+     * @return the number of photos moved
+     */
+    public int relocatePhotos(Album album, Map<String, String> moves) {
+        Set<Photo> moved = new HashSet<>();
+        Set<Album> holders = new LinkedHashSet<>();
+        holders.add(album);
+        for (Map.Entry<String, String> move : moves.entrySet()) {
+            Photo photo = album.findPhoto(move.getKey());
+            if (photo != null) {
+                // Every holder is loaded before the path changes, so each finds it under the old key.
+                for (Album holder : findAlbumsContaining(photo)) {
+                    holder.getPhotos();
+                    holders.add(holder);
+                }
+                photo.setFilepath(move.getValue());
+                moved.add(photo);
+            }
+        }
+        if (!moved.isEmpty()) {
+            for (Album holder : holders) {
+                holder.photosMoved(moved);
+            }
+        }
+        return moved.size();
+    }
+
+    /**
+     * Returns the file paths of all of the user's photos, as recorded in the user's photo
+     * index, without reading any album.
+     *
+     * @return the paths, each once
+     */
+    public Set<String> getPhotoPaths() {
+        return photoIndex.paths();
+    }
+
+    /**
+     * Returns the albums that contain the given photo, as recorded in the user's photo
+     * index, without reading any album.
+     *
+     * @param photo the photo to look for
+     * @return the albums holding that photo
+     */
+    public List<Album> findAlbumsContaining(Photo photo) {
+        return findAlbumsContaining(photo.getId());
+    }
+
+    /**
+     * Returns the albums that contain the photo with the given id, as recorded in the user's
+     * photo index, without reading any album.
+     *
+     * @param photoId the id of the photo to look for
+     * @return the albums holding that photo
+     */
+    public List<Album> findAlbumsContaining(long photoId) {
+        List<Album> containing = new ArrayList<>();
+        for (String id : photoIndex.albumsOf(photoId)) {
+            Album album = findAlbumById(id);
+            if (album != null) {
+                containing.add(album);
+            }
+        }
+        return containing;
+    }
+
+    /**
+     * Finds a photo by id through the user's photo index, reading one album holding it if it
+     * is not in memory. Index entries the albums turn out not to hold are dropped. Callers on
+     * the application thread load the albums named by {@link #findAlbumsContaining(long)}
+     * first.
+     *
+     * @param id the photo's id
+     * @return the photo, or null if no album holds it
+     */
+    public Photo findPhoto(long id) {
+        Photo photo = Album.livePhoto(id);
+        for (String albumId : new ArrayList<>(photoIndex.albumsOf(id))) {
+            Album album = findAlbumById(albumId);
+            if (album != null) {
+                if (photo == null) {
+                    album.getPhotos(); // Loads the album, making its photos live.
+                    photo = Album.livePhoto(id);
+                }
+                if (photo != null && album.containsPhoto(photo)) {
+                    return photo;
+                }
+            }
+            photoIndex.remove(albumId, id);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the version of the user file this user is based on.
+     *
+     * @return the version, 0 for a user never saved or saved before versions existed
+     */
+    public long getStoredVersion() {
+        return storedVersion;
+    }
+
+    /**
+     * Records the version of the user file this user was loaded from.
+     *
+     * @param storedVersion the version read with the user
+     */
+    public void setStoredVersion(long storedVersion) {
+        this.storedVersion = storedVersion;
+    }
+
+    /**
+     * Merges the user as another process saved it into this one, so that saving again keeps
+     * both sides' changes. Albums added there are added here, and albums removed there are
+     * removed here unless they have unsaved changes here. Albums on both sides are merged by
+     * {@link Album#mergeStored(Album)}. Must be called on the thread that modifies the user.
+     *
+     * @param stored  the user as read from its file
+     * @param version the version the file had
+     */
+    public void mergeStored(User stored, long version) {
+        Set<String> storedIds = new HashSet<>();
+        for (Album theirs : stored.albums) {
+            storedIds.add(theirs.getId());
+            Album ours = findAlbumById(theirs.getId());
+            if (ours != null) {
+                for (Photo photo : ours.mergeStored(theirs)) {
+                    // Other albums holding the photo must save its new state too.
+                    photoEdited(photo);
+                }
+                if (!ours.isLoaded()) {
+                    // Its photos are now just what their save holds, as their index records.
+                    photoIndex.copyAlbum(ours.getId(), stored.photoIndex);
+                }
+            } else if (!removedAlbumIds.contains(theirs.getId())) {
+                String name = theirs.getName();
+                for (int n = 2; hasAlbumNamed(name); n++) {
+                    name = theirs.getName() + " (" + n + ")";
+                }
+                if (!name.equals(theirs.getName())) {
+                    theirs.renameAlbum(name);
+                }
+                photoIndex.copyAlbum(theirs.getId(), stored.photoIndex);
+                addAlbum(theirs);
+            }
+        }
+        for (Album ours : new ArrayList<>(albums)) {
+            if (!storedIds.contains(ours.getId()) && ours.isStored() && !ours.hasUnsavedChanges()) {
+                albums.remove(ours);
+                ours.detach();
+                System.out.println("Album \"" + ours.getName() + "\" was removed elsewhere for user " + username + ".");
+                fire(new LibraryEvent(LibraryEvent.Type.ALBUM_REMOVED, ours, List.of()));
+            }
+        }
+        albumsByName = null;
+        storedVersion = version;
+    }
+
+    /**
+     * Subscribes to changes to the user's albums and photos. The listener is called on the
+     * thread that modifies the user, after each change, until it is removed.
+     *
+     * @param listener the listener to add
+     */
+    public void addListener(LibraryEvent.Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Unsubscribes a listener added with {@link #addListener}. A listener may remove itself
+     * while it is being called.
+     *
+     * @param listener the listener to remove
+     */
+    public void removeListener(LibraryEvent.Listener listener) {
+        listeners.remove(listener);
+    }
+
+    // Passes a change to the user or one of its albums on to the photo index, then to every
+    // listener.
+    void fire(LibraryEvent event) {
+        photoIndex.apply(event);
+        for (LibraryEvent.Listener listener : listeners) {
+            listener.libraryChanged(event);
+        }
+    }
+
+    /**
+     * Finds an album by id.
+     *
+     * @param id the album id
+     * @return the album, or null if the user has none with that id
+     */
+    public Album findAlbumById(String id) {
+        for (Album album : albums) {
+            if (album.getId().equals(id)) {
+                return album;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Publishes a snapshot of the library as it is now, replacing the previous one in one
+     * step. Must be called on the thread that modifies the user, after its changes are
+     * complete. Albums and photos that did not change since the last publish are shared with
+     * the previous snapshot; if nothing changed, the previous snapshot is returned as is.
+     * Every save publishes, so the published snapshot is never older than the last save.
+     *
+     * @return the published snapshot
+     */
+    public LibrarySnapshot publish() {
+        LibrarySnapshot last = published;
+        List<AlbumSnapshot> current = new ArrayList<>(albums.size());
+        boolean changed = last == null || last.getAlbums().size() != albums.size();
+        for (Album album : albums) {
+            AlbumSnapshot snapshot = album.snapshot();
+            if (!changed && last.getAlbums().get(current.size()) != snapshot) {
+                changed = true;
+            }
+            current.add(snapshot);
+        }
+        if (!changed) {
+            return last;
+        }
+        LibrarySnapshot next = new LibrarySnapshot(username, ++revision, Collections.unmodifiableList(current));
+        published = next;
+        return next;
+    }
+
+    /**
+     * Returns the most recently published snapshot of the library. May be called on any
+     * thread, without locking; the snapshot never changes, so it stays consistent however
+     * long the caller works with it.
+     *
+     * @return the latest snapshot, or null if none was published yet
+     */
+    public LibrarySnapshot snapshot() {
+        return published;
+    }
+
+    private static String nameKey(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    private Map<String, Album> albumIndex() {
+        if (albumsByName == null) {
+            albumsByName = new HashMap<>();
+            for (Album album : albums) {
+                albumsByName.putIfAbsent(nameKey(album.getName()), album);
+            }
+        }
+        return albumsByName;
+    }
+
+    // Gives every album the dictionary its photos' tags are interned into as they are loaded,
+    // and this user to report its changes to. Users are read off the application thread, so
+    // a user saved before the photo index existed, or before it recorded paths, has it built
+    // here, once, from its albums.
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        removedAlbumIds = new HashSet<>();
+        listeners = new CopyOnWriteArrayList<>();
+        tagDictionary = new TagDictionary();
+        for (Album album : albums) {
+            album.assignLegacyId(username);
+            album.attach(this);
+        }
+        if (photoIndex == null || photoIndex.isMissingPaths()) {
+            photoIndex = new PhotoIndex();
+            for (Album album : albums) {
+                // Albums saved inline, before photo files existed, are loaded already.
+                if (!album.isLoaded()) {
+                    album.installIndexed(album.readStoredPhotos());
+                }
+                for (Photo photo : album.getPhotos()) {
+                    photoIndex.add(album.getId(), photo);
+                }
+            }
+        }
+    }
+
     /**
      * Returns the username of the user.
      *
@@ -0,0 +1,689 @@
+/**
+ * Headless HTTP API over the photo library, for thin clients.
+ *
+ * <p>
+ * Started with {@code app.Photos --server [port] [--listen ADDRESS]}, it serves a user's
+ * albums, photos, tags, search results, thumbnails and original images as JSON and image
+ * responses, using the JDK's built-in {@link HttpServer} with one virtual thread per
+ * request. A client logs in with {@code POST /api/sessions?user=NAME} and sends the
+ * returned id in the {@value #SESSION_HEADER} header on every later request; sessions live
+ * in the {@link SessionRegistry} and expire after {@value #SESSION_IDLE_MINUTES} idle
+ * minutes.
+ * </p>
+ *
+ * <p>
+ * The server listens on the loopback address unless told to listen elsewhere. Logging in
+ * takes the server's access token as {@code Authorization: Bearer TOKEN}; the token is read
+ * from the {@value #TOKEN_VARIABLE} environment variable, or made up at startup and printed.
+ * Only names of saved users are accepted, so a login can never read a file outside the
+ * user directory. The caches a session keeps are dropped whenever its user's library
+ * changes (see {@link Session}).
+ * </p>
+ *
+ * <p>
+ * Requests change a user only while holding that user's session lock, and saves go
+ * through {@link PersistenceService}'s ordered write queue, so concurrent clients cannot
+ * interleave edits or overwrite the user file with a stale copy. A change is answered once
+ * it is on disk. Reads do not take the lock: they answer from the user's latest published
+ * {@link LibrarySnapshot}, which every save replaces, so a slow listing never holds up an
+ * edit and never sees one half done. Albums are read only when a request needs their photos,
+ * one album at a time: a photo is found through the user's photo index, and searches and the
+ * tag list run on the per-album stores of {@link SearchService} without loading any album. Every GET response carries an ETag and honours If-None-Match, so clients
+ * that revalidate get a bodiless 304 when nothing changed. Packed thumbnails are written
+ * straight from the mapped pack file to the response without first copying them into a
+ * byte array.
+ * </p>
+ *
+ * <pre>
+ * POST   /api/sessions?user=NAME                    log in
+ * DELETE /api/sessions                              log out
+ * GET    /api/albums                                albums with counts and date ranges
+ * GET    /api/albums/{albumId}/photos               photos of an album, in its sort order
+ * GET    /api/albums/{albumId}/photos/{id}/thumbnail
+ * GET    /api/photos/{id}                           one photo
+ * GET    /api/photos/{id}/image                     the original image file
+ * PUT    /api/photos/{id}/caption                   body: the new caption
+ * POST   /api/photos/{id}/tags?name=N&amp;value=V       add a tag
+ * DELETE /api/photos/{id}/tags?name=N&amp;value=V       remove a tag
+ * GET    /api/tags                                  every tag in use
+ * GET    /api/search?from=DATE&amp;to=DATE[&amp;album=NAME]
+ * GET    /api/search?tag=N=V[&amp;tag=N=V...][&amp;match=all|any][&amp;album=NAME]
+ * </pre>
+ *
+ * @author Adam Student
+ * @author Neer Patel
+ * @version 1.0
+ */
+package server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import model.Album;
+import model.AlbumSnapshot;
+import model.LibrarySnapshot;
+import model.Photo;
+import model.PhotoSnapshot;
+import model.PhotoStore;
+import model.Tag;
+import model.User;
+import service.Background;
+import service.PersistenceService;
+import service.SearchService;
+import service.Session;
+import service.SessionRegistry;
+import util.ThumbnailPack;
+
+/**
+ * The HTTP API server.
+ */
+public class PhotoServer {
+
+    public static final int DEFAULT_PORT = 8080;
+    /** The environment variable holding the access token, if it is not to be made up. */
+    public static final String TOKEN_VARIABLE = "PHOTOS_ACCESS_TOKEN";
+    static final String SESSION_HEADER = "X-Session";
+    static final int SESSION_IDLE_MINUTES = 30;
+
+    // Keys of the per-session caches, dropped whenever the user's library changes.
+    private static final String SEARCH_INDEX = "searchIndex";
+    private static final String PACK_PREFIX = "pack:";
+
+    // An error answered with a status code and a plain-text message.
+    private static class HttpError extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+
+        HttpError(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    private final HttpServer server;
+    private final ScheduledExecutorService sweeper;
+    private final byte[] accessToken;
+
+    private PhotoServer(HttpServer server, ScheduledExecutorService sweeper, String accessToken) {
+        this.server = server;
+        this.sweeper = sweeper;
+        this.accessToken = accessToken.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Starts the server. There is no JavaFX application thread in this mode, so service
+     * futures are completed directly on the threads that finish them.
+     *
+     * @param address     the address to listen on, or null for the loopback address
+     * @param port        the port to listen on
+     * @param accessToken the token clients log in with, or null to make one up and print it
+     * @return the running server
+     * @throws IOException if the port cannot be bound
+     */
+    public static PhotoServer start(InetAddress address, int port, String accessToken) throws IOException {
+        Background.setCallbackExecutor(Runnable::run);
+        InetAddress bindAddress = address != null ? address : InetAddress.getLoopbackAddress();
+        String token = accessToken;
+        if (token == null || token.isEmpty()) {
+            byte[] random = new byte[32];
+            new SecureRandom().nextBytes(random);
+            token = Base64.getUrlEncoder().withoutPadding().encodeToString(random);
+            System.out.println("Access token: " + token);
+        }
+        HttpServer http = HttpServer.create(new InetSocketAddress(bindAddress, port), 0);
+        http.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "session-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        PhotoServer photoServer = new PhotoServer(http, sweeper, token);
+        http.createContext("/api/", photoServer::handle);
+        sweeper.scheduleAtFixedRate(() -> SessionRegistry.closeIdle(TimeUnit.MINUTES.toMillis(SESSION_IDLE_MINUTES)),
+                1, 1, TimeUnit.MINUTES);
+        http.start();
+        System.out.println("Photo server listening on " + bindAddress.getHostAddress() + " port " + port);
+        return photoServer;
+    }
+
+    /**
+     * Stops accepting requests, lets running ones finish for up to a second, and waits for
+     * pending saves to reach the disk.
+     */
+    public void stop() {
+        server.stop(1);
+        sweeper.shutdownNow();
+        PersistenceService.flush();
+        System.out.println("Photo server stopped");
+    }
+
+    // Routes a request and turns failures into error responses.
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String[] path = segments(exchange.getRequestURI().getRawPath());
+            String method = exchange.getRequestMethod();
+            if (path.length == 2 && path[1].equals("sessions")) {
+                if (method.equals("POST")) {
+                    login(exchange);
+                } else if (method.equals("DELETE")) {
+                    SessionRegistry.close(session(exchange));
+                    sendEmpty(exchange, 204);
+                } else {
+                    throw new HttpError(405, "Method not allowed");
+                }
+                return;
+            }
+            Session session = session(exchange);
+            if (path.length == 2 && path[1].equals("albums")) {
+                requireGet(method);
+                sendJson(exchange, albums(session));
+            } else if (path.length == 4 && path[1].equals("albums") && path[3].equals("photos")) {
+                requireGet(method);
+                sendJson(exchange, albumPhotos(session, path[2]));
+            } else if (path.length == 6 && path[1].equals("albums") && path[3].equals("photos")
+                    && path[5].equals("thumbnail")) {
+                requireGet(method);
+                sendThumbnail(exchange, session, path[2], photoId(path[4]));
+            } else if (path.length == 3 && path[1].equals("photos")) {
+                requireGet(method);
+                JsonWriter json = new JsonWriter();
+                writePhoto(json, photo(session, photoId(path[2])));
+                sendJson(exchange, json.toString());
+            } else if (path.length == 4 && path[1].equals("photos") && path[3].equals("image")) {
+                requireGet(method);
+                sendImage(exchange, session, photoId(path[2]));
+            } else if (path.length == 4 && path[1].equals("photos") && path[3].equals("caption")) {
+                if (!method.equals("PUT")) {
+                    throw new HttpError(405, "Method not allowed");
+                }
+                String caption = readBody(exchange).trim();
+                long id = photoId(path[2]);
+                sendJson(exchange, edit(session, id, photo -> photo.setCaption(caption)));
+            } else if (path.length == 4 && path[1].equals("photos") && path[3].equals("tags")) {
+                Map<String, List<String>> query = query(exchange);
+                String name = required(query, "name");
+                String value = required(query, "value");
+                long id = photoId(path[2]);
+                if (method.equals("POST")) {
+                    sendJson(exchange, edit(session, id,
+                            photo -> photo.addTag(session.getUser().getTagDictionary().intern(name, value))));
+                } else if (method.equals("DELETE")) {
+                    sendJson(exchange, edit(session, id, photo -> {
+                        Tag tag = session.getUser().getTagDictionary().find(name, value);
+                        if (tag != null) {
+                            photo.removeTag(tag);
+                        }
+                    }));
+                } else {
+                    throw new HttpError(405, "Method not allowed");
+                }
+            } else if (path.length == 2 && path[1].equals("tags")) {
+                requireGet(method);
+                sendJson(exchange, tags(session));
+            } else if (path.length == 2 && path[1].equals("search")) {
+                requireGet(method);
+                sendJson(exchange, search(session, query(exchange)));
+            } else {
+                throw new HttpError(404, "No such resource");
+            }
+        } catch (HttpError e) {
+            sendError(exchange, e.status, e.getMessage());
+        } catch (RuntimeException e) {
+            System.err.println("Error serving " + exchange.getRequestURI() + ": " + e);
+            e.printStackTrace();
+            sendError(exchange, 500, "Internal error");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    // --- Sessions ---
+
+    private void login(HttpExchange exchange) throws IOException {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        byte[] given = authorization != null && authorization.startsWith("Bearer ")
+                ? authorization.substring(7).trim().getBytes(StandardCharsets.UTF_8)
+                : new byte[0];
+        if (!MessageDigest.isEqual(given, accessToken)) {
+            exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer");
+            throw new HttpError(401, "Send the server's access token as Authorization: Bearer TOKEN");
+        }
+        String username = required(query(exchange), "user");
+        if (!PersistenceService.userExists(username)) {
+            throw new HttpError(404, "User doesn't exist");
+        }
+        User user = SessionRegistry.openUser(username);
+        if (user == null) {
+            user = PersistenceService.loadUser(username).join();
+        }
+        if (user == null) {
+            throw new HttpError(404, "User doesn't exist");
+        }
+        Session session = SessionRegistry.open(user);
+        JsonWriter json = new JsonWriter().beginObject()
+                .name("session").value(session.getId())
+                .name("user").value(session.getUsername())
+                .endObject();
+        sendJson(exchange, json.toString());
+    }
+
+    private Session session(HttpExchange exchange) {
+        Session session = SessionRegistry.find(exchange.getRequestHeaders().getFirst(SESSION_HEADER));
+        if (session == null) {
+            throw new HttpError(401, "Log in first and send the session id in the " + SESSION_HEADER + " header");
+        }
+        return session;
+    }
+
+    // --- Reads ---
+
+    // The latest published library, read without locking. Albums whose photos are not in
+    // memory appear in it with their headers only.
+    private static LibrarySnapshot library(Session session) {
+        LibrarySnapshot library = session.getUser().snapshot();
+        return library != null ? library : session.withUser(User::publish);
+    }
+
+    // An album with its photos, reading just that album under the lock if the published
+    // library has only its header.
+    private static AlbumSnapshot loadedAlbum(Session session, String albumId) {
+        AlbumSnapshot album = album(library(session), albumId);
+        while (!album.isLoaded()) {
+            album = album(session.withUser(user -> {
+                Album live = user.findAlbumById(albumId);
+                if (live != null) {
+                    live.getPhotos();
+                }
+                return user.publish();
+            }), albumId);
+        }
+        return album;
+    }
+
+    // The search index of the session, built from the albums' stores on first use.
+    private static SearchService.Index searchIndex(Session session) {
+        return join(session.withUser(user -> session.cached(SEARCH_INDEX, () -> SearchService.index(user, false))));
+    }
+
+    private String albums(Session session) {
+        JsonWriter json = new JsonWriter().beginArray();
+        for (AlbumSnapshot album : library(session).getAlbums()) {
+            json.beginObject()
+                    .name("id").value(album.getId())
+                    .name("name").value(album.getName())
+                    .name("photoCount").value(album.getPhotoCount())
+                    .name("dateRange").value(album.getDateRange())
+                    .name("sortOrder").value(album.getSortOrder().name())
+                    .endObject();
+        }
+        return json.endArray().toString();
+    }
+
+    private String albumPhotos(Session session, String albumId) {
+        JsonWriter json = new JsonWriter().beginArray();
+        for (PhotoSnapshot photo : loadedAlbum(session, albumId).getSortedPhotos()) {
+            writePhoto(json, photo);
+        }
+        return json.endArray().toString();
+    }
+
+    private String tags(Session session) {
+        JsonWriter json = new JsonWriter().beginArray();
+        for (Tag tag : searchIndex(session).getTags()) {
+            json.beginObject().name("name").value(tag.getName()).name("value").value(tag.getValue()).endObject();
+        }
+        return json.endArray().toString();
+    }
+
+    private String search(Session session, Map<String, List<String>> query) {
+        SearchService.Index index = searchIndex(session);
+        String albumName = first(query, "album");
+        if (albumName != null) {
+            AlbumSnapshot album = library(session).findAlbum(albumName);
+            index = album == null ? null : index.album(album.getId());
+            if (index == null) {
+                throw new HttpError(404, "No album named '" + albumName + "'");
+            }
+        }
+        CompletableFuture<List<PhotoStore.Row>> matches;
+        if (query.containsKey("from") || query.containsKey("to")) {
+            try {
+                LocalDate from = LocalDate.parse(required(query, "from"));
+                LocalDate to = LocalDate.parse(required(query, "to"));
+                matches = index.takenBetween(from.atStartOfDay(), to.atTime(LocalTime.MAX));
+            } catch (DateTimeParseException e) {
+                throw new HttpError(400, "Dates must look like 2024-01-31");
+            }
+        } else {
+            List<String> conditions = query.get("tag");
+            if (conditions == null) {
+                throw new HttpError(400, "Give a date range (from, to) or one or more tag=name=value");
+            }
+            List<Tag> tags = new ArrayList<>();
+            session.withUser(user -> {
+                for (String condition : conditions) {
+                    String[] kv = condition.split("=", 2);
+                    if (kv.length != 2) {
+                        throw new HttpError(400, "Invalid tag format. Use tag=name=value.");
+                    }
+                    // Photos hold canonical tags, so matching against the canonical instance is an identity check.
+                    Tag canonical = user.getTagDictionary().find(kv[0].trim(), kv[1].trim());
+                    tags.add(canonical != null ? canonical : new Tag(kv[0].trim(), kv[1].trim()));
+                }
+                return null;
+            });
+            boolean any = "any".equalsIgnoreCase(first(query, "match"));
+            matches = any ? index.taggedWithAny(tags) : index.taggedWithAll(tags);
+        }
+        // Answered from the rows themselves, as the index saw the photos.
+        JsonWriter json = new JsonWriter().beginArray();
+        for (PhotoStore.Row row : join(matches)) {
+            writePhoto(json, row.toSnapshot());
+        }
+        return json.endArray().toString();
+    }
+
+    // --- Writes ---
+
+    private interface PhotoEdit {
+        void apply(Photo photo);
+    }
+
+    // Changes a photo under the user's lock, saves, and answers with the photo once saved.
+    private String edit(Session session, long photoId, PhotoEdit change) {
+        CompletableFuture<Void> saved;
+        String body;
+        session.lock().lock();
+        try {
+            User user = session.getUser();
+            Photo photo = livePhoto(user, photoId);
+            change.apply(photo);
+            user.photoEdited(photo);
+            saved = PersistenceService.saveUser(user);
+            JsonWriter json = new JsonWriter();
+            writePhoto(json, photo.snapshot());
+            body = json.toString();
+        } finally {
+            session.lock().unlock();
+        }
+        join(saved);
+        return body;
+    }
+
+    // --- Images ---
+
+    private void sendThumbnail(HttpExchange exchange, Session session, String albumId, long photoId)
+            throws IOException {
+        if (!loadedAlbum(session, albumId).containsPhoto(photoId)) {
+            throw new HttpError(404, "No such photo in this album");
+        }
+        String filePath = photo(session, photoId).getFilepath();
+        String etag = fileTag(photoId, filePath);
+        if (notModified(exchange, etag)) {
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Type", "image/jpeg");
+        exchange.getResponseHeaders().set("ETag", etag);
+        ThumbnailPack pack = session.cached(PACK_PREFIX + albumId, () -> ThumbnailPack.open(albumId));
+        ByteBuffer packed = pack == null ? null : pack.encodedThumbnail(filePath);
+        if (packed != null) {
+            // Straight from the mapped pack file to the socket.
+            exchange.sendResponseHeaders(200, packed.remaining());
+            try (WritableByteChannel body = Channels.newChannel(exchange.getResponseBody())) {
+                while (packed.hasRemaining()) {
+                    body.write(packed);
+                }
+            }
+            return;
+        }
+        // Not packed yet (e.g. just added): encode one on the fly.
+        byte[] encoded = ThumbnailPack.encodeThumbnail(filePath);
+        if (encoded == null) {
+            throw new HttpError(404, "The image cannot be read");
+        }
+        exchange.sendResponseHeaders(200, encoded.length);
+        try (OutputStream body = exchange.getResponseBody()) {
+            body.write(encoded);
+        }
+    }
+
+    private void sendImage(HttpExchange exchange, Session session, long photoId) throws IOException {
+        String filePath = photo(session, photoId).getFilepath();
+        String etag = fileTag(photoId, filePath);
+        if (notModified(exchange, etag)) {
+            return;
+        }
+        Path file = Paths.get(filePath);
+        String type = Files.probeContentType(file);
+        exchange.getResponseHeaders().set("Content-Type", type != null ? type : "application/octet-stream");
+        exchange.getResponseHeaders().set("ETag", etag);
+        exchange.sendResponseHeaders(200, Files.size(file));
+        try (OutputStream body = exchange.getResponseBody()) {
+            Files.copy(file, body);
+        }
+    }
+
+    // Images are derived from the photo file, so its size and modification time identify them.
+    private static String fileTag(long photoId, String filePath) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(Paths.get(filePath), BasicFileAttributes.class);
+            return "\"" + Long.toHexString(photoId) + "-" + Long.toHexString(attrs.size()) + "-"
+                    + Long.toHexString(attrs.lastModifiedTime().toMillis()) + "\"";
+        } catch (IOException e) {
+            throw new HttpError(404, "The image file is missing");
+        }
+    }
+
+    // --- Lookups ---
+
+    private static AlbumSnapshot album(LibrarySnapshot library, String albumId) {
+        AlbumSnapshot album = library.findAlbumById(albumId);
+        if (album == null) {
+            throw new HttpError(404, "No such album");
+        }
+        return album;
+    }
+
+    // A photo to read: from the published library if a loaded album holds it, otherwise
+    // looked up through the user's photo index under the lock, reading one album.
+    private static PhotoSnapshot photo(Session session, long photoId) {
+        PhotoSnapshot photo = library(session).findPhoto(photoId);
+        if (photo == null) {
+            photo = session.withUser(user -> {
+                Photo live = user.findPhoto(photoId);
+                return live == null ? null : live.snapshot();
+            });
+        }
+        if (photo == null) {
+            throw new HttpError(404, "No such photo");
+        }
+        return photo;
+    }
+
+    // The live photo, for edits; callers hold the user's lock.
+    private static Photo livePhoto(User user, long photoId) {
+        Photo photo = user.findPhoto(photoId);
+        if (photo == null) {
+            throw new HttpError(404, "No such photo");
+        }
+        return photo;
+    }
+
+    private static void writePhoto(JsonWriter json, PhotoSnapshot photo) {
+        json.beginObject()
+                .name("id").value(photo.getId())
+                .name("file").value(Paths.get(photo.getFilepath()).getFileName().toString())
+                .name("caption").value(photo.getCaption())
+                .name("dateTaken").value(photo.getDateTaken())
+                .name("lastEdited").value(photo.getLastEdited())
+                .name("width").value(photo.getWidth())
+                .name("height").value(photo.getHeight())
+                .name("orientation").value(photo.getOrientation())
+                .name("displayWidth").value(photo.getDisplayWidth())
+                .name("displayHeight").value(photo.getDisplayHeight())
+                .name("tags").beginArray();
+        for (Tag tag : photo.getTags()) {
+            json.beginObject().name("name").value(tag.getName()).name("value").value(tag.getValue()).endObject();
+        }
+        json.endArray().endObject();
+    }
+
+    // --- Request and response helpers ---
+
+    private static String[] segments(String rawPath) {
+        List<String> segments = new ArrayList<>();
+        for (String segment : rawPath.split("/")) {
+            if (!segment.isEmpty()) {
+                segments.add(URLDecoder.decode(segment, StandardCharsets.UTF_8));
+            }
+        }
+        return segments.toArray(new String[0]);
+    }
+
+    private static Map<String, List<String>> query(HttpExchange exchange) {
+        Map<String, List<String>> params = new HashMap<>();
+        String raw = exchange.getRequestURI().getRawQuery();
+        if (raw == null) {
+            return params;
+        }
+        for (String pair : raw.split("&")) {
+            if (pair.isEmpty()) {
+                continue;
+            }
+            int eq = pair.indexOf('=');
+            String key = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), StandardCharsets.UTF_8);
+            String value = eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8);
+            params.computeIfAbsent(key, k -> new ArrayList<>()).add(value);
+        }
+        return params;
+    }
+
+    private static String first(Map<String, List<String>> query, String key) {
+        List<String> values = query.get(key);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    private static String required(Map<String, List<String>> query, String key) {
+        String value = first(query, key);
+        if (value == null || value.trim().isEmpty()) {
+            throw new HttpError(400, "Missing parameter '" + key + "'");
+        }
+        return value.trim();
+    }
+
+    private static long photoId(String segment) {
+        try {
+            return Long.parseLong(segment);
+        } catch (NumberFormatException e) {
+            throw new HttpError(404, "No such photo");
+        }
+    }
+
+    private static void requireGet(String method) {
+        if (!method.equals("GET")) {
+            throw new HttpError(405, "Method not allowed");
+        }
+    }
+
+    private static String readBody(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    // Answers 304 if the client's copy is current. Returns true if it did.
+    private static boolean notModified(HttpExchange exchange, String etag) throws IOException {
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag) || ("W/" + tag).equals(etag)) {
+                exchange.getResponseHeaders().set("ETag", etag);
+                exchange.sendResponseHeaders(304, -1);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // JSON responses are tagged by a checksum of their content.
+    private static void sendJson(HttpExchange exchange, String json) throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        CRC32C crc = new CRC32C();
+        crc.update(bytes);
+        String etag = "W/\"" + Long.toHexString(crc.getValue()) + "-" + Integer.toHexString(bytes.length) + "\"";
+        if (exchange.getRequestMethod().equals("GET") && notModified(exchange, etag)) {
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.getResponseHeaders().set("ETag", etag);
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream body = exchange.getResponseBody()) {
+            body.write(bytes);
+        }
+    }
+
+    private static void sendEmpty(HttpExchange exchange, int status) throws IOException {
+        exchange.sendResponseHeaders(status, -1);
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) {
+        try {
+            byte[] bytes = (message + "\n").getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(bytes);
+            }
+        } catch (IOException e) {
+            // The headers were already sent or the client went away; nothing more to say.
+            System.err.println("Could not send error response: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ * Shared executor for the service layer.
+ *
+ * <p>
+ * Blocking work (disk reads and writes, image decoding, index building) runs on virtual
+ * threads, one per task, so a slow disk never ties up a fixed pool and the JavaFX
+ * application thread never waits on it. The futures returned here complete on the
+ * application thread, so callers can update the model and the scene graph directly in
+ * {@code thenAccept} and friends.
+ * </p>
+ *
+ * <p>
+ * Without a JavaFX toolkit, as in the headless server, there is no application thread to
+ * return to; {@link #setCallbackExecutor(Executor)} then chooses where futures complete.
+ * </p>
+ *
+ * @author Adam Student
+ * @author Neer Patel
+ * @version 1.0
+ */
+package service;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javafx.application.Platform;
+
+/**
+ * Runs blocking work on virtual threads and hands the results back to the FX thread.
+ */
+public class Background {
+
+    private static final ExecutorService EXECUTOR = Executors.newVirtualThreadPerTaskExecutor();
+    // Where futures complete; the JavaFX application thread unless running headless.
+    private static volatile Executor callbacks = Platform::runLater;
+
+    /**
+     * Returns the executor blocking service work runs on.
+     *
+     * @return a virtual-thread-per-task executor
+     */
+    public static ExecutorService executor() {
+        return EXECUTOR;
+    }
+
+    /**
+     * Changes where returned futures complete. The headless server, which has no JavaFX
+     * application thread, completes them directly on the thread that did the work.
+     *
+     * @param executor runs completion callbacks
+     */
+    public static void setCallbackExecutor(Executor executor) {
+        callbacks = executor;
+    }
+
+    /**
+     * Runs a blocking computation on a virtual thread.
+     *
+     * @param <T>  the type of result
+     * @param work the computation
+     * @return a future completed on the JavaFX application thread (see setCallbackExecutor)
+     */
+    public static <T> CompletableFuture<T> call(Callable<T> work) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        EXECUTOR.execute(() -> {
+            try {
+                T value = work.call();
+                callbacks.execute(() -> result.complete(value));
+            } catch (Throwable e) {
+                callbacks.execute(() -> result.completeExceptionally(e));
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Runs a blocking action on a virtual thread.
+     *
+     * @param work the action
+     * @return a future completed on the JavaFX application thread (see setCallbackExecutor)
+     */
+    public static CompletableFuture<Void> run(Runnable work) {
+        return call(() -> {
+            work.run();
+            return null;
+        });
+    }
+
+    /**
+     * Hands the outcome of a future to the JavaFX application thread.
+     *
+     * @param <T>    the type of result
+     * @param future a future that may complete on any thread
+     * @return a future completed with the same outcome on the application thread
+     */
+    public static <T> CompletableFuture<T> onFxThread(CompletableFuture<T> future) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        future.whenComplete((value, error) -> callbacks.execute(() -> {
+            if (error != null) {
+                result.completeExceptionally(error);
+            } else {
+                result.complete(value);
+            }
+        }));
+        return result;
+    }
+}
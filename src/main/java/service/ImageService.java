@@ -0,0 +1,140 @@
+/**
+ * Reads image files and decodes images off the JavaFX application thread.
+ *
+ * <p>
+ * Decoding a thumbnail, even from a packed one in mapped memory, and reading an image
+ * header both touch the disk, so views ask for them here and fill in the result when the
+ * returned future completes. Decoded images can be built on any thread and are only
+ * attached to the scene graph on the application thread.
+ * </p>
+ *
+ * @author Adam Student
+ * @author Neer Patel
+ * @version 1.0
+ */
+package service;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+
+import javafx.scene.image.Image;
+import model.User;
+import util.ImageMetadata;
+import util.ImagePyramid;
+import util.ThumbnailPack;
+
+/**
+ * Asynchronous image decoding and metadata reads.
+ */
+public class ImageService {
+
+    // Decoding is CPU and memory bound, so only this many run at once however many are queued.
+    private static final Semaphore DECODERS = new Semaphore(Math.max(1, Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * Decodes an image to fit within the given bounds, preserving its aspect ratio.
+     *
+     * @param filePath the path of the image file
+     * @param width    the maximum decoded width in pixels
+     * @param height   the maximum decoded height in pixels
+     * @return a future completed on the application thread with the decoded image
+     */
+    public static CompletableFuture<Image> loadImage(String filePath, int width, int height) {
+        return Background.call(() -> decode(() -> new Image(new File(filePath).toURI().toString(), width, height,
+                true, true)));
+    }
+
+    /**
+     * Decodes a grid thumbnail, from the album's thumbnail pack if it holds one and from the
+     * photo itself otherwise, upright either way.
+     *
+     * @param pack     the album's thumbnail pack, or null if it has not been built
+     * @param filePath the path of the photo
+     * @param size     the maximum width and height in pixels
+     * @return a future completed on the application thread with the thumbnail
+     */
+    public static CompletableFuture<Image> loadThumbnail(ThumbnailPack pack, String filePath, int size) {
+        return Background.call(() -> decode(() -> {
+            Image image = pack != null ? pack.thumbnail(filePath) : null;
+            if (image == null && ImageMetadata.read(filePath).getOrientation() != ImageMetadata.ORIENTATION_NORMAL) {
+                // JavaFX decodes pixels as stored; the pack encoder turns them upright.
+                byte[] encoded = ThumbnailPack.encodeThumbnail(filePath);
+                if (encoded != null) {
+                    image = new Image(new ByteArrayInputStream(encoded), size, size, true, true);
+                }
+            }
+            if (image == null) {
+                image = new Image(new File(filePath).toURI().toString(), size, size, true, true);
+            }
+            return image;
+        }));
+    }
+
+    /**
+     * Maps an album's thumbnail pack.
+     *
+     * @param albumId the id of the album
+     * @return a future completed on the application thread with the pack, or null if it
+     *         does not exist yet
+     */
+    public static CompletableFuture<ThumbnailPack> openThumbnailPack(String albumId) {
+        return Background.call(() -> ThumbnailPack.open(albumId));
+    }
+
+    /**
+     * Opens the tile pyramid of a large photo, queueing its generation if there is none yet.
+     *
+     * @param filePath the path of the photo
+     * @return a future completed on the application thread with the pyramid, or null if it
+     *         has not been generated yet
+     */
+    public static CompletableFuture<ImagePyramid> openPyramid(String filePath) {
+        return Background.call(() -> {
+            ImagePyramid pyramid = ImagePyramid.open(filePath);
+            if (pyramid == null) {
+                ImagePyramid.generateInBackground(filePath);
+            }
+            return pyramid;
+        });
+    }
+
+    /**
+     * Deletes, in the background, the tile pyramids no saved photo of any user refers to
+     * any more. Reads every user record, but no album.
+     *
+     * @return a future completed on the application thread once the sweep is queued
+     */
+    public static CompletableFuture<Void> sweepPyramids() {
+        return PersistenceService.loadAllUsers().thenAccept(users -> {
+            Set<String> inUse = new HashSet<>();
+            for (User user : users) {
+                inUse.addAll(user.getPhotoPaths());
+            }
+            ImagePyramid.sweepInBackground(inUse);
+        });
+    }
+
+    /**
+     * Reads the capture date, dimensions and orientation from an image header.
+     *
+     * @param filePath the path of the image file
+     * @return a future completed on the application thread with the metadata
+     */
+    public static CompletableFuture<ImageMetadata> readMetadata(String filePath) {
+        return Background.call(() -> ImageMetadata.read(filePath));
+    }
+
+    private static Image decode(Callable<Image> decoder) throws Exception {
+        DECODERS.acquire();
+        try {
+            return decoder.call();
+        } finally {
+            DECODERS.release();
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/**
+ * Loads album contents and builds new photos off the JavaFX application thread.
+ *
+ * <p>
+ * An album's photos live in their own file and are read the first time they are needed.
+ * Reading that file here, on a virtual thread, and installing the result on the
+ * application thread means opening an album never stalls the UI, however many photos it
+ * holds. Albums whose photos are already in memory complete straight away. Work on the
+ * application thread that touches albums the user is not looking at, such as copying a
+ * photo into one or reporting an edit to every album holding a photo, goes through here
+ * so those albums are read first, in the background.
+ * </p>
+ *
+ * @author Adam Student
+ * @author Neer Patel
+ * @version 1.0
+ */
+package service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import model.Album;
+import model.Photo;
+import model.User;
+import util.ImageMetadata;
+
+/**
+ * Asynchronous access to the photos of albums.
+ */
+public class LibraryService {
+
+    /**
+     * Makes sure an album's photos are in memory. Must be called on the JavaFX application
+     * thread.
+     *
+     * @param album the album
+     * @return a future completed on the application thread once the photos are loaded
+     */
+    public static CompletableFuture<Album> loadAlbum(Album album) {
+        if (album.isLoaded()) {
+            return CompletableFuture.completedFuture(album);
+        }
+        return Background.call(album::readStoredPhotos).thenApply(stored -> {
+            album.installPhotos(stored);
+            return album;
+        });
+    }
+
+    /**
+     * Makes sure the photos of all of a user's albums are in memory. Must be called on the
+     * JavaFX application thread.
+     *
+     * @param user the user
+     * @return a future completed on the application thread once every album is loaded
+     */
+    public static CompletableFuture<User> loadAlbums(User user) {
+        return loadAlbums(user.getAlbums()).thenApply(ignored -> user);
+    }
+
+    /**
+     * Makes sure the photos of the given albums are in memory. Must be called on the JavaFX
+     * application thread.
+     *
+     * @param albums the albums
+     * @return a future completed on the application thread once every album is loaded
+     */
+    public static CompletableFuture<Void> loadAlbums(Collection<Album> albums) {
+        List<CompletableFuture<Album>> loads = new ArrayList<>();
+        for (Album album : albums) {
+            loads.add(loadAlbum(album));
+        }
+        return CompletableFuture.allOf(loads.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * Looks photos up by id, loading only one album holding each of them. Must be called on
+     * the JavaFX application thread.
+     *
+     * @param user the owner of the photos
+     * @param ids  the ids of the photos, such as search results
+     * @return a future completed on the application thread with the photos still in some
+     *         album, in the order of their ids
+     */
+    public static CompletableFuture<List<Photo>> findPhotos(User user, List<Long> ids) {
+        Set<Album> holders = new LinkedHashSet<>();
+        for (long id : ids) {
+            List<Album> albums = user.findAlbumsContaining(id);
+            if (!albums.isEmpty()) {
+                holders.add(albums.get(0));
+            }
+        }
+        return loadAlbums(holders).thenApply(loaded -> {
+            List<Photo> photos = new ArrayList<>(ids.size());
+            for (long id : ids) {
+                Photo photo = user.findPhoto(id);
+                if (photo != null) {
+                    photos.add(photo);
+                }
+            }
+            return photos;
+        });
+    }
+
+    /**
+     * Reports an edit to a photo to every album holding it, once those albums are loaded.
+     * Must be called on the JavaFX application thread.
+     *
+     * @param user  the owner of the photo
+     * @param photo the edited photo
+     * @return a future completed on the application thread once every album took the edit
+     */
+    public static CompletableFuture<Void> photoEdited(User user, Photo photo) {
+        return loadAlbums(user.findAlbumsContaining(photo)).thenRun(() -> user.photoEdited(photo));
+    }
+
+    /**
+     * Points an album's photos at the new paths of their moved files, in every album holding
+     * them, once those albums are loaded. Must be called on the JavaFX application thread.
+     *
+     * @param user  the owner of the album
+     * @param album the album the moves were reported for
+     * @param moves a map from each old file path to its new path
+     * @return a future completed on the application thread with the number of photos moved
+     */
+    public static CompletableFuture<Integer> relocatePhotos(User user, Album album, Map<String, String> moves) {
+        return loadAlbum(album).thenCompose(loaded -> {
+            Set<Album> holders = new LinkedHashSet<>();
+            for (String oldPath : moves.keySet()) {
+                Photo photo = album.findPhoto(oldPath);
+                if (photo != null) {
+                    holders.addAll(user.findAlbumsContaining(photo));
+                }
+            }
+            return loadAlbums(holders);
+        }).thenApply(loaded -> user.relocatePhotos(album, moves));
+    }
+
+    /**
+     * Creates a photo for an image file, reading its capture date, dimensions and
+     * orientation from the file header.
+     *
+     * @param filePath the absolute path of the image file
+     * @return a future completed on the application thread with the new photo
+     */
+    public static CompletableFuture<Photo> readPhoto(String filePath) {
+        return Background.call(() -> {
+            ImageMetadata metadata = ImageMetadata.read(filePath);
+            return new Photo(filePath, "", metadata.getDateTaken(), metadata.getWidth(), metadata.getHeight(),
+                    metadata.getOrientation());
+        });
+    }
+}
@@ -0,0 +1,332 @@
+/**
+ * Loads, saves and deletes user files off the JavaFX application thread.
+ *
+ * <p>
+ * A save captures the user on the application thread, which only serializes to memory,
+ * and writes the files on a virtual thread. Each user's writes run one after another in the
+ * order they were requested, so an older save can never overwrite a newer one, and loads
+ * and deletes queue behind pending writes so they always see the latest saved state.
+ * Different users have separate queues and do not wait for each other. Albums are marked
+ * saved back on the application thread once their files are on disk. {@link #flush()} waits
+ * for everything queued and is called when the application stops.
+ * </p>
+ *
+ * <p>
+ * Other processes may share the data directory. User files are version-stamped, and a save
+ * only writes if the file is still at the version the user was loaded or last saved as,
+ * checked under a short cross-process lock on that one user's file (see {@link SaveBatch}).
+ * If another process saved first, the stored user is read back, merged into the one in
+ * memory on the application thread, and the save is retried on top of it.
+ * </p>
+ *
+ * @author Adam Student
+ * @author Neer Patel
+ * @version 1.0
+ */
+package service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+import model.Album;
+import model.PhotoStore;
+import model.SaveBatch;
+import model.User;
+import util.FileManifest;
+import util.ThumbnailPack;
+import util.VersionedFile;
+
+/**
+ * Asynchronous, ordered access to the user files in data/users.
+ */
+public class PersistenceService {
+
+    private static final String USER_DIRECTORY = "data/users";
+
+    // How many times a save is merged and retried when other processes keep saving first,
+    // and the longest pause before the first retry; the pause doubles on every retry.
+    private static final int SAVE_ATTEMPTS = 8;
+    private static final long RETRY_PAUSE_MILLIS = 10;
+
+    // The last queued file operation of each user; the next one starts after it, whether it
+    // failed or not. Entries are dropped once their operation is done.
+    private static final Map<String, CompletableFuture<?>> lastOperations = new HashMap<>();
+
+    /**
+     * Returns the file a user is saved in.
+     *
+     * @param username the user's name
+     * @return the path of the user file
+     */
+    public static String userFile(String username) {
+        return USER_DIRECTORY + "/" + username + ".dat";
+    }
+
+    /**
+     * Returns whether a name belongs to a saved user. Only a plain name whose file is listed
+     * in the user directory counts, so a name can never point outside it.
+     *
+     * @param username the name to check, as given by a client
+     * @return true if there is a saved user of that name
+     */
+    public static boolean userExists(String username) {
+        if (username == null || username.isEmpty() || username.contains("/") || username.contains("\\")
+                || username.contains("..") || username.indexOf('\0') >= 0) {
+            return false;
+        }
+        String[] files = new File(USER_DIRECTORY).list();
+        if (files != null) {
+            for (String file : files) {
+                if (file.equals(username + ".dat")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Saves a user. Must be called on the JavaFX application thread, or while holding the
+     * user's session lock; the lock is taken here too if the user has an open session.
+     *
+     * @param user the user to save
+     * @return a future completed on the application thread once the files are written
+     */
+    public static CompletableFuture<Void> saveUser(User user) {
+        return saveUser(user, SAVE_ATTEMPTS);
+    }
+
+    private static CompletableFuture<Void> saveUser(User user, int attempts) {
+        SaveBatch batch;
+        try {
+            batch = locked(user, () -> SaveBatch.capture(user));
+        } catch (IOException e) {
+            System.err.println("Error saving data for " + user.getUsername() + ": " + e.getMessage());
+            return CompletableFuture.failedFuture(e);
+        }
+        String username = user.getUsername();
+        String file = userFile(username);
+        CompletableFuture<Boolean> written = enqueue(username, () -> {
+            try {
+                return batch.write(file);
+            } catch (IOException e) {
+                System.err.println("Error saving data to " + file + ": " + e.getMessage());
+                throw new RuntimeException(e);
+            }
+        });
+        return Background.onFxThread(written).thenCompose(done -> {
+            if (done) {
+                locked(user, () -> {
+                    batch.commit();
+                    return null;
+                });
+                return CompletableFuture.completedFuture(null);
+            }
+            if (attempts <= 1) {
+                System.err.println("Could not save " + username + ": the file keeps being changed by another process");
+                return CompletableFuture.failedFuture(new IOException(file + " keeps being changed by another process"));
+            }
+            // Another process saved first: take its changes in, then save on top of them. A
+            // random pause keeps two busy writers from colliding over and over.
+            long pause = ThreadLocalRandom.current().nextLong(RETRY_PAUSE_MILLIS << (SAVE_ATTEMPTS - attempts)) + 1;
+            return Background.onFxThread(enqueue(username, () -> {
+                try {
+                    Thread.sleep(pause);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return VersionedFile.<User>load(file);
+            }))
+                    .thenCompose(stored -> {
+                        locked(user, () -> {
+                            if (stored != null) {
+                                user.mergeStored(stored.getValue(), stored.getVersion());
+                            } else {
+                                // Deleted elsewhere, or unreadable: write it afresh.
+                                user.setStoredVersion(0);
+                            }
+                            return null;
+                        });
+                        return saveUser(user, attempts - 1);
+                    });
+        });
+    }
+
+    /**
+     * Loads a user once any pending saves have been written.
+     *
+     * @param username the user's name
+     * @return a future completed on the application thread with the user, or null if there
+     *         is no such user or the file cannot be read
+     */
+    public static CompletableFuture<User> loadUser(String username) {
+        return Background.onFxThread(enqueue(username, () -> load(userFile(username))));
+    }
+
+    /**
+     * Loads every saved user once any pending saves have been written.
+     *
+     * @return a future completed on the application thread with the users that could be read
+     */
+    public static CompletableFuture<List<User>> loadAllUsers() {
+        return Background.onFxThread(afterAll().thenApplyAsync(ignored -> {
+            File directory = new File(USER_DIRECTORY);
+            directory.mkdirs();
+            List<User> users = new ArrayList<>();
+            File[] userFiles = directory.listFiles((dir, name) -> name.endsWith(".dat"));
+            if (userFiles != null) {
+                for (File file : userFiles) {
+                    User user = load(file.getPath());
+                    if (user != null) {
+                        users.add(user);
+                    }
+                }
+            }
+            return users;
+        }, Background.executor()));
+    }
+
+    /**
+     * Deletes a user's file and the files of their albums, after any pending saves.
+     *
+     * @param user the user to delete
+     * @return a future completed on the application thread once the files are gone
+     */
+    @SuppressWarnings("try") // The lock is held for the block, never used in it.
+    public static CompletableFuture<Void> deleteUser(User user) {
+        List<Album> albums = new ArrayList<>(user.getAlbums());
+        String file = userFile(user.getUsername());
+        return Background.onFxThread(enqueue(user.getUsername(), () -> {
+            try (VersionedFile.Lock lock = VersionedFile.lock(Paths.get(file))) {
+                new File(file).delete();
+                for (Album album : albums) {
+                    deleteAlbumFiles(album);
+                }
+            } catch (IOException e) {
+                System.err.println("Could not lock " + file + " to delete it: " + e.getMessage());
+            }
+            return null;
+        }));
+    }
+
+    /**
+     * Deletes the photo file, thumbnail pack and folder manifest of a removed album, after
+     * any pending saves that may still write it.
+     *
+     * @param owner the user the album was removed from
+     * @param album the album that was removed
+     * @return a future completed on the application thread once the file is gone
+     */
+    public static CompletableFuture<Void> deleteAlbum(User owner, Album album) {
+        return Background.onFxThread(enqueue(owner.getUsername(), () -> {
+            deleteAlbumFiles(album);
+            return null;
+        }));
+    }
+
+    /**
+     * Reads the column stores saved with albums' photos, after any pending saves, without
+     * loading the photos. A store that is missing or was saved for an older state of its
+     * album is built again from the album's photo file, under the user file's cross-process
+     * lock so no save rewrites that file meanwhile. Only for albums without unsaved photos.
+     *
+     * @param owner  the user owning the albums
+     * @param albums the albums
+     * @return a future completed on the application thread with one store per album, in order
+     */
+    @SuppressWarnings("try") // The lock is held for the block, never used in it.
+    public static CompletableFuture<List<PhotoStore>> readAlbumStores(User owner, List<Album> albums) {
+        String file = userFile(owner.getUsername());
+        return Background.onFxThread(enqueue(owner.getUsername(), () -> {
+            List<PhotoStore> stores = new ArrayList<>(albums.size());
+            for (Album album : albums) {
+                PhotoStore store = album.mapStore();
+                if (store == null) {
+                    try (VersionedFile.Lock lock = VersionedFile.lock(Paths.get(file))) {
+                        store = album.rebuildStore();
+                    } catch (IOException e) {
+                        System.err.println("Could not lock " + file + " to index an album: " + e.getMessage());
+                        store = album.rebuildStore();
+                    }
+                }
+                stores.add(store);
+            }
+            return stores;
+        }));
+    }
+
+    // Removes everything kept on disk for an album besides its record in the user file.
+    private static void deleteAlbumFiles(Album album) {
+        album.deleteStoredPhotos();
+        ThumbnailPack.delete(album.getId());
+        FileManifest.delete(album.getId());
+    }
+
+    /**
+     * Waits until every queued save, load and delete has finished. Blocks the caller, so
+     * it is only meant for shutdown.
+     */
+    public static void flush() {
+        afterAll().join();
+    }
+
+    // Runs an action on a user under its session lock, if it has an open session.
+    private static <T, E extends Exception> T locked(User user, Action<T, E> action) throws E {
+        ReentrantLock lock = SessionRegistry.lockFor(user.getUsername());
+        if (lock == null) {
+            return action.run();
+        }
+        lock.lock();
+        try {
+            return action.run();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private interface Action<T, E extends Exception> {
+        T run() throws E;
+    }
+
+    // Reads a user file, noting the version it was read at in the user.
+    private static User load(String file) {
+        VersionedFile.Loaded<User> loaded = VersionedFile.load(file);
+        if (loaded == null) {
+            return null;
+        }
+        User user = loaded.getValue();
+        user.setStoredVersion(loaded.getVersion());
+        return user;
+    }
+
+    // Queues a file operation behind all earlier ones of the same user and runs it on a virtual thread.
+    private static synchronized <T> CompletableFuture<T> enqueue(String username, Supplier<T> operation) {
+        Executor executor = Background.executor();
+        CompletableFuture<?> previous = lastOperations.getOrDefault(username, CompletableFuture.completedFuture(null));
+        CompletableFuture<T> next = previous.handle((value, error) -> null)
+                .thenApplyAsync(ignored -> operation.get(), executor);
+        lastOperations.put(username, next);
+        next.whenComplete((value, error) -> forget(username, next));
+        return next;
+    }
+
+    private static synchronized void forget(String username, CompletableFuture<?> operation) {
+        lastOperations.remove(username, operation);
+    }
+
+    // Completes once every operation queued so far, for any user, has finished.
+    private static synchronized CompletableFuture<Void> afterAll() {
+        return CompletableFuture.allOf(lastOperations.values().toArray(new CompletableFuture<?>[0]))
+                .handle((value, error) -> null);
+    }
+}
@@ -0,0 +1,182 @@
+/**
+ * Builds the search index over a user's photos and runs queries against it off the JavaFX
+ * application thread.
+ *
+ * <p>
+ * The index is one columnar {@link PhotoStore} per album rather than a copy of the whole
+ * library. Albums whose photos are saved contribute the store written with them, mapped
+ * from its file by {@link PersistenceService#readAlbumStores(User, List)}, so indexing reads
+ * neither their photos nor brings them into memory. Only albums with unsaved photos, which
+ * are in memory anyway, are copied into a store from their snapshot. Queries scan the stores
+ * on a virtual thread and hand back matching rows, each photo once even if several albums
+ * hold it. Rows are read straight from the stores; callers that need the photos themselves
+ * look them up by id through the user's photo index (see
+ * {@link LibraryService#findPhotos(User, List)}). A search scoped to one album indexes just
+ * that album.
+ * </p>
+ *
+ * @author Adam Student
+ * @author Neer Patel
+ * @version 1.0
+ */
+package service;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+import model.Album;
+import model.AlbumSnapshot;
+import model.LibrarySnapshot;
+import model.PhotoStore;
+import model.Tag;
+import model.User;
+
+/**
+ * Asynchronous photo search.
+ */
+public class SearchService {
+
+    /**
+     * A searchable copy of a user's photos, as they were when it was built.
+     */
+    public static class Index {
+        // One store per album, in the user's album order, and the id of each album.
+        private final List<PhotoStore> stores;
+        private final List<String> albumIds;
+
+        private Index(List<PhotoStore> stores, List<String> albumIds) {
+            this.stores = stores;
+            this.albumIds = albumIds;
+        }
+
+        /**
+         * Returns the part of the index covering one album.
+         *
+         * @param albumId the album's id
+         * @return the album's index, or null if the album is not in this one
+         */
+        public Index album(String albumId) {
+            int i = albumIds.indexOf(albumId);
+            return i < 0 ? null : new Index(List.of(stores.get(i)), List.of(albumId));
+        }
+
+        /**
+         * Returns the distinct tags used by the indexed photos.
+         *
+         * @return the tags, in order of first use
+         */
+        public List<Tag> getTags() {
+            Set<Tag> tags = new LinkedHashSet<>();
+            for (PhotoStore store : stores) {
+                tags.addAll(store.getTags());
+            }
+            return new ArrayList<>(tags);
+        }
+
+        /**
+         * Finds the photos taken within a range.
+         *
+         * @param start the earliest capture time, inclusive
+         * @param end   the latest capture time, inclusive
+         * @return a future completed on the application thread with the matching rows
+         */
+        public CompletableFuture<List<PhotoStore.Row>> takenBetween(LocalDateTime start, LocalDateTime end) {
+            return Background.call(() -> rows(store -> store.takenBetween(start, end)));
+        }
+
+        /**
+         * Finds the photos that carry every one of the tags.
+         *
+         * @param tags the tags
+         * @return a future completed on the application thread with the matching rows
+         */
+        public CompletableFuture<List<PhotoStore.Row>> taggedWithAll(List<Tag> tags) {
+            return Background.call(() -> rows(store -> store.taggedWithAll(tags)));
+        }
+
+        /**
+         * Finds the photos that carry at least one of the tags.
+         *
+         * @param tags the tags
+         * @return a future completed on the application thread with the matching rows
+         */
+        public CompletableFuture<List<PhotoStore.Row>> taggedWithAny(List<Tag> tags) {
+            return Background.call(() -> rows(store -> store.taggedWithAny(tags)));
+        }
+
+        // Runs a query on every store, keeping the first row found for each photo.
+        private List<PhotoStore.Row> rows(Function<PhotoStore, int[]> query) {
+            List<PhotoStore.Row> matches = new ArrayList<>();
+            Set<Long> seen = new HashSet<>();
+            for (PhotoStore store : stores) {
+                for (int row : query.apply(store)) {
+                    PhotoStore.Row match = store.row(row);
+                    if (seen.add(match.getId())) {
+                        matches.add(match);
+                    }
+                }
+            }
+            return matches;
+        }
+    }
+
+    /**
+     * Indexes a user's photos. Must be called on the JavaFX application thread, or while
+     * holding the user's session lock.
+     *
+     * @param user    the user
+     * @param offHeap whether to keep the stores copied from unsaved albums outside the Java
+     *                heap; stores read from files are mapped, and off the heap either way
+     * @return a future completed on the application thread with the index
+     */
+    public static CompletableFuture<Index> index(User user, boolean offHeap) {
+        return index(user, new ArrayList<>(user.getAlbums()), offHeap);
+    }
+
+    /**
+     * Indexes the photos of one album. Searches scoped to an album use this, so no other
+     * album is read for them. Must be called on the JavaFX application thread, or while
+     * holding the user's session lock.
+     *
+     * @param user    the user owning the album
+     * @param album   the album
+     * @param offHeap whether to keep the store outside the Java heap if it has to be copied
+     * @return a future completed on the application thread with the index
+     */
+    public static CompletableFuture<Index> index(User user, Album album, boolean offHeap) {
+        return index(user, List.of(album), offHeap);
+    }
+
+    private static CompletableFuture<Index> index(User user, List<Album> albums, boolean offHeap) {
+        // Unsaved photos are only in memory; the snapshot copies them as they are now.
+        LibrarySnapshot library = user.publish();
+        List<String> albumIds = new ArrayList<>(albums.size());
+        // The snapshot of each album to copy, or null for an album read from its saved store.
+        List<AlbumSnapshot> copies = new ArrayList<>(albums.size());
+        List<Album> saved = new ArrayList<>();
+        for (Album album : albums) {
+            albumIds.add(album.getId());
+            if (album.hasUnsavedPhotos()) {
+                copies.add(library.findAlbumById(album.getId()));
+            } else {
+                copies.add(null);
+                saved.add(album);
+            }
+        }
+        return PersistenceService.readAlbumStores(user, saved).thenCompose(savedStores -> Background.call(() -> {
+            List<PhotoStore> stores = new ArrayList<>(copies.size());
+            Iterator<PhotoStore> read = savedStores.iterator();
+            for (AlbumSnapshot copy : copies) {
+                stores.add(copy == null ? read.next() : PhotoStore.of(copy, offHeap));
+            }
+            return new Index(stores, albumIds);
+        }));
+    }
+}
@@ -0,0 +1,188 @@
+/**
+ * One user's working context: who is logged in, which album they are looking at, and
+ * whatever they have cached along the way.
+ *
+ * <p>
+ * Sessions are created by {@link SessionRegistry} and may be used from any thread. The
+ * session's own state (current album, cache, last access time) is safe to read and write
+ * concurrently. The {@link User} it points to is shared with every other session of the
+ * same user and is not thread-safe itself, so code running anywhere but the JavaFX
+ * application thread must hold {@link #lock()} while it reads or modifies it, most simply
+ * through {@link #withUser(Function)}.
+ * </p>
+ *
+ * <p>
+ * Cached values are derived from the user, so the session follows the user's
+ * {@link LibraryEvent}s and drops its cache whenever the library changes, whoever changed
+ * it. Dropped values that hold resources, such as mapped thumbnail packs, are closed.
+ * </p>
+ *
+ * @author Adam Student
+ * @author Neer Patel
+ * @version 1.0
+ */
+package service;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import model.Album;
+import model.LibraryEvent;
+import model.User;
+
+/**
+ * Per-session state, safe to share between threads.
+ */
+public class Session implements LibraryEvent.Listener {
+
+    private final String id = UUID.randomUUID().toString();
+    private final User user;
+    private final ReentrantLock userLock;
+    private final ConcurrentMap<String, Object> cache = new ConcurrentHashMap<>();
+    private volatile Album currentAlbum;
+    private volatile long lastAccessed = System.currentTimeMillis();
+    private volatile boolean closed;
+
+    Session(User user, ReentrantLock userLock) {
+        this.user = user;
+        this.userLock = userLock;
+    }
+
+    /**
+     * Returns the id the session is registered under.
+     *
+     * @return a random, unguessable id
+     */
+    public String getId() {
+        return id;
+    }
+
+    public User getUser() {
+        touch();
+        return user;
+    }
+
+    public String getUsername() {
+        return user.getUsername();
+    }
+
+    /**
+     * Returns the lock guarding the user, shared by every session of that user.
+     *
+     * @return the user's lock
+     */
+    public ReentrantLock lock() {
+        return userLock;
+    }
+
+    /**
+     * Runs an action on the user while holding its lock.
+     *
+     * @param <T>    the type of result
+     * @param action the action
+     * @return the action's result
+     */
+    public <T> T withUser(Function<User, T> action) {
+        userLock.lock();
+        try {
+            return action.apply(getUser());
+        } finally {
+            userLock.unlock();
+        }
+    }
+
+    public Album getCurrentAlbum() {
+        return currentAlbum;
+    }
+
+    public void setCurrentAlbum(Album album) {
+        touch();
+        this.currentAlbum = album;
+    }
+
+    /**
+     * Returns a cached value, computing it on first use. Each session has its own cache,
+     * so one user's cached search index or listings never leak into another session.
+     *
+     * @param <T>    the type of value
+     * @param key    the cache key
+     * @param loader computes the value if it is not cached
+     * @return the cached value
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T cached(String key, Supplier<T> loader) {
+        touch();
+        return (T) cache.computeIfAbsent(key, k -> loader.get());
+    }
+
+    /**
+     * Drops a cached value, so it is computed again on next use.
+     *
+     * @param key the cache key
+     */
+    public void invalidate(String key) {
+        release(cache.remove(key));
+    }
+
+    /**
+     * Drops every cached value.
+     */
+    public void invalidateAll() {
+        for (String key : cache.keySet()) {
+            release(cache.remove(key));
+        }
+    }
+
+    /**
+     * Drops the cache, which may hold state from before the change.
+     *
+     * @param event the change to the user's library
+     */
+    @Override
+    public void libraryChanged(LibraryEvent event) {
+        invalidateAll();
+    }
+
+    /**
+     * Returns when the session was last used.
+     *
+     * @return the time in milliseconds since the epoch
+     */
+    public long getLastAccessed() {
+        return lastAccessed;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    void markClosed() {
+        closed = true;
+        currentAlbum = null;
+        invalidateAll();
+    }
+
+    // Closes a dropped cache value that holds resources.
+    private static void release(Object value) {
+        if (value instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable) value).close();
+            } catch (Exception e) {
+                System.err.println("Error releasing cached value: " + e.getMessage());
+            }
+        }
+    }
+
+    private void touch() {
+        lastAccessed = System.currentTimeMillis();
+    }
+
+    @Override
+    public String toString() {
+        return "Session[" + getUsername() + "]";
+    }
+}
@@ -0,0 +1,167 @@
+/**
+ * Registry of the sessions open in this process.
+ *
+ * <p>
+ * Any number of users can be logged in at once, for example at a shared kiosk or through
+ * the headless server, and each login gets its own {@link Session} with isolated state.
+ * Two sessions of the same user share one in-memory {@link User} and one lock, so an edit
+ * made in one is seen by the other and their saves never overwrite each other with stale
+ * copies. The shared user is dropped once its last session closes.
+ * </p>
+ *
+ * @author Adam Student
+ * @author Neer Patel
+ * @version 1.0
+ */
+package service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import model.User;
+
+/**
+ * Thread-safe registry of open sessions.
+ */
+public class SessionRegistry {
+
+    // A user shared by all of its open sessions.
+    private static class Library {
+        final User user;
+        final ReentrantLock lock = new ReentrantLock();
+        int sessions;
+
+        Library(User user) {
+            this.user = user;
+        }
+    }
+
+    private static final ConcurrentMap<String, Session> SESSIONS = new ConcurrentHashMap<>();
+    // Guarded by itself; only touched when sessions open and close.
+    private static final Map<String, Library> LIBRARIES = new HashMap<>();
+
+    /**
+     * Opens a session for a user. If the user already has an open session, the new one
+     * shares that session's in-memory user rather than the copy passed in, so use
+     * {@link Session#getUser()} from here on.
+     *
+     * @param user the user, typically just loaded from disk
+     * @return the new session
+     */
+    public static Session open(User user) {
+        Library library;
+        synchronized (LIBRARIES) {
+            library = LIBRARIES.computeIfAbsent(user.getUsername(), name -> new Library(user));
+            library.sessions++;
+        }
+        Session session = new Session(library.user, library.lock);
+        library.user.addListener(session);
+        SESSIONS.put(session.getId(), session);
+        System.out.println("Opened session for " + user.getUsername() + " (" + SESSIONS.size() + " open)");
+        return session;
+    }
+
+    /**
+     * Finds an open session.
+     *
+     * @param id the session id
+     * @return the session, or null if there is none with that id
+     */
+    public static Session find(String id) {
+        return id == null ? null : SESSIONS.get(id);
+    }
+
+    /**
+     * Returns the in-memory copy of a user that has an open session.
+     *
+     * @param username the user's name
+     * @return the shared user, or null if the user has no open session
+     */
+    public static User openUser(String username) {
+        synchronized (LIBRARIES) {
+            Library library = LIBRARIES.get(username);
+            return library == null ? null : library.user;
+        }
+    }
+
+    /**
+     * Returns the lock shared by the open sessions of a user.
+     *
+     * @param username the user's name
+     * @return the user's lock, or null if the user has no open session
+     */
+    public static ReentrantLock lockFor(String username) {
+        synchronized (LIBRARIES) {
+            Library library = LIBRARIES.get(username);
+            return library == null ? null : library.lock;
+        }
+    }
+
+    /**
+     * Returns the open sessions of a user.
+     *
+     * @param username the user's name
+     * @return the user's sessions
+     */
+    public static List<Session> sessionsOf(String username) {
+        List<Session> sessions = new ArrayList<>();
+        for (Session session : SESSIONS.values()) {
+            if (session.getUsername().equals(username)) {
+                sessions.add(session);
+            }
+        }
+        return sessions;
+    }
+
+    /**
+     * Returns every open session.
+     *
+     * @return a snapshot of the open sessions
+     */
+    public static List<Session> all() {
+        return new ArrayList<>(SESSIONS.values());
+    }
+
+    /**
+     * Closes a session. Closing a session twice has no effect.
+     *
+     * @param session the session to close
+     */
+    public static void close(Session session) {
+        if (session == null || SESSIONS.remove(session.getId()) == null) {
+            return;
+        }
+        session.getUser().removeListener(session);
+        session.markClosed();
+        synchronized (LIBRARIES) {
+            Library library = LIBRARIES.get(session.getUsername());
+            if (library != null && --library.sessions == 0) {
+                LIBRARIES.remove(session.getUsername());
+            }
+        }
+        System.out.println("Closed session for " + session.getUsername() + " (" + SESSIONS.size() + " open)");
+    }
+
+    /**
+     * Closes sessions that have not been used for a while.
+     *
+     * @param maxIdleMillis how long a session may go unused
+     * @return the number of sessions closed
+     */
+    public static int closeIdle(long maxIdleMillis) {
+        long cutoff = System.currentTimeMillis() - maxIdleMillis;
+        int closed = 0;
+        for (Session session : all()) {
+            if (session.getLastAccessed() < cutoff) {
+                close(session);
+                closed++;
+            }
+        }
+        return closed;
+    }
+}
@@ -0,0 +1,148 @@
+/**
+ * A Burkhard-Keller tree over 64-bit hashes using Hamming distance.
+ *
+ * <p>
+ * Every node stores a hash and the items that share it; its children are keyed by their
+ * distance to the node. Because Hamming distance obeys the triangle inequality, a search for
+ * everything within distance k of a query only has to descend into children whose key lies
+ * within k of the query's distance to the node, which prunes most of the tree for small k.
+ * </p>
+ *
+ * <p>
+ * Removing an item only takes it out of its node; the node itself stays in place to keep
+ * routing searches, so removal never restructures the tree.
+ * </p>
+ *
+ * @author Adam Student
+ * @author Neer Patel
+ * @version 1.0
+ */
+package util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hamming-distance index for near-duplicate lookups.
+ *
+ * @param <T> the type of item indexed by hash
+ */
+public class BKTree<T> {
+
+    private static class Node<T> {
+        final long hash;
+        final List<T> items = new ArrayList<>(1);
+        Map<Integer, Node<T>> children;
+
+        Node(long hash) {
+            this.hash = hash;
+        }
+    }
+
+    private Node<T> root;
+    private int size;
+
+    /**
+     * Adds an item under the given hash.
+     *
+     * @param hash the hash of the item
+     * @param item the item
+     */
+    public void add(long hash, T item) {
+        size++;
+        if (root == null) {
+            root = new Node<>(hash);
+            root.items.add(item);
+            return;
+        }
+        Node<T> node = root;
+        while (true) {
+            int distance = PerceptualHash.distance(hash, node.hash);
+            if (distance == 0) {
+                node.items.add(item);
+                return;
+            }
+            if (node.children == null) {
+                node.children = new HashMap<>(4);
+            }
+            Node<T> child = node.children.get(distance);
+            if (child == null) {
+                child = new Node<>(hash);
+                child.items.add(item);
+                node.children.put(distance, child);
+                return;
+            }
+            node = child;
+        }
+    }
+
+    /**
+     * Removes one occurrence of an item stored under the given hash.
+     *
+     * @param hash the hash the item was added with
+     * @param item the item
+     * @return true if the item was found and removed
+     */
+    public boolean remove(long hash, T item) {
+        Node<T> node = root;
+        while (node != null) {
+            int distance = PerceptualHash.distance(hash, node.hash);
+            if (distance == 0) {
+                boolean removed = node.items.remove(item);
+                if (removed) {
+                    size--;
+                }
+                return removed;
+            }
+            node = node.children == null ? null : node.children.get(distance);
+        }
+        return false;
+    }
+
+    /**
+     * Finds every item whose hash is within the given distance of the query.
+     *
+     * @param hash        the query hash
+     * @param maxDistance the largest Hamming distance to include
+     * @return the matching items, in no particular order
+     */
+    public List<T> search(long hash, int maxDistance) {
+        List<T> results = new ArrayList<>();
+        if (root == null) {
+            return results;
+        }
+        Deque<Node<T>> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            Node<T> node = pending.pop();
+            int distance = PerceptualHash.distance(hash, node.hash);
+            if (distance <= maxDistance) {
+                results.addAll(node.items);
+            }
+            if (node.children == null) {
+                continue;
+            }
+            int low = distance - maxDistance;
+            int high = distance + maxDistance;
+            for (Map.Entry<Integer, Node<T>> child : node.children.entrySet()) {
+                if (child.getKey() >= low && child.getKey() <= high) {
+                    pending.push(child.getValue());
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Returns the number of items in the tree.
+     *
+     * @return the item count
+     */
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,191 @@
+/**
+ * Content digests of image files for integrity checks, exact-duplicate detection and cache keys.
+ *
+ * <p>
+ * Files are read through a {@link FileChannel} without copying them into Java byte arrays:
+ * small files are read into a per-thread direct buffer, larger ones are memory-mapped in
+ * windows and fed to the digest straight from the page cache. Hashing runs on a bounded pool
+ * so a large import cannot start more concurrent whole-file reads than there are processors.
+ * </p>
+ *
+ * <p>
+ * Each digest remembers the size and modification time the file had when it was read. A
+ * refresh compares those against the file's current attributes and only re-reads files that
+ * changed, so re-running over a library costs one attribute lookup per unchanged file.
+ * </p>
+ *
+ * @author Adam Student
+ * @author Neer Patel
+ * @version 1.0
+ */
+package util;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Computes SHA-256 digests of files through direct and memory-mapped buffers.
+ */
+public class ContentHasher {
+
+    /**
+     * The digest of a file together with the attributes it had when it was read.
+     */
+    public static class Digest implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String hash;
+        private final long size;
+        private final long lastModified;
+
+        public Digest(String hash, long size, long lastModified) {
+            this.hash = hash;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        /** The SHA-256 digest as lowercase hex. */
+        public String getHash() {
+            return hash;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * Returns whether a file with the given attributes still has this digest, assuming
+         * its content only changes together with its size or modification time.
+         *
+         * @param size         the current size in bytes
+         * @param lastModified the current modification time in milliseconds
+         * @return true if both match
+         */
+        public boolean matches(long size, long lastModified) {
+            return this.size == size && this.lastModified == lastModified;
+        }
+    }
+
+    // Files up to this size are read into a direct buffer; larger ones are mapped.
+    private static final int DIRECT_READ_LIMIT = 1 << 20;
+    // Mapping window; keeps each mapping well under the 2 GB limit of a single buffer.
+    private static final long MAP_WINDOW = 256L << 20;
+
+    private static final ThreadLocal<ByteBuffer> READ_BUFFERS = ThreadLocal
+            .withInitial(() -> ByteBuffer.allocateDirect(DIRECT_READ_LIMIT));
+
+    private static final ExecutorService HASHERS = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), runnable -> {
+                Thread thread = new Thread(runnable, "content-hash");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /**
+     * Digests a file on the calling thread.
+     *
+     * @param file the file to digest
+     * @return the digest, or null if the file cannot be read or changed while it was read
+     */
+    public static Digest digest(Path file) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            BasicFileAttributes before = Files.readAttributes(file, BasicFileAttributes.class);
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            long size = channel.size();
+            if (size <= DIRECT_READ_LIMIT) {
+                ByteBuffer buffer = READ_BUFFERS.get();
+                buffer.clear();
+                while (buffer.hasRemaining() && channel.read(buffer) > 0) {
+                    // Keep reading until the whole file is in the buffer.
+                }
+                buffer.flip();
+                digest.update(buffer);
+            } else {
+                for (long position = 0; position < size; position += MAP_WINDOW) {
+                    digest.update(channel.map(FileChannel.MapMode.READ_ONLY, position,
+                            Math.min(MAP_WINDOW, size - position)));
+                }
+            }
+            BasicFileAttributes after = Files.readAttributes(file, BasicFileAttributes.class);
+            long lastModified = after.lastModifiedTime().toMillis();
+            if (after.size() != size || before.lastModifiedTime().toMillis() != lastModified) {
+                return null; // Written to while we were reading; try again on the next refresh.
+            }
+            return new Digest(HexFormat.of().formatHex(digest.digest()), size, lastModified);
+        } catch (IOException | NoSuchAlgorithmException e) {
+            System.err.println("Error hashing " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Digests a file on the hashing pool.
+     *
+     * @param filePath the path of the file
+     * @return a future completing with the digest, or with null if it could not be computed
+     */
+    public static CompletableFuture<Digest> digestAsync(String filePath) {
+        return CompletableFuture.supplyAsync(() -> digest(Paths.get(filePath)), HASHERS);
+    }
+
+    /**
+     * Brings a set of digests up to date. Files whose size and modification time still match
+     * their known digest are not read again; all others are digested in parallel.
+     *
+     * @param known the file paths to check, each mapped to its last known digest or null
+     * @return the current digest of every file that could be read
+     */
+    public static Map<String, Digest> refresh(Map<String, Digest> known) {
+        Map<String, Digest> digests = new HashMap<>();
+        List<String> stale = new ArrayList<>();
+        for (Map.Entry<String, Digest> entry : known.entrySet()) {
+            Digest digest = entry.getValue();
+            if (digest != null && isCurrent(Paths.get(entry.getKey()), digest)) {
+                digests.put(entry.getKey(), digest);
+            } else {
+                stale.add(entry.getKey());
+            }
+        }
+        List<CompletableFuture<Digest>> futures = new ArrayList<>(stale.size());
+        for (String path : stale) {
+            futures.add(digestAsync(path));
+        }
+        for (int i = 0; i < stale.size(); i++) {
+            Digest digest = futures.get(i).join();
+            if (digest != null) {
+                digests.put(stale.get(i), digest);
+            }
+        }
+        return digests;
+    }
+
+    private static boolean isCurrent(Path file, Digest digest) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+            return digest.matches(attrs.size(), attrs.lastModifiedTime().toMillis());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
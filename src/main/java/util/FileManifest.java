@@ -0,0 +1,217 @@
+/**
+ * Persistent record of the image files last seen under a folder.
+ *
+ * <p>
+ * A manifest stores, for every image file, its size, last modified time and a digest of its
+ * content, and for every
+ * directory its own last modified time together with the names of the files and
+ * subdirectories it held. Since a directory's modification time only changes when entries
+ * are added to it or removed from it, comparing that time against the manifest tells whether
+ * the directory has to be listed again at all. This lets folder-backed albums reconcile with
+ * the disk on startup without re-listing every directory.
+ * </p>
+ *
+ * @author Adam Student
+ * @author Neer Patel
+ * @version 1.0
+ */
+package util;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Sizes and modification times of the files and directories under a watched folder.
+ */
+public class FileManifest implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    // Manifests of folder-backed albums, one per album, named after the album id.
+    private static final String MANIFEST_DIRECTORY = "data/manifests";
+
+    /**
+     * What the manifest knows about one image file.
+     */
+    public static class FileEntry implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final long size;
+        private final long lastModified;
+        // Hex digest of the file content, or null if it has not been computed.
+        private final String hash;
+
+        public FileEntry(long size, long lastModified) {
+            this(size, lastModified, null);
+        }
+
+        public FileEntry(long size, long lastModified, String hash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        /**
+         * Returns a copy of this entry carrying the given content digest.
+         *
+         * @param hash the hex digest of the file content
+         * @return the new entry
+         */
+        public FileEntry withHash(String hash) {
+            return new FileEntry(size, lastModified, hash);
+        }
+
+        /**
+         * Returns whether a file with the given attributes is unchanged from this entry.
+         *
+         * @param size         the current size in bytes
+         * @param lastModified the current modification time in milliseconds
+         * @return true if both match
+         */
+        public boolean matches(long size, long lastModified) {
+            return this.size == size && this.lastModified == lastModified;
+        }
+    }
+
+    /**
+     * What the manifest knows about one directory.
+     */
+    public static class DirectoryEntry implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final long lastModified;
+        private final HashSet<String> files;
+        private final HashSet<String> subdirectories;
+
+        public DirectoryEntry(long lastModified, HashSet<String> files, HashSet<String> subdirectories) {
+            this.lastModified = lastModified;
+            this.files = files;
+            this.subdirectories = subdirectories;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        /** Absolute paths of the image files directly inside the directory. */
+        public Set<String> getFiles() {
+            return files;
+        }
+
+        /** Absolute paths of the directory's subdirectories. */
+        public Set<String> getSubdirectories() {
+            return subdirectories;
+        }
+    }
+
+    private final HashMap<String, FileEntry> files = new HashMap<>();
+    private final HashMap<String, DirectoryEntry> directories = new HashMap<>();
+
+    /**
+     * Returns the file the manifest of a folder-backed album is stored in.
+     *
+     * @param albumId the id of the album
+     * @return the manifest file's path
+     */
+    public static String fileFor(String albumId) {
+        return MANIFEST_DIRECTORY + "/" + albumId + ".manifest";
+    }
+
+    /**
+     * Deletes the stored manifest of an album, if there is one.
+     *
+     * @param albumId the id of the album
+     */
+    public static void delete(String albumId) {
+        try {
+            Files.deleteIfExists(Paths.get(fileFor(albumId)));
+        } catch (IOException e) {
+            System.err.println("Could not delete " + fileFor(albumId) + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Loads a manifest from disk.
+     *
+     * @param filePath the manifest file
+     * @return the stored manifest, or an empty one if none was saved yet
+     */
+    public static FileManifest load(String filePath) {
+        FileManifest manifest = SerializationUtil.load(filePath);
+        return manifest != null ? manifest : new FileManifest();
+    }
+
+    public FileEntry getFile(String path) {
+        return files.get(path);
+    }
+
+    public void putFile(String path, FileEntry entry) {
+        files.put(path, entry);
+    }
+
+    /**
+     * Forgets a file.
+     *
+     * @param path the file to drop
+     * @return the entry that was stored for it, or null if it was unknown
+     */
+    public FileEntry removeFile(String path) {
+        return files.remove(path);
+    }
+
+    public Collection<String> getFilePaths() {
+        return files.keySet();
+    }
+
+    public DirectoryEntry getDirectory(String path) {
+        return directories.get(path);
+    }
+
+    public void putDirectory(String path, DirectoryEntry entry) {
+        directories.put(path, entry);
+    }
+
+    public Collection<String> getDirectoryPaths() {
+        return directories.keySet();
+    }
+
+    /**
+     * Forgets a directory, everything below it and all of its files.
+     *
+     * @param path    the directory to drop
+     * @param removed receives the paths and entries of the files that were dropped
+     */
+    public void removeDirectory(String path, Map<String, FileEntry> removed) {
+        DirectoryEntry entry = directories.remove(path);
+        if (entry == null) {
+            return;
+        }
+        for (String file : entry.getFiles()) {
+            FileEntry fileEntry = files.remove(file);
+            if (fileEntry != null) {
+                removed.put(file, fileEntry);
+            }
+        }
+        for (String subdirectory : new HashSet<>(entry.getSubdirectories())) {
+            removeDirectory(subdirectory, removed);
+        }
+    }
+}
@@ -0,0 +1,426 @@
+/**
+ * Keeps a {@link FileManifest} in sync with a folder tree and reports batches of changes.
+ *
+ * <p>
+ * On start the watcher first reconciles the folder against the stored manifest: directories
+ * whose modification time is unchanged are not listed again, only their known files are
+ * checked for size or time changes. It then registers every directory with a
+ * {@link WatchService} and turns file system events into batches. Events are coalesced until
+ * the folder has been quiet for a short while (or a maximum delay has passed), and each
+ * directory touched by the batch is listed once and diffed against the manifest, so a burst
+ * of thousands of events from a camera dump results in a single batch of net changes.
+ * Added and modified files are digested before delivery; a removed file whose size and
+ * digest match an added one is reported as a rename instead.
+ * </p>
+ *
+ * <p>
+ * Batches are handed to a listener on the watcher thread. The manifest is saved only after
+ * the listener returns, so a crash in between at worst reports the same changes again on the
+ * next start. If the event queue overflows, the watcher falls back to a full reconcile.
+ * </p>
+ *
+ * @author Adam Student
+ * @author Neer Patel
+ * @version 1.0
+ */
+package util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Watches one folder tree and reports net changes to its image files in batches.
+ */
+public class FolderWatcher implements Closeable {
+
+    // A batch is flushed once no event arrived for this long...
+    private static final long QUIET_MILLIS = 500;
+    // ...or once it has been collecting for this long, whichever comes first.
+    private static final long MAX_BATCH_MILLIS = 3000;
+
+    /**
+     * The net changes of one batch, as absolute file paths.
+     */
+    public static class Changes {
+        private final Set<String> added = new LinkedHashSet<>();
+        private final Set<String> modified = new LinkedHashSet<>();
+        // Removed files with what the manifest knew about them, used to recognise renames.
+        private final Map<String, FileManifest.FileEntry> removed = new LinkedHashMap<>();
+        private final Map<String, String> renamed = new LinkedHashMap<>();
+        private final Map<String, ContentHasher.Digest> digests = new HashMap<>();
+
+        public Set<String> getAdded() {
+            return added;
+        }
+
+        public Set<String> getModified() {
+            return modified;
+        }
+
+        public Set<String> getRemoved() {
+            return removed.keySet();
+        }
+
+        /**
+         * Returns files that were moved or renamed, recognised by an identical content digest.
+         * Such files appear here instead of in the added and removed sets.
+         *
+         * @return a map from each old path to its new path
+         */
+        public Map<String, String> getRenamed() {
+            return renamed;
+        }
+
+        /**
+         * Returns the content digests of the added and modified files that could be read.
+         *
+         * @return a map from file path to digest
+         */
+        public Map<String, ContentHasher.Digest> getDigests() {
+            return digests;
+        }
+
+        public boolean isEmpty() {
+            return added.isEmpty() && modified.isEmpty() && removed.isEmpty() && renamed.isEmpty();
+        }
+    }
+
+    private final Path root;
+    private final String manifestFile;
+    private final FileManifest manifest;
+    private final Consumer<Changes> listener;
+    private final Map<WatchKey, Path> watchedDirectories = new HashMap<>();
+    private final WatchService watchService;
+    private Thread thread;
+    private volatile boolean closed;
+
+    /**
+     * Creates a watcher for a folder.
+     *
+     * @param root         the folder to keep in sync
+     * @param manifestFile where the folder's manifest is stored
+     * @param listener     receives each non-empty batch of changes, on the watcher thread
+     * @throws IOException if the file system cannot be watched
+     */
+    public FolderWatcher(Path root, String manifestFile, Consumer<Changes> listener) throws IOException {
+        this.root = root.toAbsolutePath();
+        this.manifestFile = manifestFile;
+        this.manifest = FileManifest.load(manifestFile);
+        this.listener = listener;
+        // Created here rather than on the watcher thread, so close() always has it to close.
+        this.watchService = FileSystems.getDefault().newWatchService();
+    }
+
+    /**
+     * Starts the watcher thread: reconciles with the stored manifest, then watches for events.
+     */
+    public void start() {
+        thread = new Thread(this::run, "folder-watcher-" + root.getFileName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            System.err.println("Error closing watcher for " + root + ": " + e.getMessage());
+        }
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    private void run() {
+        try {
+            deliver(reconcile());
+            for (String directory : new HashSet<>(manifest.getDirectoryPaths())) {
+                register(Paths.get(directory));
+            }
+            while (!closed) {
+                WatchKey key = watchService.take();
+                Set<Path> touchedDirectories = new HashSet<>();
+                boolean overflow = collect(key, touchedDirectories);
+                long deadline = System.currentTimeMillis() + MAX_BATCH_MILLIS;
+                while (System.currentTimeMillis() < deadline
+                        && (key = watchService.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                    overflow |= collect(key, touchedDirectories);
+                }
+                if (overflow) {
+                    deliver(reconcile());
+                    registerTree(root); // Directories created during the overflow are not watched yet.
+                } else {
+                    deliver(rescan(touchedDirectories));
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Closed.
+        }
+    }
+
+    // Drains one key, recording which directories saw events. Returns true on overflow.
+    private boolean collect(WatchKey key, Set<Path> touchedDirectories) {
+        Path directory = watchedDirectories.get(key);
+        boolean overflow = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                overflow = true;
+            } else if (directory != null) {
+                touchedDirectories.add(directory);
+            }
+        }
+        if (!key.reset()) {
+            watchedDirectories.remove(key); // The directory itself is gone.
+        }
+        return overflow;
+    }
+
+    private void deliver(Changes changes) {
+        if (closed || changes.isEmpty()) {
+            return;
+        }
+        hashNewContent(changes);
+        matchRenames(changes);
+        try {
+            listener.accept(changes);
+        } catch (RuntimeException e) {
+            // Leave the stored manifest as it was so the next start reports these changes again.
+            System.err.println("Failed to apply changes from " + root + ": " + e.getMessage());
+            return;
+        }
+        if (!closed) {
+            SerializationUtil.save(manifest, manifestFile);
+        }
+    }
+
+    // Digests every added or modified file in parallel and stores the digests in the manifest.
+    private void hashNewContent(Changes changes) {
+        Map<String, ContentHasher.Digest> pending = new HashMap<>();
+        for (String path : changes.added) {
+            pending.put(path, null);
+        }
+        for (String path : changes.modified) {
+            pending.put(path, null);
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+        changes.digests.putAll(ContentHasher.refresh(pending));
+        for (Map.Entry<String, ContentHasher.Digest> digest : changes.digests.entrySet()) {
+            FileManifest.FileEntry entry = manifest.getFile(digest.getKey());
+            if (entry != null) {
+                manifest.putFile(digest.getKey(), entry.withHash(digest.getValue().getHash()));
+            }
+        }
+    }
+
+    /**
+     * Pairs removed files with added files of the same size and digest, so that moving or
+     * renaming a file on disk keeps the photo (with its caption and tags) instead of
+     * replacing it with a new one.
+     */
+    private void matchRenames(Changes changes) {
+        Map<String, String> removedByHash = new HashMap<>();
+        for (Map.Entry<String, FileManifest.FileEntry> removed : changes.removed.entrySet()) {
+            FileManifest.FileEntry entry = removed.getValue();
+            if (entry != null && entry.getHash() != null) {
+                removedByHash.put(entry.getSize() + ":" + entry.getHash(), removed.getKey());
+            }
+        }
+        if (removedByHash.isEmpty()) {
+            return;
+        }
+        for (Iterator<String> added = changes.added.iterator(); added.hasNext();) {
+            String path = added.next();
+            FileManifest.FileEntry entry = manifest.getFile(path);
+            if (entry == null || entry.getHash() == null) {
+                continue;
+            }
+            String oldPath = removedByHash.remove(entry.getSize() + ":" + entry.getHash());
+            if (oldPath != null) {
+                added.remove();
+                changes.removed.remove(oldPath);
+                changes.renamed.put(oldPath, path);
+            }
+        }
+    }
+
+    /**
+     * Walks the whole tree, listing only directories whose modification time differs from
+     * the manifest, and drops directories that no longer exist.
+     */
+    private Changes reconcile() {
+        Changes changes = new Changes();
+        Set<String> seen = new HashSet<>();
+        reconcileDirectory(root, changes, seen);
+        for (String directory : new HashSet<>(manifest.getDirectoryPaths())) {
+            if (!seen.contains(directory)) {
+                manifest.removeDirectory(directory, changes.removed);
+            }
+        }
+        return changes;
+    }
+
+    private void reconcileDirectory(Path directory, Changes changes, Set<String> seen) {
+        String key = directory.toString();
+        seen.add(key);
+        FileManifest.DirectoryEntry known = manifest.getDirectory(key);
+        long lastModified;
+        try {
+            lastModified = Files.getLastModifiedTime(directory).toMillis();
+        } catch (IOException e) {
+            return; // Gone; the caller drops it from the manifest.
+        }
+        if (known == null || known.getLastModified() != lastModified) {
+            listDirectory(directory, changes);
+            known = manifest.getDirectory(key);
+            if (known == null) {
+                return;
+            }
+        } else {
+            // Same entries as last time: only look for files whose content changed.
+            for (String file : known.getFiles()) {
+                checkFile(Paths.get(file), changes);
+            }
+        }
+        for (String subdirectory : known.getSubdirectories()) {
+            if (!seen.contains(subdirectory)) {
+                reconcileDirectory(Paths.get(subdirectory), changes, seen);
+            }
+        }
+    }
+
+    // Lists each directory that saw events once and diffs it against the manifest.
+    private Changes rescan(Set<Path> directories) {
+        Changes changes = new Changes();
+        for (Path directory : directories) {
+            if (Files.isDirectory(directory)) {
+                FileManifest.DirectoryEntry before = manifest.getDirectory(directory.toString());
+                listDirectory(directory, changes);
+                FileManifest.DirectoryEntry after = manifest.getDirectory(directory.toString());
+                // New subdirectories (e.g. a copied-in folder) are scanned and watched in full.
+                for (String subdirectory : after.getSubdirectories()) {
+                    if (before == null || !before.getSubdirectories().contains(subdirectory)) {
+                        reconcileDirectory(Paths.get(subdirectory), changes, new HashSet<>());
+                        registerTree(Paths.get(subdirectory));
+                    }
+                }
+            } else {
+                manifest.removeDirectory(directory.toString(), changes.removed);
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Lists one directory and updates the manifest: new image files are added, files that
+     * vanished are removed, and subdirectories that vanished are dropped recursively.
+     */
+    private void listDirectory(Path directory, Changes changes) {
+        String key = directory.toString();
+        HashSet<String> files = new HashSet<>();
+        HashSet<String> subdirectories = new HashSet<>();
+        long lastModified;
+        try {
+            lastModified = Files.getLastModifiedTime(directory).toMillis();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                for (Path entry : entries) {
+                    BasicFileAttributes attrs;
+                    try {
+                        attrs = Files.readAttributes(entry, BasicFileAttributes.class);
+                    } catch (IOException e) {
+                        continue; // Deleted while listing.
+                    }
+                    if (attrs.isDirectory()) {
+                        subdirectories.add(entry.toString());
+                    } else if (attrs.isRegularFile() && ImageFiles.isImage(entry.getFileName().toString())) {
+                        files.add(entry.toString());
+                        recordFile(entry.toString(), attrs, changes);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            manifest.removeDirectory(key, changes.removed);
+            return;
+        }
+        FileManifest.DirectoryEntry previous = manifest.getDirectory(key);
+        if (previous != null) {
+            for (String file : previous.getFiles()) {
+                if (!files.contains(file)) {
+                    changes.removed.put(file, manifest.removeFile(file));
+                }
+            }
+            for (String subdirectory : previous.getSubdirectories()) {
+                if (!subdirectories.contains(subdirectory)) {
+                    manifest.removeDirectory(subdirectory, changes.removed);
+                }
+            }
+        }
+        manifest.putDirectory(key, new FileManifest.DirectoryEntry(lastModified, files, subdirectories));
+    }
+
+    // Compares one known file with the manifest and records a modification or removal.
+    private void checkFile(Path file, Changes changes) {
+        try {
+            recordFile(file.toString(), Files.readAttributes(file, BasicFileAttributes.class), changes);
+        } catch (IOException e) {
+            changes.removed.put(file.toString(), manifest.removeFile(file.toString()));
+        }
+    }
+
+    private void recordFile(String path, BasicFileAttributes attrs, Changes changes) {
+        long size = attrs.size();
+        long lastModified = attrs.lastModifiedTime().toMillis();
+        FileManifest.FileEntry known = manifest.getFile(path);
+        if (known == null) {
+            changes.added.add(path);
+        } else if (!known.matches(size, lastModified)) {
+            changes.modified.add(path);
+        } else {
+            return;
+        }
+        manifest.putFile(path, new FileManifest.FileEntry(size, lastModified));
+    }
+
+    private void registerTree(Path directory) {
+        register(directory);
+        FileManifest.DirectoryEntry entry = manifest.getDirectory(directory.toString());
+        if (entry != null) {
+            for (String subdirectory : entry.getSubdirectories()) {
+                registerTree(Paths.get(subdirectory));
+            }
+        }
+    }
+
+    private void register(Path directory) {
+        try {
+            WatchKey key = directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+            watchedDirectories.put(key, directory);
+        } catch (IOException e) {
+            System.err.println("Cannot watch " + directory + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ * Utility class for finding image files on disk.
+ *
+ * <p>
+ * Centralizes the list of supported image extensions (used by the file choosers, the stock
+ * folder import and bulk folder imports) and walks directory trees to collect image files.
+ * Unreadable directories are skipped rather than aborting the whole walk.
+ * </p>
+ *
+ * @author Adam Student
+ * @author Neer Patel
+ * @version 1.0
+ */
+package util;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Helpers for recognising and scanning image files.
+ */
+public class ImageFiles {
+
+    /** File name patterns accepted by the file choosers. */
+    public static final String[] EXTENSION_PATTERNS = { "*.png", "*.jpg", "*.jpeg", "*.gif", "*.bmp" };
+
+    /**
+     * Returns whether a file name has one of the supported image extensions.
+     *
+     * @param fileName the file name or path
+     * @return true if the file looks like a supported image
+     */
+    public static boolean isImage(String fileName) {
+        String name = fileName.toLowerCase(Locale.ROOT);
+        for (String pattern : EXTENSION_PATTERNS) {
+            if (name.endsWith(pattern.substring(1))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Walks a directory tree and returns the absolute paths of all image files in it.
+     *
+     * @param root the directory to scan
+     * @return the image files found, in walk order
+     * @throws IOException if the root directory itself cannot be read
+     */
+    public static List<String> scan(Path root) throws IOException {
+        List<String> images = new ArrayList<>();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile() && isImage(file.getFileName().toString())) {
+                    images.add(file.toAbsolutePath().toString());
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                System.err.println("Skipping " + file + ": " + e.getMessage());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return images;
+    }
+}
@@ -0,0 +1,297 @@
+/**
+ * Reads capture date, pixel dimensions and orientation from an image file header.
+ *
+ * <p>
+ * Only the first bytes of the file are read through a {@link FileChannel}; pixel data is
+ * never decoded. For JPEG files the marker segments are walked up to the start of scan
+ * data, picking up the frame size from the SOF segment and the EXIF DateTimeOriginal and
+ * Orientation tags from the APP1 segment. PNG, GIF and BMP files only carry dimensions in
+ * their headers. When a file has no EXIF capture date, its last modified time is used.
+ * </p>
+ *
+ * <p>
+ * Bulk imports read the headers of many files at once on a dedicated pool, so that the
+ * import is bound by how fast the disk can serve small reads rather than by one thread
+ * waiting on each file in turn.
+ * </p>
+ *
+ * @author Adam Student
+ * @author Neer Patel
+ * @version 1.0
+ */
+package util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Header-only image metadata: capture date, pixel dimensions and EXIF orientation.
+ */
+public class ImageMetadata {
+
+    /** EXIF orientation value for an image that needs no rotation. */
+    public static final int ORIENTATION_NORMAL = 1;
+
+    private static final DateTimeFormatter EXIF_DATE = DateTimeFormatter.ofPattern("yyyy:MM:dd HH:mm:ss");
+
+    // EXIF tags we care about.
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TAG_DATE_TIME = 0x0132;
+    private static final int TAG_EXIF_IFD = 0x8769;
+    private static final int TAG_DATE_TIME_ORIGINAL = 0x9003;
+
+    // An APP1 segment can be at most 64 KB, which bounds how much we ever read at once.
+    private static final int MAX_SEGMENT = 0xFFFF;
+
+    // Header reads are mostly waiting on the disk, so allow more of them than there are cores.
+    private static final ForkJoinPool READERS = new ForkJoinPool(Runtime.getRuntime().availableProcessors() * 2);
+
+    private final String filePath;
+    private final LocalDateTime dateTaken;
+    private final int width;
+    private final int height;
+    private final int orientation;
+
+    private ImageMetadata(String filePath, LocalDateTime dateTaken, int width, int height, int orientation) {
+        this.filePath = filePath;
+        this.dateTaken = dateTaken;
+        this.width = width;
+        this.height = height;
+        this.orientation = orientation;
+    }
+
+    /**
+     * Returns whether an image with the given EXIF orientation is shown turned by a quarter,
+     * so its displayed width is its stored height and the other way round.
+     *
+     * @param orientation the EXIF orientation (1-8)
+     * @return true for orientations 5 to 8
+     */
+    public static boolean swapsAxes(int orientation) {
+        return orientation >= 5 && orientation <= 8;
+    }
+
+    /**
+     * Reads the metadata of the given image file. Never throws: fields that cannot be
+     * determined are left at 0, and the date falls back to the file's last modified
+     * time (or the current time if even that is unavailable).
+     *
+     * @param filePath the path of the image file
+     * @return the metadata read from the file header
+     */
+    public static ImageMetadata read(String filePath) {
+        Path path = Paths.get(filePath);
+        LocalDateTime exifDate = null;
+        int width = 0;
+        int height = 0;
+        int orientation = ORIENTATION_NORMAL;
+        long lastModified = -1;
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            lastModified = attrs.lastModifiedTime().toMillis();
+
+            ByteBuffer head = readAt(channel, 0, 32);
+            if (head.remaining() >= 4 && (head.get(0) & 0xFF) == 0xFF && (head.get(1) & 0xFF) == 0xD8) {
+                // JPEG: walk marker segments until the start of scan.
+                long pos = 2;
+                long size = channel.size();
+                while (pos + 4 <= size) {
+                    ByteBuffer marker = readAt(channel, pos, 4);
+                    if (marker.remaining() < 4 || (marker.get(0) & 0xFF) != 0xFF) {
+                        break;
+                    }
+                    int type = marker.get(1) & 0xFF;
+                    if (type == 0xFF) {
+                        pos++; // Fill byte before a marker.
+                        continue;
+                    }
+                    if (type == 0xD9 || type == 0xDA) {
+                        break; // End of image or start of scan: no more header segments.
+                    }
+                    int length = marker.getShort(2) & 0xFFFF;
+                    if (isStartOfFrame(type)) {
+                        ByteBuffer frame = readAt(channel, pos + 4, 5);
+                        if (frame.remaining() == 5) {
+                            height = frame.getShort(1) & 0xFFFF;
+                            width = frame.getShort(3) & 0xFFFF;
+                        }
+                    } else if (type == 0xE1 && exifDate == null) {
+                        ByteBuffer app1 = readAt(channel, pos + 4, Math.min(length - 2, MAX_SEGMENT));
+                        ExifFields exif = parseExif(app1);
+                        if (exif != null) {
+                            exifDate = exif.dateTaken;
+                            if (exif.orientation > 0) {
+                                orientation = exif.orientation;
+                            }
+                        }
+                    }
+                    if (width > 0 && exifDate != null) {
+                        break;
+                    }
+                    pos += 2 + length;
+                }
+            } else if (head.remaining() >= 24 && head.getInt(0) == 0x89504E47) {
+                // PNG: the IHDR chunk always comes first.
+                width = head.getInt(16);
+                height = head.getInt(20);
+            } else if (head.remaining() >= 10 && head.get(0) == 'G' && head.get(1) == 'I' && head.get(2) == 'F') {
+                head.order(ByteOrder.LITTLE_ENDIAN);
+                width = head.getShort(6) & 0xFFFF;
+                height = head.getShort(8) & 0xFFFF;
+            } else if (head.remaining() >= 26 && head.get(0) == 'B' && head.get(1) == 'M') {
+                head.order(ByteOrder.LITTLE_ENDIAN);
+                width = Math.abs(head.getInt(18));
+                height = Math.abs(head.getInt(22)); // Negative for top-down bitmaps.
+            }
+        } catch (IOException e) {
+            System.err.println("Error reading image metadata from " + filePath + ": " + e.getMessage());
+        }
+
+        LocalDateTime dateTaken = exifDate;
+        if (dateTaken == null) {
+            dateTaken = lastModified >= 0
+                    ? LocalDateTime.ofInstant(java.time.Instant.ofEpochMilli(lastModified), ZoneId.systemDefault())
+                    : LocalDateTime.now();
+        }
+        return new ImageMetadata(filePath, dateTaken, width, height, orientation);
+    }
+
+    /**
+     * Reads the metadata of many files in parallel.
+     *
+     * @param filePaths the paths of the image files
+     * @return the metadata of each file, in the same order as the paths
+     */
+    public static List<ImageMetadata> readAll(List<String> filePaths) {
+        return READERS.submit(() -> filePaths.parallelStream().map(ImageMetadata::read).toList()).join();
+    }
+
+    public String getFilePath() {
+        return filePath;
+    }
+
+    public LocalDateTime getDateTaken() {
+        return dateTaken;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getOrientation() {
+        return orientation;
+    }
+
+    // Reads up to length bytes at the given position, returned as a big-endian buffer.
+    private static ByteBuffer readAt(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Math.max(length, 0));
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static boolean isStartOfFrame(int type) {
+        // SOF0..SOF15, excluding DHT (C4), JPG (C8) and DAC (CC).
+        return type >= 0xC0 && type <= 0xCF && type != 0xC4 && type != 0xC8 && type != 0xCC;
+    }
+
+    // Values pulled from an EXIF block.
+    private static class ExifFields {
+        LocalDateTime dateTaken;
+        int orientation;
+    }
+
+    /**
+     * Parses the TIFF structure inside an APP1 "Exif" segment. Offsets inside the TIFF
+     * block are relative to its start, which sits six bytes into the segment.
+     */
+    private static ExifFields parseExif(ByteBuffer app1) {
+        if (app1.remaining() < 14 || app1.get(0) != 'E' || app1.get(1) != 'x' || app1.get(2) != 'i'
+                || app1.get(3) != 'f') {
+            return null;
+        }
+        ByteBuffer tiff = app1.slice(6, app1.remaining() - 6);
+        if (tiff.get(0) == 'I' && tiff.get(1) == 'I') {
+            tiff.order(ByteOrder.LITTLE_ENDIAN);
+        } else if (tiff.get(0) != 'M' || tiff.get(1) != 'M') {
+            return null;
+        }
+        ExifFields fields = new ExifFields();
+        try {
+            int ifd0 = tiff.getInt(4);
+            int exifIfd = -1;
+            String dateTime = null;
+            int count = tiff.getShort(ifd0) & 0xFFFF;
+            for (int i = 0; i < count; i++) {
+                int entry = ifd0 + 2 + i * 12;
+                int tag = tiff.getShort(entry) & 0xFFFF;
+                if (tag == TAG_ORIENTATION) {
+                    fields.orientation = tiff.getShort(entry + 8) & 0xFFFF;
+                } else if (tag == TAG_EXIF_IFD) {
+                    exifIfd = tiff.getInt(entry + 8);
+                } else if (tag == TAG_DATE_TIME) {
+                    dateTime = readAscii(tiff, entry);
+                }
+            }
+            String dateTimeOriginal = null;
+            if (exifIfd > 0) {
+                int exifCount = tiff.getShort(exifIfd) & 0xFFFF;
+                for (int i = 0; i < exifCount; i++) {
+                    int entry = exifIfd + 2 + i * 12;
+                    if ((tiff.getShort(entry) & 0xFFFF) == TAG_DATE_TIME_ORIGINAL) {
+                        dateTimeOriginal = readAscii(tiff, entry);
+                        break;
+                    }
+                }
+            }
+            fields.dateTaken = parseExifDate(dateTimeOriginal != null ? dateTimeOriginal : dateTime);
+        } catch (IndexOutOfBoundsException e) {
+            // Truncated or corrupt EXIF block; keep whatever was read so far.
+        }
+        return fields;
+    }
+
+    // Reads an ASCII value of an IFD entry; values over four bytes are stored at an offset.
+    private static String readAscii(ByteBuffer tiff, int entry) {
+        int length = tiff.getInt(entry + 4);
+        int offset = length > 4 ? tiff.getInt(entry + 8) : entry + 8;
+        byte[] bytes = new byte[Math.max(0, Math.min(length, 32))];
+        tiff.get(offset, bytes);
+        return new String(bytes, StandardCharsets.US_ASCII).trim().replace("\0", "");
+    }
+
+    private static LocalDateTime parseExifDate(String value) {
+        if (value == null || value.length() < 19) {
+            return null;
+        }
+        try {
+            return LocalDateTime.parse(value.substring(0, 19), EXIF_DATE);
+        } catch (DateTimeParseException e) {
+            return null; // Cameras write "0000:00:00 00:00:00" when the clock is unset.
+        }
+    }
+}
@@ -0,0 +1,415 @@
+/**
+ * Multi-resolution tile pyramid for very large photos.
+ *
+ * <p>
+ * Panoramas and scans above a few dozen megapixels cannot be decoded in one piece without
+ * large heap spikes. For such photos a pyramid is generated in the background: level 0 holds
+ * the image at full resolution cut into fixed-size JPEG tiles, and every following level
+ * halves the resolution until the whole image fits in a single tile. The viewer then only
+ * loads the tiles of the level and region it actually shows.
+ * </p>
+ *
+ * <p>
+ * Pyramids live under data/pyramids in a directory named after the photo's path and last
+ * modified time, so replacing the file on disk produces a fresh pyramid. Generation reads the
+ * source in horizontal strips of bounded size, builds each upper level from the tiles of the
+ * level below, and only moves the finished pyramid into place once every tile is written.
+ * </p>
+ *
+ * <p>
+ * A pyramid records the path it was built from. {@link #sweepInBackground(Set)} deletes
+ * those whose source no photo refers to any more, or whose source file has changed since,
+ * so removed photos and replaced files do not leave tile trees behind.
+ * </p>
+ *
+ * @author Adam Student
+ * @author Neer Patel
+ * @version 1.0
+ */
+package util;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * A generated tile pyramid for one image file.
+ */
+public class ImagePyramid {
+
+    /** Width and height of every tile, in pixels. */
+    public static final int TILE_SIZE = 256;
+
+    /** Photos with at least this many pixels get a pyramid. */
+    public static final long LARGE_PHOTO_PIXELS = 50_000_000L;
+
+    private static final String PYRAMID_ROOT = "data/pyramids";
+    private static final String INFO_FILE = "pyramid.properties";
+
+    // Pyramids younger than this are never swept: their photo may not have been saved yet,
+    // here or in another process sharing the data directory.
+    private static final long SWEEP_MIN_AGE_MILLIS = 24L * 60 * 60 * 1000;
+
+    // Upper bound on the pixel memory of one source strip during generation.
+    private static final long STRIP_BYTES = 64L * 1024 * 1024;
+
+    // One background worker: pyramid generation is I/O and memory heavy, so jobs run one at a time.
+    private static final ExecutorService GENERATOR = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "pyramid-generator");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final Map<String, Boolean> PENDING = new ConcurrentHashMap<>();
+
+    private final File directory;
+    private final int width;
+    private final int height;
+    private final int levels;
+
+    private ImagePyramid(File directory, int width, int height, int levels) {
+        this.directory = directory;
+        this.width = width;
+        this.height = height;
+        this.levels = levels;
+    }
+
+    /**
+     * Returns whether a photo of the given size is large enough to need a pyramid.
+     *
+     * @param width  the width in pixels
+     * @param height the height in pixels
+     * @return true if the photo should be viewed through a pyramid
+     */
+    public static boolean isLarge(int width, int height) {
+        return (long) width * height >= LARGE_PHOTO_PIXELS;
+    }
+
+    /**
+     * Opens the finished pyramid for an image file.
+     *
+     * @param filePath the path of the source image
+     * @return the pyramid, or null if none has been generated yet
+     */
+    public static ImagePyramid open(String filePath) {
+        File directory = directoryFor(filePath);
+        File info = new File(directory, INFO_FILE);
+        if (!info.isFile()) {
+            return null;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(info)) {
+            properties.load(in);
+            return new ImagePyramid(directory,
+                    Integer.parseInt(properties.getProperty("width")),
+                    Integer.parseInt(properties.getProperty("height")),
+                    Integer.parseInt(properties.getProperty("levels")));
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Error reading pyramid for " + filePath + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Queues pyramid generation for an image file on the background worker. Does nothing
+     * if the pyramid is already queued, or turns out to exist once the worker gets to it,
+     * so the caller never touches the disk.
+     *
+     * @param filePath the path of the source image
+     */
+    public static void generateInBackground(String filePath) {
+        if (PENDING.putIfAbsent(filePath, Boolean.TRUE) != null) {
+            return;
+        }
+        GENERATOR.execute(() -> {
+            try {
+                if (open(filePath) == null) {
+                    generate(filePath);
+                }
+            } catch (IOException e) {
+                System.err.println("Error generating pyramid for " + filePath + ": " + e.getMessage());
+            } finally {
+                PENDING.remove(filePath);
+            }
+        });
+    }
+
+    /**
+     * Queues a sweep on the background worker that deletes every pyramid, finished or left
+     * half-written, whose source is not among the given paths or has been modified since
+     * it was generated. Pyramids generated in the last day are kept regardless. Pyramids
+     * are regenerated when a large photo without one is viewed.
+     *
+     * @param inUse the file paths of every photo of every user
+     */
+    public static void sweepInBackground(Set<String> inUse) {
+        GENERATOR.execute(() -> {
+            File[] directories = new File(PYRAMID_ROOT).listFiles(File::isDirectory);
+            if (directories == null) {
+                return;
+            }
+            long cutoff = System.currentTimeMillis() - SWEEP_MIN_AGE_MILLIS;
+            int swept = 0;
+            for (File directory : directories) {
+                if (directory.lastModified() > cutoff) {
+                    continue;
+                }
+                String source = sourceOf(directory);
+                if (source == null || !inUse.contains(source) || !directoryFor(source).equals(directory)) {
+                    deleteRecursively(directory.toPath());
+                    swept++;
+                }
+            }
+            if (swept > 0) {
+                System.out.println("Deleted " + swept + " unused image pyramids.");
+            }
+        });
+    }
+
+    // Reads the source path a pyramid was built from; null if it is unfinished or predates the record.
+    private static String sourceOf(File directory) {
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(new File(directory, INFO_FILE))) {
+            properties.load(in);
+            return properties.getProperty("source");
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Generates the pyramid for an image file on the calling thread.
+     *
+     * @param filePath the path of the source image
+     * @return the finished pyramid
+     * @throws IOException if the image cannot be read or the tiles cannot be written
+     */
+    public static ImagePyramid generate(String filePath) throws IOException {
+        File source = new File(filePath);
+        File target = directoryFor(filePath);
+        Files.createDirectories(target.getParentFile().toPath());
+        Path work = Files.createTempDirectory(target.getParentFile().toPath(), target.getName() + ".tmp");
+
+        try (ImageInputStream in = ImageIO.createImageInputStream(source)) {
+            Iterator<ImageReader> readers = in == null ? null : ImageIO.getImageReaders(in);
+            if (readers == null || !readers.hasNext()) {
+                throw new IOException("Unsupported image format");
+            }
+            ImageReader reader = readers.next();
+            int width;
+            int height;
+            int levels;
+            try {
+                reader.setInput(in, false, true);
+                width = reader.getWidth(0);
+                height = reader.getHeight(0);
+                levels = levelCount(width, height);
+                writeBaseLevel(reader, width, height, work.toFile());
+            } finally {
+                reader.dispose();
+            }
+            for (int level = 1; level < levels; level++) {
+                writeReducedLevel(work.toFile(), level, width, height);
+            }
+
+            Properties properties = new Properties();
+            properties.setProperty("width", Integer.toString(width));
+            properties.setProperty("height", Integer.toString(height));
+            properties.setProperty("levels", Integer.toString(levels));
+            properties.setProperty("tileSize", Integer.toString(TILE_SIZE));
+            properties.setProperty("source", filePath);
+            try (OutputStream out = new FileOutputStream(new File(work.toFile(), INFO_FILE))) {
+                properties.store(out, "Tile pyramid for " + filePath);
+            }
+            Files.move(work, target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            return new ImagePyramid(target, width, height, levels);
+        } catch (IOException | RuntimeException e) {
+            deleteRecursively(work);
+            throw e;
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getLevelCount() {
+        return levels;
+    }
+
+    /**
+     * Picks the coarsest level that still has at least the requested resolution.
+     *
+     * @param scale device pixels per source pixel at which the image is shown
+     * @return the level index, 0 being full resolution
+     */
+    public int levelFor(double scale) {
+        int level = 0;
+        while (level + 1 < levels && 1.0 / (1 << (level + 1)) >= scale) {
+            level++;
+        }
+        return level;
+    }
+
+    public int levelWidth(int level) {
+        return levelSize(width, level);
+    }
+
+    public int levelHeight(int level) {
+        return levelSize(height, level);
+    }
+
+    public int columns(int level) {
+        return (levelWidth(level) + TILE_SIZE - 1) / TILE_SIZE;
+    }
+
+    public int rows(int level) {
+        return (levelHeight(level) + TILE_SIZE - 1) / TILE_SIZE;
+    }
+
+    /**
+     * Returns the file holding one tile of the pyramid.
+     *
+     * @param level  the level index
+     * @param column the tile column
+     * @param row    the tile row
+     * @return the JPEG file of the tile
+     */
+    public File tileFile(int level, int column, int row) {
+        return tileFile(directory, level, column, row);
+    }
+
+    private static File tileFile(File directory, int level, int column, int row) {
+        return new File(directory, level + File.separator + column + "_" + row + ".jpg");
+    }
+
+    private static int levelSize(int size, int level) {
+        return Math.max(1, (size + (1 << level) - 1) >> level);
+    }
+
+    private static int levelCount(int width, int height) {
+        int levels = 1;
+        while (Math.max(levelSize(width, levels - 1), levelSize(height, levels - 1)) > TILE_SIZE) {
+            levels++;
+        }
+        return levels;
+    }
+
+    // Reads the source in strips of whole tile rows and cuts each strip into level 0 tiles.
+    private static void writeBaseLevel(ImageReader reader, int width, int height, File directory)
+            throws IOException {
+        long tileRowBytes = (long) width * TILE_SIZE * 4;
+        int stripHeight = (int) Math.max(1, STRIP_BYTES / tileRowBytes) * TILE_SIZE;
+        for (int top = 0; top < height; top += stripHeight) {
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceRegion(new Rectangle(0, top, width, Math.min(stripHeight, height - top)));
+            BufferedImage strip = reader.read(0, param);
+            for (int y = 0; y < strip.getHeight(); y += TILE_SIZE) {
+                for (int x = 0; x < width; x += TILE_SIZE) {
+                    int tileWidth = Math.min(TILE_SIZE, width - x);
+                    int tileHeight = Math.min(TILE_SIZE, strip.getHeight() - y);
+                    BufferedImage tile = new BufferedImage(tileWidth, tileHeight, BufferedImage.TYPE_INT_RGB);
+                    Graphics2D g = tile.createGraphics();
+                    g.drawImage(strip, -x, -y, null);
+                    g.dispose();
+                    writeTile(tile, tileFile(directory, 0, x / TILE_SIZE, (top + y) / TILE_SIZE));
+                }
+            }
+        }
+    }
+
+    // Builds every tile of a level by halving the (up to) four tiles beneath it.
+    private static void writeReducedLevel(File directory, int level, int width, int height) throws IOException {
+        int levelWidth = levelSize(width, level);
+        int levelHeight = levelSize(height, level);
+        int below = level - 1;
+        int belowColumns = (levelSize(width, below) + TILE_SIZE - 1) / TILE_SIZE;
+        int belowRows = (levelSize(height, below) + TILE_SIZE - 1) / TILE_SIZE;
+        for (int row = 0; row * TILE_SIZE < levelHeight; row++) {
+            for (int column = 0; column * TILE_SIZE < levelWidth; column++) {
+                int tileWidth = Math.min(TILE_SIZE, levelWidth - column * TILE_SIZE);
+                int tileHeight = Math.min(TILE_SIZE, levelHeight - row * TILE_SIZE);
+                BufferedImage tile = new BufferedImage(tileWidth, tileHeight, BufferedImage.TYPE_INT_RGB);
+                Graphics2D g = tile.createGraphics();
+                g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                for (int dy = 0; dy < 2; dy++) {
+                    for (int dx = 0; dx < 2; dx++) {
+                        int childColumn = column * 2 + dx;
+                        int childRow = row * 2 + dy;
+                        if (childColumn >= belowColumns || childRow >= belowRows) {
+                            continue;
+                        }
+                        BufferedImage child = ImageIO.read(tileFile(directory, below, childColumn, childRow));
+                        if (child != null) {
+                            g.drawImage(child, dx * TILE_SIZE / 2, dy * TILE_SIZE / 2,
+                                    (child.getWidth() + 1) / 2, (child.getHeight() + 1) / 2, null);
+                        }
+                    }
+                }
+                g.dispose();
+                writeTile(tile, tileFile(directory, level, column, row));
+            }
+        }
+    }
+
+    private static void writeTile(BufferedImage tile, File file) throws IOException {
+        file.getParentFile().mkdirs();
+        if (!ImageIO.write(tile, "jpg", file)) {
+            throw new IOException("No JPEG writer available");
+        }
+    }
+
+    // Names the pyramid directory after the source path and modification time.
+    private static File directoryFor(String filePath) {
+        File source = new File(filePath).getAbsoluteFile();
+        String key = source.getPath() + "|" + source.lastModified();
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder();
+            for (byte b : digest) {
+                name.append(String.format("%02x", b));
+            }
+            return new File(PYRAMID_ROOT, name.toString());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void deleteRecursively(Path directory) {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException e) {
+            System.err.println("Error cleaning up " + directory + ": " + e.getMessage());
+        }
+    }
+}
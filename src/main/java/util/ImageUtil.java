@@ -0,0 +1,196 @@
+/**
+ * Utility class for loading photos at the resolution they are displayed at.
+ *
+ * <p>
+ * Decoding a photo at full resolution costs width x height x 4 bytes of pixel memory
+ * regardless of how small it is drawn, so a 48 megapixel image needs roughly 190 MB
+ * even when shown a few hundred pixels wide. This class asks JavaFX to decode the image
+ * directly at a bounded size instead, using the dimensions recorded from the image
+ * header to avoid ever decoding above the source resolution. Background jobs that only need
+ * a small copy of an image (thumbnails, perceptual hashes) use a subsampled ImageIO decode.
+ * </p>
+ *
+ * <p>
+ * Neither decoder applies the EXIF orientation, so pixels always come out as stored. The
+ * helpers here turn them upright: a decoded copy is redrawn, and a view on screen is given
+ * the matching rotation and mirroring.
+ * </p>
+ *
+ * @author Adam Student
+ * @author Neer Patel
+ * @version 1.0
+ */
+package util;
+
+import java.awt.Graphics2D;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
+import javafx.scene.transform.Affine;
+
+/**
+ * Helpers for display-sized and subsampled decoding.
+ */
+public class ImageUtil {
+
+    // Smallest width or height we ever decode at, so tiny windows still look sharp.
+    private static final int MIN_DECODE_SIZE = 256;
+
+    /**
+     * Rounds a required decode size up to the next power-of-two step, capped at the
+     * size of the source image. Stepping in powers of two means a window that is
+     * resized or zoomed a little at a time only triggers a handful of re-decodes.
+     *
+     * @param required   the number of device pixels needed on screen
+     * @param sourceSize the size of the source image, or 0 if unknown
+     * @return the size to request from the decoder
+     */
+    public static int decodeSize(double required, int sourceSize) {
+        int size = MIN_DECODE_SIZE;
+        while (size < required) {
+            size <<= 1;
+        }
+        if (sourceSize > 0 && size > sourceSize) {
+            size = sourceSize;
+        }
+        return size;
+    }
+
+    /**
+     * Creates an image decoded to fit within the given bounds, preserving the aspect
+     * ratio. The image loads in the background so the caller can keep showing a
+     * previous, lower resolution version until it is ready.
+     *
+     * @param filePath the path of the image file
+     * @param width    the maximum decoded width in pixels
+     * @param height   the maximum decoded height in pixels
+     * @return a background-loading Image
+     */
+    public static Image loadScaled(String filePath, int width, int height) {
+        return new Image(new File(filePath).toURI().toString(), width, height, true, true, true);
+    }
+
+    /**
+     * Turns an image view so the stored pixels it shows appear upright. With a quarter turn
+     * (orientations 5-8) the view's fit width limits the displayed height and the other way
+     * round, so callers swap the two; see {@link ImageMetadata#swapsAxes(int)}.
+     *
+     * @param view        the view showing the image as stored
+     * @param orientation the EXIF orientation (1-8)
+     */
+    public static void orient(ImageView view, int orientation) {
+        // Mirrored first, then turned clockwise about the center.
+        view.setScaleX(orientation == 2 || orientation == 4 || orientation == 5 || orientation == 7 ? -1 : 1);
+        switch (orientation) {
+            case 3:
+            case 4:
+                view.setRotate(180);
+                break;
+            case 6:
+            case 7:
+                view.setRotate(90);
+                break;
+            case 5:
+            case 8:
+                view.setRotate(270);
+                break;
+            default:
+                view.setRotate(0);
+                break;
+        }
+    }
+
+    /**
+     * Returns the transform that maps a point of an image as stored onto the same point of
+     * the upright image.
+     *
+     * @param orientation the EXIF orientation (1-8)
+     * @param width       the stored width of the image
+     * @param height      the stored height of the image
+     * @return the transform
+     */
+    public static Affine orientation(int orientation, double width, double height) {
+        switch (orientation) {
+            case 2:
+                return new Affine(-1, 0, width, 0, 1, 0);
+            case 3:
+                return new Affine(-1, 0, width, 0, -1, height);
+            case 4:
+                return new Affine(1, 0, 0, 0, -1, height);
+            case 5:
+                return new Affine(0, 1, 0, 1, 0, 0);
+            case 6:
+                return new Affine(0, -1, height, 1, 0, 0);
+            case 7:
+                return new Affine(0, -1, height, -1, 0, width);
+            case 8:
+                return new Affine(0, 1, 0, -1, 0, width);
+            default:
+                return new Affine();
+        }
+    }
+
+    /**
+     * Redraws a decoded image upright.
+     *
+     * @param image       the image as stored
+     * @param orientation the EXIF orientation (1-8)
+     * @return the upright image, or the same image for orientation 1
+     */
+    public static BufferedImage orient(BufferedImage image, int orientation) {
+        if (orientation <= ImageMetadata.ORIENTATION_NORMAL || orientation > 8) {
+            return image;
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        Affine transform = orientation(orientation, width, height);
+        boolean swap = ImageMetadata.swapsAxes(orientation);
+        BufferedImage upright = new BufferedImage(swap ? height : width, swap ? width : height,
+                BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = upright.createGraphics();
+        g.drawImage(image, new AffineTransform(transform.getMxx(), transform.getMyx(), transform.getMxy(),
+                transform.getMyy(), transform.getTx(), transform.getTy()), null);
+        g.dispose();
+        return upright;
+    }
+
+    /**
+     * Decodes a reduced copy of an image by skipping source pixels, so that its longest
+     * side is at least the given size (unless the source is smaller). Safe to call from
+     * any thread.
+     *
+     * @param filePath the path of the image file
+     * @param minSize  the minimum length of the longest side to keep
+     * @return the decoded image, or null if the file is not a readable image
+     * @throws IOException if reading the file fails
+     */
+    public static BufferedImage readSubsampled(String filePath, int minSize) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(new File(filePath))) {
+            Iterator<ImageReader> readers = in == null ? null : ImageIO.getImageReaders(in);
+            if (readers == null || !readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                int longest = Math.max(reader.getWidth(0), reader.getHeight(0));
+                ImageReadParam param = reader.getDefaultReadParam();
+                int step = Math.max(1, longest / Math.max(1, minSize));
+                param.setSourceSubsampling(step, step, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+}
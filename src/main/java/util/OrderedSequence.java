@@ -0,0 +1,307 @@
+/**
+ * A sequence of distinct items kept in sorted (or insertion) order, with constant-time
+ * stepping between neighbours and logarithmic access by position.
+ *
+ * <p>
+ * Items are stored in a treap: a binary search tree whose shape is kept balanced by random
+ * priorities. Every node records the size of its subtree, so the item at a position and the
+ * position of an item are found in logarithmic time. Nodes are also threaded into a doubly
+ * linked list in sequence order, and an identity map leads from an item to its node, so the
+ * next and previous item are found in constant time.
+ * </p>
+ *
+ * <p>
+ * Removal works from the node, never by comparing keys, so an item whose sort key has
+ * changed can still be removed; {@link #reposition(Object)} does exactly that and inserts
+ * it again at its new place.
+ * </p>
+ *
+ * @author Adam Student
+ * @author Neer Patel
+ * @version 1.0
+ */
+package util;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/**
+ * Order-statistic treap with threaded neighbours.
+ *
+ * @param <T> the type of item; items must be distinct under equals
+ */
+public class OrderedSequence<T> {
+
+    private static class Node<T> {
+        final T item;
+        final int priority;
+        int size = 1;
+        Node<T> left, right, parent;
+        Node<T> prev, next;
+
+        Node(T item, int priority) {
+            this.item = item;
+            this.priority = priority;
+        }
+    }
+
+    private final Comparator<? super T> order;
+    private final Map<T, Node<T>> nodes = new HashMap<>();
+    private final SplittableRandom random = new SplittableRandom();
+    private Node<T> root;
+    private Node<T> first, last;
+
+    /**
+     * Creates an empty sequence.
+     *
+     * @param order the sort order, which must be total over distinct items; null keeps
+     *              items in the order they were added
+     */
+    public OrderedSequence(Comparator<? super T> order) {
+        this.order = order;
+    }
+
+    public int size() {
+        return nodes.size();
+    }
+
+    public boolean contains(T item) {
+        return nodes.containsKey(item);
+    }
+
+    /**
+     * Adds an item at its sorted place, or at the end if the sequence has no sort order.
+     *
+     * @param item the item
+     * @return false if the item was already present
+     */
+    public boolean add(T item) {
+        if (nodes.containsKey(item)) {
+            return false;
+        }
+        Node<T> node = new Node<>(item, random.nextInt());
+        nodes.put(item, node);
+        insert(node);
+        return true;
+    }
+
+    /**
+     * Removes an item.
+     *
+     * @param item the item
+     * @return false if the item was not present
+     */
+    public boolean remove(T item) {
+        Node<T> node = nodes.remove(item);
+        if (node == null) {
+            return false;
+        }
+        detach(node);
+        return true;
+    }
+
+    /**
+     * Moves an item to the place its current sort key belongs. Must be called after any
+     * change to an item that affects the sort order.
+     *
+     * @param item the item
+     */
+    public void reposition(T item) {
+        Node<T> node = nodes.get(item);
+        if (node == null || order == null) {
+            return;
+        }
+        boolean inPlace = (node.prev == null || order.compare(node.prev.item, item) < 0)
+                && (node.next == null || order.compare(item, node.next.item) < 0);
+        if (!inPlace) {
+            detach(node);
+            node.left = node.right = node.parent = node.prev = node.next = null;
+            node.size = 1;
+            insert(node);
+        }
+    }
+
+    public T first() {
+        return first == null ? null : first.item;
+    }
+
+    public T last() {
+        return last == null ? null : last.item;
+    }
+
+    /**
+     * Returns the item after the given one.
+     *
+     * @param item an item in the sequence
+     * @return the next item, or null if it is the last or not present
+     */
+    public T next(T item) {
+        Node<T> node = nodes.get(item);
+        return node == null || node.next == null ? null : node.next.item;
+    }
+
+    /**
+     * Returns the item before the given one.
+     *
+     * @param item an item in the sequence
+     * @return the previous item, or null if it is the first or not present
+     */
+    public T previous(T item) {
+        Node<T> node = nodes.get(item);
+        return node == null || node.prev == null ? null : node.prev.item;
+    }
+
+    /**
+     * Returns the item at a position.
+     *
+     * @param index the position, from 0
+     * @return the item
+     */
+    public T get(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Index " + index + " of " + size());
+        }
+        Node<T> node = root;
+        while (true) {
+            int leftSize = size(node.left);
+            if (index < leftSize) {
+                node = node.left;
+            } else if (index > leftSize) {
+                index -= leftSize + 1;
+                node = node.right;
+            } else {
+                return node.item;
+            }
+        }
+    }
+
+    /**
+     * Returns the position of an item.
+     *
+     * @param item the item
+     * @return its position, or -1 if it is not present
+     */
+    public int indexOf(T item) {
+        Node<T> node = nodes.get(item);
+        if (node == null) {
+            return -1;
+        }
+        int index = size(node.left);
+        for (Node<T> n = node; n.parent != null; n = n.parent) {
+            if (n == n.parent.right) {
+                index += size(n.parent.left) + 1;
+            }
+        }
+        return index;
+    }
+
+    private void insert(Node<T> node) {
+        if (root == null) {
+            root = first = last = node;
+            return;
+        }
+        // Walk down to the leaf position, growing subtree sizes on the way.
+        Node<T> parent = root;
+        while (true) {
+            parent.size++;
+            boolean goLeft = order != null && order.compare(node.item, parent.item) < 0;
+            Node<T> child = goLeft ? parent.left : parent.right;
+            if (child == null) {
+                node.parent = parent;
+                if (goLeft) {
+                    parent.left = node;
+                    link(parent.prev, node, parent);
+                } else {
+                    parent.right = node;
+                    link(parent, node, parent.next);
+                }
+                break;
+            }
+            parent = child;
+        }
+        // Restore the heap order on priorities.
+        while (node.parent != null && node.priority > node.parent.priority) {
+            rotateUp(node);
+        }
+    }
+
+    private void detach(Node<T> node) {
+        // Rotate the node down until it has at most one child, then splice it out.
+        while (node.left != null && node.right != null) {
+            rotateUp(node.left.priority > node.right.priority ? node.left : node.right);
+        }
+        Node<T> child = node.left != null ? node.left : node.right;
+        if (child != null) {
+            child.parent = node.parent;
+        }
+        replaceChild(node.parent, node, child);
+        for (Node<T> n = node.parent; n != null; n = n.parent) {
+            n.size--;
+        }
+        if (node.prev != null) {
+            node.prev.next = node.next;
+        } else {
+            first = node.next;
+        }
+        if (node.next != null) {
+            node.next.prev = node.prev;
+        } else {
+            last = node.prev;
+        }
+    }
+
+    // Makes a node take its parent's place, keeping the in-order sequence unchanged.
+    private void rotateUp(Node<T> node) {
+        Node<T> parent = node.parent;
+        Node<T> grandparent = parent.parent;
+        if (node == parent.left) {
+            parent.left = node.right;
+            if (node.right != null) {
+                node.right.parent = parent;
+            }
+            node.right = parent;
+        } else {
+            parent.right = node.left;
+            if (node.left != null) {
+                node.left.parent = parent;
+            }
+            node.left = parent;
+        }
+        parent.parent = node;
+        node.parent = grandparent;
+        replaceChild(grandparent, parent, node);
+        parent.size = 1 + size(parent.left) + size(parent.right);
+        node.size = 1 + size(node.left) + size(node.right);
+    }
+
+    private void replaceChild(Node<T> parent, Node<T> oldChild, Node<T> newChild) {
+        if (parent == null) {
+            root = newChild;
+        } else if (parent.left == oldChild) {
+            parent.left = newChild;
+        } else {
+            parent.right = newChild;
+        }
+    }
+
+    private void link(Node<T> prev, Node<T> node, Node<T> next) {
+        node.prev = prev;
+        node.next = next;
+        if (prev != null) {
+            prev.next = node;
+        } else {
+            first = node;
+        }
+        if (next != null) {
+            next.prev = node;
+        } else {
+            last = node;
+        }
+    }
+
+    private static int size(Node<?> node) {
+        return node == null ? 0 : node.size;
+    }
+}
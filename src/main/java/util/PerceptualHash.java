@@ -0,0 +1,149 @@
+/**
+ * Perceptual hashing of photos for near-duplicate detection.
+ *
+ * <p>
+ * Uses the difference hash (dHash): the image is reduced to a 9 x 8 grid of average
+ * brightness values and each of the 64 bits records whether a cell is brighter than its
+ * right-hand neighbour. Resized, recompressed or re-exported copies of the same shot end up
+ * with hashes that differ in only a few bits, so the Hamming distance between two hashes
+ * measures how alike two photos look.
+ * </p>
+ *
+ * <p>
+ * Hashing needs a decode of the image, so it runs on a dedicated pool sized to the number of
+ * processors. Single photos are hashed asynchronously and batches are hashed in parallel.
+ * </p>
+ *
+ * @author Adam Student
+ * @author Neer Patel
+ * @version 1.0
+ */
+package util;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Computes and compares 64-bit difference hashes.
+ */
+public class PerceptualHash {
+
+    /** Hashes at most this many bits apart are reported as near-duplicates. */
+    public static final int NEAR_DUPLICATE_DISTANCE = 6;
+
+    private static final int GRID_WIDTH = 9;
+    private static final int GRID_HEIGHT = 8;
+    // Decode at roughly this size; plenty of pixels to average into the 9 x 8 grid.
+    private static final int SAMPLE_SIZE = 72;
+
+    private static final ExecutorService HASHERS = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), runnable -> {
+                Thread thread = new Thread(runnable, "perceptual-hash");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /**
+     * Returns the number of bits in which two hashes differ.
+     *
+     * @param a the first hash
+     * @param b the second hash
+     * @return the Hamming distance, between 0 and 64
+     */
+    public static int distance(long a, long b) {
+        return Long.bitCount(a ^ b);
+    }
+
+    /**
+     * Computes the difference hash of an image on the calling thread.
+     *
+     * @param filePath the path of the image file
+     * @return the hash
+     * @throws IOException if the file cannot be read or is not an image
+     */
+    public static long compute(String filePath) throws IOException {
+        BufferedImage image = ImageUtil.readSubsampled(filePath, SAMPLE_SIZE);
+        if (image == null) {
+            throw new IOException("Unsupported image format: " + filePath);
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        double[] cells = new double[GRID_WIDTH * GRID_HEIGHT];
+        for (int gy = 0; gy < GRID_HEIGHT; gy++) {
+            int y0 = gy * height / GRID_HEIGHT;
+            int y1 = Math.max(y0 + 1, (gy + 1) * height / GRID_HEIGHT);
+            for (int gx = 0; gx < GRID_WIDTH; gx++) {
+                int x0 = gx * width / GRID_WIDTH;
+                int x1 = Math.max(x0 + 1, (gx + 1) * width / GRID_WIDTH);
+                double sum = 0;
+                int count = 0;
+                for (int y = y0; y < y1 && y < height; y++) {
+                    for (int x = x0; x < x1 && x < width; x++) {
+                        int rgb = image.getRGB(x, y);
+                        // Rec. 601 luma.
+                        sum += 0.299 * ((rgb >> 16) & 0xFF) + 0.587 * ((rgb >> 8) & 0xFF) + 0.114 * (rgb & 0xFF);
+                        count++;
+                    }
+                }
+                cells[gy * GRID_WIDTH + gx] = count == 0 ? 0 : sum / count;
+            }
+        }
+        long hash = 0;
+        for (int gy = 0; gy < GRID_HEIGHT; gy++) {
+            for (int gx = 0; gx < GRID_WIDTH - 1; gx++) {
+                hash <<= 1;
+                if (cells[gy * GRID_WIDTH + gx] > cells[gy * GRID_WIDTH + gx + 1]) {
+                    hash |= 1;
+                }
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Computes the hash of one image on the hashing pool.
+     *
+     * @param filePath the path of the image file
+     * @return a future completing with the hash, or exceptionally if the file is unreadable
+     */
+    public static CompletableFuture<Long> computeAsync(String filePath) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return compute(filePath);
+            } catch (IOException e) {
+                throw new IllegalStateException(e.getMessage(), e);
+            }
+        }, HASHERS);
+    }
+
+    /**
+     * Hashes many images in parallel and waits for all of them.
+     *
+     * @param filePaths the paths of the image files
+     * @return the hash of every file that could be read, keyed by path
+     */
+    public static Map<String, Long> computeAll(Collection<String> filePaths) {
+        List<String> paths = new ArrayList<>(filePaths);
+        List<CompletableFuture<Long>> futures = new ArrayList<>(paths.size());
+        for (String path : paths) {
+            futures.add(computeAsync(path));
+        }
+        Map<String, Long> hashes = new HashMap<>();
+        for (int i = 0; i < paths.size(); i++) {
+            try {
+                hashes.put(paths.get(i), futures.get(i).join());
+            } catch (RuntimeException e) {
+                System.err.println("Error hashing " + paths.get(i) + ": " + e.getMessage());
+            }
+        }
+        return hashes;
+    }
+}
@@ -32,14 +32,17 @@ public class SerializationUtil {
      *
      * @param obj      the object to save (must implement Serializable)
      * @param filePath the file path where the object will be saved
+     * @return true if the object was written, false if an error occurred
      */
-    public static void save(Object obj, String filePath) {
+    public static boolean save(Object obj, String filePath) {
         try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(filePath))) {
             oos.writeObject(obj);
             System.out.println("Data successfully saved to " + filePath);
+            return true;
         } catch (IOException e) {
             System.err.println("Error saving data to " + filePath + ": " + e.getMessage());
             e.printStackTrace();
+            return false;
         }
     }
 
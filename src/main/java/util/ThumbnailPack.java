@@ -0,0 +1,491 @@
+/**
+ * Per-album thumbnail pack file, read through a memory mapping.
+ *
+ * <p>
+ * Instead of one small file per thumbnail, every album gets a single pack file under
+ * data/thumbs holding the encoded JPEG thumbnails of all its photos plus an offset table.
+ * Opening an album maps the file once and hands each thumbnail to JavaFX as a slice of the
+ * mapping, so showing the grid costs one map call plus page faults rather than an open and
+ * read per photo.
+ * </p>
+ *
+ * <p>
+ * The file is append-only: a sync encodes only photos that are missing from the pack,
+ * appends them followed by a new offset table and a fixed-size footer pointing at that
+ * table. Thumbnails of removed photos are simply left out of the new table. Because bytes
+ * already in the file never change, packs that are still mapped stay valid while a sync
+ * runs. Once more than half of the file is unreachable, the pack is compacted into a new
+ * file that replaces the old one.
+ * </p>
+ *
+ * <p>
+ * Java cannot unmap a buffer on demand, so {@link #close()} lets go of the mapping instead:
+ * the pack stops handing out thumbnails, and the mapping is released once the slices
+ * already handed out are no longer used. Deleting an album's pack closes every pack of it
+ * handed out before the file goes.
+ * </p>
+ *
+ * @author Adam Student
+ * @author Neer Patel
+ * @version 1.0
+ */
+package util;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+import javax.imageio.ImageIO;
+
+import javafx.scene.image.Image;
+
+/**
+ * A mapped, read-only view of one album's thumbnail pack.
+ */
+public class ThumbnailPack implements AutoCloseable {
+
+    /** Thumbnails fit inside a square of this many pixels. */
+    public static final int THUMBNAIL_SIZE = 150;
+
+    private static final String PACK_ROOT = "data/thumbs";
+    // Packs of the first format ("PTHP") held thumbnails as stored rather than upright; they
+    // fail the footer check and are rebuilt.
+    private static final int MAGIC = 0x50544832; // "PTH2"
+    private static final int FOOTER_SIZE = 16; // table offset (long), table length (int), magic (int)
+    private static final long COMPACT_MIN_BYTES = 1024 * 1024;
+
+    private static final ExecutorService SYNCER = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "thumbnail-pack");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final Map<String, Request> PENDING = new ConcurrentHashMap<>();
+
+    // Packs handed out so far, by album id, so deleting an album's pack can close them first.
+    private static final Map<String, Set<ThumbnailPack>> OPENED = new HashMap<>();
+
+    // A queued sync: the album's latest membership, thumbnails its callers already encoded,
+    // and what each caller wants done with the result.
+    private static class Request {
+        final List<String> paths;
+        final Map<String, byte[]> encoded;
+        final List<Consumer<ThumbnailPack>> callbacks;
+
+        Request(List<String> paths, Map<String, byte[]> encoded, List<Consumer<ThumbnailPack>> callbacks) {
+            this.paths = paths;
+            this.encoded = encoded;
+            this.callbacks = callbacks;
+        }
+    }
+
+    private volatile MappedByteBuffer mapping; // null once closed
+    private final Map<String, long[]> entries; // path -> {offset, length}
+
+    private ThumbnailPack(MappedByteBuffer mapping, Map<String, long[]> entries) {
+        this.mapping = mapping;
+        this.entries = entries;
+    }
+
+    /**
+     * Maps an album's pack file.
+     *
+     * @param packId the id of the album the pack belongs to
+     * @return the pack, or null if it does not exist or cannot be read
+     */
+    public static ThumbnailPack open(String packId) {
+        File file = packFile(packId);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            return opened(packId, map(file.toPath()));
+        } catch (IOException e) {
+            System.err.println("Error opening thumbnail pack " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Deletes an album's pack file on the background worker, after any sync already queued
+     * for it. Every pack of the album handed out so far is closed first.
+     *
+     * @param packId the id of the album
+     */
+    public static void delete(String packId) {
+        SYNCER.execute(() -> {
+            Set<ThumbnailPack> packs;
+            synchronized (OPENED) {
+                packs = OPENED.remove(packId);
+            }
+            if (packs != null) {
+                for (ThumbnailPack pack : packs) {
+                    pack.close();
+                }
+            }
+            File file = packFile(packId);
+            try {
+                Files.deleteIfExists(file.toPath());
+            } catch (IOException e) {
+                System.err.println("Could not delete thumbnail pack " + file + ": " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Returns whether the pack holds a thumbnail for every one of the given photos and
+     * nothing else.
+     *
+     * @param filePaths the paths of the album's photos
+     * @return true if no sync is needed
+     */
+    public boolean isCurrent(Collection<String> filePaths) {
+        if (filePaths.size() != entries.size()) {
+            return false;
+        }
+        for (String path : filePaths) {
+            if (!entries.containsKey(path)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decodes the thumbnail of a photo straight from the mapped file.
+     *
+     * @param filePath the path of the photo
+     * @return the thumbnail, or null if the pack has no entry for the photo
+     */
+    public Image thumbnail(String filePath) {
+        ByteBuffer slice = encodedThumbnail(filePath);
+        return slice == null ? null : new Image(new ByteBufferInputStream(slice));
+    }
+
+    /**
+     * Returns the encoded (JPEG) thumbnail of a photo as a view of the mapped file, so it can
+     * be sent on without copying it onto the heap. Safe to call from several threads.
+     *
+     * @param filePath the path of the photo
+     * @return a read-only buffer over the thumbnail, or null if the pack has no entry for it
+     *         or has been closed
+     */
+    public ByteBuffer encodedThumbnail(String filePath) {
+        MappedByteBuffer mapped = mapping;
+        long[] entry = entries.get(filePath);
+        if (mapped == null || entry == null) {
+            return null;
+        }
+        return mapped.slice((int) entry[0], (int) entry[1]).asReadOnlyBuffer();
+    }
+
+    /**
+     * Lets go of the mapping. Thumbnails already handed out stay readable; later requests
+     * find nothing. Closing a pack twice has no effect.
+     */
+    @Override
+    public void close() {
+        mapping = null;
+    }
+
+    /**
+     * Queues a sync of an album's pack on the background worker. Requests for the same
+     * album that arrive before the worker gets to it are merged into one sync of the
+     * latest membership, and each of their callbacks is run with its result.
+     *
+     * @param packId    the id of the album
+     * @param filePaths the paths of the album's photos, in display order
+     * @param onSynced  called on the worker thread with the updated pack, or null
+     */
+    public static void syncInBackground(String packId, Collection<String> filePaths,
+            Consumer<ThumbnailPack> onSynced) {
+        syncInBackground(packId, filePaths, Map.of(), onSynced);
+    }
+
+    /**
+     * Queues a sync like {@link #syncInBackground(String, Collection, Consumer)}, handing over
+     * thumbnails that were already encoded, so photos new to the pack are appended without
+     * decoding their images again. The thumbnails are held only until that sync has run.
+     *
+     * @param packId    the id of the album
+     * @param filePaths the paths of the album's photos, in display order
+     * @param encoded   thumbnails produced by {@link #encodeThumbnail(String)}, by file path
+     * @param onSynced  called on the worker thread with the updated pack, or null
+     */
+    public static void syncInBackground(String packId, Collection<String> filePaths, Map<String, byte[]> encoded,
+            Consumer<ThumbnailPack> onSynced) {
+        List<String> paths = new ArrayList<>(filePaths);
+        boolean[] merged = new boolean[1];
+        PENDING.compute(packId, (id, queued) -> {
+            Map<String, byte[]> carried = new HashMap<>(encoded);
+            List<Consumer<ThumbnailPack>> callbacks = new ArrayList<>();
+            if (queued != null) {
+                // A queued sync will pick up the new membership, and these thumbnails with it.
+                merged[0] = true;
+                queued.encoded.forEach(carried::putIfAbsent);
+                callbacks.addAll(queued.callbacks);
+            }
+            if (onSynced != null) {
+                callbacks.add(onSynced);
+            }
+            return new Request(paths, carried, callbacks);
+        });
+        if (merged[0]) {
+            return;
+        }
+        SYNCER.execute(() -> {
+            Request request = PENDING.remove(packId);
+            try {
+                ThumbnailPack pack = opened(packId, sync(packId, request.paths, request.encoded));
+                for (Consumer<ThumbnailPack> callback : request.callbacks) {
+                    callback.accept(pack);
+                }
+            } catch (IOException e) {
+                System.err.println("Error syncing thumbnail pack " + packId + ": " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Brings an album's pack in line with its photos on the calling thread: encodes and
+     * appends thumbnails for new photos and drops removed photos from the table.
+     *
+     * @param packId    the id of the album
+     * @param filePaths the paths of the album's photos
+     * @return the updated pack
+     * @throws IOException if the pack cannot be written
+     */
+    public static ThumbnailPack sync(String packId, Collection<String> filePaths) throws IOException {
+        return opened(packId, sync(packId, filePaths, Map.of()));
+    }
+
+    private static ThumbnailPack sync(String packId, Collection<String> filePaths, Map<String, byte[]> encodedAhead)
+            throws IOException {
+        File file = packFile(packId);
+        Files.createDirectories(file.getParentFile().toPath());
+        ThumbnailPack current = null;
+        if (file.isFile()) {
+            try {
+                current = map(file.toPath());
+            } catch (IOException e) {
+                // A write was interrupted before its footer landed: start the pack over.
+                System.err.println("Rebuilding thumbnail pack " + file + ": " + e.getMessage());
+                Files.delete(file.toPath());
+            }
+        }
+        if (current != null && current.isCurrent(filePaths)) {
+            return current;
+        }
+
+        Map<String, long[]> table = new LinkedHashMap<>();
+        long liveBytes = 0;
+        List<String> missing = new ArrayList<>();
+        for (String path : filePaths) {
+            long[] entry = current == null ? null : current.entries.get(path);
+            if (entry != null) {
+                table.put(path, entry);
+                liveBytes += entry[1];
+            } else if (!table.containsKey(path)) {
+                missing.add(path);
+            }
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE)) {
+            long position = channel.size();
+            for (String path : missing) {
+                byte[] encoded = encodedAhead.get(path);
+                if (encoded == null) {
+                    encoded = encodeThumbnail(path);
+                }
+                if (encoded == null) {
+                    continue; // Unreadable image: leave it out, the grid falls back to the file.
+                }
+                writeFully(channel, ByteBuffer.wrap(encoded), position);
+                table.put(path, new long[] { position, encoded.length });
+                liveBytes += encoded.length;
+                position += encoded.length;
+            }
+            writeTable(channel, table, position);
+        }
+
+        if (file.length() > COMPACT_MIN_BYTES && liveBytes * 2 < file.length()) {
+            compact(file, table);
+        }
+        return map(file.toPath());
+    }
+
+    private static ThumbnailPack opened(String packId, ThumbnailPack pack) {
+        synchronized (OPENED) {
+            OPENED.computeIfAbsent(packId, id -> Collections.newSetFromMap(new WeakHashMap<>())).add(pack);
+        }
+        return pack;
+    }
+
+    private static File packFile(String packId) {
+        return new File(PACK_ROOT, packId + ".pack");
+    }
+
+    // Copies only the live thumbnails into a fresh pack and swaps it in.
+    private static void compact(File file, Map<String, long[]> table) throws IOException {
+        ThumbnailPack source = map(file.toPath());
+        Path compacted = Files.createTempFile(file.getParentFile().toPath(), file.getName(), ".tmp");
+        try (FileChannel channel = FileChannel.open(compacted, StandardOpenOption.WRITE)) {
+            Map<String, long[]> moved = new LinkedHashMap<>();
+            long position = 0;
+            for (Map.Entry<String, long[]> entry : table.entrySet()) {
+                long[] location = entry.getValue();
+                ByteBuffer bytes = source.mapping.slice((int) location[0], (int) location[1]);
+                writeFully(channel, bytes, position);
+                moved.put(entry.getKey(), new long[] { position, location[1] });
+                position += location[1];
+            }
+            writeTable(channel, moved, position);
+        }
+        Files.move(compacted, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Appends the offset table and footer at the given position.
+    private static void writeTable(FileChannel channel, Map<String, long[]> table, long position)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(table.size());
+        for (Map.Entry<String, long[]> entry : table.entrySet()) {
+            byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            out.writeInt(key.length);
+            out.write(key);
+            out.writeLong(entry.getValue()[0]);
+            out.writeInt((int) entry.getValue()[1]);
+        }
+        int tableLength = bytes.size();
+        out.writeLong(position);
+        out.writeInt(tableLength);
+        out.writeInt(MAGIC);
+        out.flush();
+        writeFully(channel, ByteBuffer.wrap(bytes.toByteArray()), position);
+    }
+
+    private static ThumbnailPack map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < FOOTER_SIZE || size > Integer.MAX_VALUE) {
+                throw new IOException("Invalid pack size " + size);
+            }
+            // The mapping stays valid after the channel is closed.
+            MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            int footer = (int) size - FOOTER_SIZE;
+            if (mapping.getInt(footer + 12) != MAGIC) {
+                throw new IOException("Missing pack footer");
+            }
+            int tablePosition = (int) mapping.getLong(footer);
+            ByteBuffer table = mapping.slice(tablePosition, mapping.getInt(footer + 8));
+            int count = table.getInt();
+            Map<String, long[]> entries = new HashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                byte[] key = new byte[table.getInt()];
+                table.get(key);
+                long offset = table.getLong();
+                int length = table.getInt();
+                entries.put(new String(key, StandardCharsets.UTF_8), new long[] { offset, length });
+            }
+            return new ThumbnailPack(mapping, entries);
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupt thumbnail pack " + path, e);
+        }
+    }
+
+    /**
+     * Decodes a subsampled copy of the image, scales it into the thumbnail box, turns it
+     * upright according to its EXIF orientation and encodes it as JPEG.
+     *
+     * @param filePath the path of the photo
+     * @return the encoded thumbnail, or null if the image cannot be read
+     */
+    public static byte[] encodeThumbnail(String filePath) {
+        try {
+            // Skip pixels while decoding, keeping about twice the thumbnail resolution.
+            BufferedImage source = ImageUtil.readSubsampled(filePath, THUMBNAIL_SIZE * 2);
+            if (source == null) {
+                return null;
+            }
+            double scale = Math.min(1.0, (double) THUMBNAIL_SIZE / Math.max(source.getWidth(), source.getHeight()));
+            int width = Math.max(1, (int) Math.round(source.getWidth() * scale));
+            int height = Math.max(1, (int) Math.round(source.getHeight() * scale));
+            BufferedImage thumbnail = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = thumbnail.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(source, 0, 0, width, height, null);
+            g.dispose();
+            thumbnail = ImageUtil.orient(thumbnail, ImageMetadata.read(filePath).getOrientation());
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ImageIO.write(thumbnail, "jpg", out);
+            return out.toByteArray();
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Error creating thumbnail for " + filePath + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Streams a slice of the mapping without copying it into a byte array first.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
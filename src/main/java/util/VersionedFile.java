@@ -0,0 +1,219 @@
+/**
+ * Reading, writing and locking files that carry a version stamp, so that several processes
+ * can share them without overwriting each other's changes unnoticed.
+ *
+ * <p>
+ * A versioned file starts with a short header, a magic number and the version as a long,
+ * followed by the serialized object. Files written before versions existed start directly
+ * with the serialization stream and count as version 0, so they are read as before and get
+ * a header the next time they are written.
+ * </p>
+ *
+ * <p>
+ * Writers coordinate through an advisory {@link FileLock} on a lock file next to the data
+ * file, never on the data file itself, which is replaced by an atomic move on every write.
+ * The lock is held only while a writer checks that the version on disk is still the one it
+ * started from and moves its new files into place; reading, merging and serializing all
+ * happen without it, and each file has its own lock, so there is no global lock.
+ * </p>
+ *
+ * @author Adam Student
+ * @author Neer Patel
+ * @version 1.0
+ */
+package util;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Utility class for version-stamped files.
+ */
+public class VersionedFile {
+
+    private static final int MAGIC = 0x50485646; // "PHVF"
+
+    /**
+     * An object read from a versioned file, with the version it was stored as.
+     *
+     * @param <T> the type of the object
+     */
+    public static class Loaded<T> {
+        private final T value;
+        private final long version;
+
+        private Loaded(T value, long version) {
+            this.value = value;
+            this.version = version;
+        }
+
+        public T getValue() {
+            return value;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+    }
+
+    /**
+     * An exclusive lock on a file, shared with other processes. Closing it releases it.
+     */
+    public static class Lock implements Closeable {
+        private final FileChannel channel;
+
+        private Lock(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void close() throws IOException {
+            // Closing the channel releases the lock with it.
+            channel.close();
+        }
+    }
+
+    /**
+     * Takes the write lock of a file, waiting until no other process holds it. Within one
+     * process, callers must not ask for the same lock on two threads at once.
+     *
+     * @param file the data file to lock
+     * @return the lock, to be closed when the write is done
+     * @throws IOException if the lock file cannot be opened or locked
+     */
+    public static Lock lock(Path file) throws IOException {
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        Path lockFile = file.resolveSibling(file.getFileName() + ".lock");
+        FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            channel.lock();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        return new Lock(channel);
+    }
+
+    /**
+     * Reads the version a file was last written with.
+     *
+     * @param file the file
+     * @return the version, 0 if the file does not exist or predates version stamps
+     * @throws IOException if the file exists but cannot be read
+     */
+    public static long readVersion(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 16))) {
+            return readHeader(in);
+        } catch (NoSuchFileException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Loads the object stored in a versioned file.
+     *
+     * @param <T>      the type of the object
+     * @param filePath the file to read
+     * @return the object and its version, or null if the file does not exist or cannot be read
+     */
+    public static <T> Loaded<T> load(String filePath) {
+        Path file = Paths.get(filePath);
+        if (!Files.exists(file)) {
+            System.out.println("No saved data found at " + filePath);
+            return null;
+        }
+        try (BufferedInputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+            long version = readHeader(new DataInputStream(in));
+            @SuppressWarnings("unchecked")
+            T value = (T) new ObjectInputStream(in).readObject();
+            System.out.println("Data successfully loaded from " + filePath);
+            return new Loaded<>(value, version);
+        } catch (IOException | ClassNotFoundException e) {
+            System.err.println("Error loading data from " + filePath + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Writes serialized bytes to a file with a version header. The bytes go to a temporary
+     * file next to the target that is then moved over it, so readers never see a half-written
+     * file. Call while holding the file's {@link #lock(Path)}.
+     *
+     * @param file    the file to write
+     * @param version the version to stamp it with
+     * @param bytes   the serialized object
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(Path file, long version, byte[] bytes) throws IOException {
+        replace(file, out -> {
+            DataOutputStream data = new DataOutputStream(out);
+            data.writeInt(MAGIC);
+            data.writeLong(version);
+            data.flush();
+            out.write(bytes);
+        });
+    }
+
+    /**
+     * Writes bytes to a file, without a header, through a temporary file and an atomic move.
+     *
+     * @param file  the file to write
+     * @param bytes the content
+     * @throws IOException if the file cannot be written
+     */
+    public static void replace(Path file, byte[] bytes) throws IOException {
+        replace(file, out -> out.write(bytes));
+    }
+
+    private interface Content {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    private static void replace(Path target, Content content) throws IOException {
+        if (target.getParent() != null) {
+            Files.createDirectories(target.getParent());
+        }
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temp)) {
+            content.writeTo(out);
+        }
+        try {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    // Reads the header if there is one, leaving the stream at the start of the object.
+    private static long readHeader(DataInputStream in) throws IOException {
+        in.mark(4);
+        int magic;
+        try {
+            magic = in.readInt();
+        } catch (EOFException e) {
+            return 0;
+        }
+        if (magic != MAGIC) {
+            in.reset();
+            return 0;
+        }
+        return in.readLong();
+    }
+}
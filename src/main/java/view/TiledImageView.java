@@ -0,0 +1,225 @@
+/**
+ * TiledImageView displays a very large photo from its tile pyramid.
+ *
+ * <p>
+ * The view is placed inside a ScrollPane and sizes itself to the photo at the current scale.
+ * On every layout pass it works out which part of the photo is inside the viewport, picks the
+ * pyramid level that matches the scale, and shows only the tiles covering that region. Tiles
+ * load in the background and are kept in a least-recently-used cache with a fixed pixel
+ * budget, so memory use stays the same no matter how large the photo is.
+ * </p>
+ *
+ * <p>
+ * Tiles are cut from the pixels as stored. They are laid out in the stored image's
+ * coordinates inside a group whose transform turns the photo upright according to its EXIF
+ * orientation, and the viewport is mapped back through that transform to find the tiles it
+ * covers.
+ * </p>
+ *
+ * @author Adam Student
+ * @author Neer Patel
+ * @version 1.0
+ */
+package view;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javafx.beans.InvalidationListener;
+import javafx.geometry.BoundingBox;
+import javafx.geometry.Bounds;
+import javafx.scene.Group;
+import javafx.scene.control.ScrollPane;
+import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
+import javafx.scene.layout.Pane;
+import javafx.scene.transform.Translate;
+import util.ImageMetadata;
+import util.ImagePyramid;
+import util.ImageUtil;
+
+public final class TiledImageView extends Pane {
+
+    // Decoded pixel budget for cached tiles (256 x 256 x 4 bytes each): 64 MB.
+    private static final long TILE_CACHE_BYTES = 64L * 1024 * 1024;
+
+    private final ImagePyramid pyramid;
+    private final int orientation;
+    private final ScrollPane viewport;
+    private double scale = 1.0;
+    // Holds the tiles in stored coordinates; its transform turns them upright.
+    private final Group content = new Group();
+
+    // Access-ordered so that iteration starts at the least recently used tile.
+    private final LinkedHashMap<String, Image> tileCache = new LinkedHashMap<>(64, 0.75f, true);
+    private long cachedBytes;
+    private final Map<String, ImageView> visibleTiles = new HashMap<>();
+    private final InvalidationListener viewportListener = obs -> requestLayout();
+
+    /**
+     * Creates a tiled view of a pyramid inside the given scroll pane.
+     *
+     * @param pyramid     the pyramid of the photo to show
+     * @param orientation the photo's EXIF orientation (1-8)
+     * @param viewport    the scroll pane this view is the content of
+     */
+    public TiledImageView(ImagePyramid pyramid, int orientation, ScrollPane viewport) {
+        this.pyramid = pyramid;
+        this.orientation = orientation;
+        this.viewport = viewport;
+        content.setManaged(false);
+        getChildren().add(content);
+        viewport.hvalueProperty().addListener(viewportListener);
+        viewport.vvalueProperty().addListener(viewportListener);
+        viewport.viewportBoundsProperty().addListener(viewportListener);
+        setScale(scale);
+    }
+
+    /**
+     * Detaches this view from its scroll pane and releases all cached tiles.
+     */
+    public void dispose() {
+        viewport.hvalueProperty().removeListener(viewportListener);
+        viewport.vvalueProperty().removeListener(viewportListener);
+        viewport.viewportBoundsProperty().removeListener(viewportListener);
+        content.getChildren().clear();
+        visibleTiles.clear();
+        tileCache.clear();
+        cachedBytes = 0;
+    }
+
+    public ImagePyramid getPyramid() {
+        return pyramid;
+    }
+
+    /**
+     * Returns the width of the upright photo in source pixels.
+     *
+     * @return the displayed width
+     */
+    public int getDisplayWidth() {
+        return ImageMetadata.swapsAxes(orientation) ? pyramid.getHeight() : pyramid.getWidth();
+    }
+
+    /**
+     * Returns the height of the upright photo in source pixels.
+     *
+     * @return the displayed height
+     */
+    public int getDisplayHeight() {
+        return ImageMetadata.swapsAxes(orientation) ? pyramid.getWidth() : pyramid.getHeight();
+    }
+
+    /**
+     * Sets the display scale in layout units per source pixel.
+     *
+     * @param scale the new scale
+     */
+    public void setScale(double scale) {
+        this.scale = scale;
+        double width = getDisplayWidth() * scale;
+        double height = getDisplayHeight() * scale;
+        setMinSize(width, height);
+        setPrefSize(width, height);
+        requestLayout();
+    }
+
+    @Override
+    protected void layoutChildren() {
+        Bounds view = viewport.getViewportBounds();
+        // Size of the stored image at this scale; tiles are placed in its coordinates.
+        double imageWidth = pyramid.getWidth() * scale;
+        double imageHeight = pyramid.getHeight() * scale;
+        // Center the photo when it is smaller than the viewport.
+        double originX = Math.max(0, (getWidth() - getDisplayWidth() * scale) / 2);
+        double originY = Math.max(0, (getHeight() - getDisplayHeight() * scale) / 2);
+        content.getTransforms().setAll(new Translate(originX, originY),
+                ImageUtil.orientation(orientation, imageWidth, imageHeight));
+
+        // The visible region, mapped from this pane into the stored image's coordinates.
+        double viewLeft = Math.max(0, (getWidth() - view.getWidth()) * viewport.getHvalue());
+        double viewTop = Math.max(0, (getHeight() - view.getHeight()) * viewport.getVvalue());
+        Bounds visible = content.parentToLocal(
+                new BoundingBox(viewLeft, viewTop, view.getWidth(), view.getHeight()));
+        double left = visible.getMinX();
+        double top = visible.getMinY();
+        double right = visible.getMaxX();
+        double bottom = visible.getMaxY();
+
+        double renderScale = getScene() != null && getScene().getWindow() != null
+                ? getScene().getWindow().getOutputScaleX()
+                : 1.0;
+        int level = pyramid.levelFor(scale * renderScale);
+        // Size of one tile of this level on screen.
+        double tileExtent = ImagePyramid.TILE_SIZE * (double) (1 << level) * scale;
+
+        int firstColumn = (int) Math.max(0, Math.floor(left / tileExtent));
+        int lastColumn = (int) Math.min(pyramid.columns(level) - 1, Math.floor(right / tileExtent));
+        int firstRow = (int) Math.max(0, Math.floor(top / tileExtent));
+        int lastRow = (int) Math.min(pyramid.rows(level) - 1, Math.floor(bottom / tileExtent));
+
+        Set<String> wanted = new HashSet<>();
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                String key = level + "/" + column + "/" + row;
+                wanted.add(key);
+                ImageView tileView = visibleTiles.get(key);
+                if (tileView == null) {
+                    tileView = new ImageView(tile(key, level, column, row));
+                    tileView.setManaged(false);
+                    visibleTiles.put(key, tileView);
+                    content.getChildren().add(tileView);
+                }
+                double x = column * tileExtent;
+                double y = row * tileExtent;
+                double tileWidth = Math.min(tileExtent, imageWidth - x);
+                double tileHeight = Math.min(tileExtent, imageHeight - y);
+                tileView.relocate(x, y);
+                // Add half a pixel so neighbouring tiles never leave a seam.
+                tileView.setFitWidth(tileWidth + 0.5);
+                tileView.setFitHeight(tileHeight + 0.5);
+            }
+        }
+
+        // Drop tiles that scrolled out of view or belong to another level.
+        Iterator<Map.Entry<String, ImageView>> it = visibleTiles.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, ImageView> entry = it.next();
+            if (!wanted.contains(entry.getKey())) {
+                content.getChildren().remove(entry.getValue());
+                it.remove();
+            }
+        }
+    }
+
+    // Returns a cached tile image, loading it in the background and evicting old tiles if needed.
+    private Image tile(String key, int level, int column, int row) {
+        Image image = tileCache.get(key);
+        if (image != null) {
+            return image;
+        }
+        File file = pyramid.tileFile(level, column, row);
+        image = new Image(file.toURI().toString(), true);
+        tileCache.put(key, image);
+        cachedBytes += tileBytes();
+        Iterator<Map.Entry<String, Image>> it = tileCache.entrySet().iterator();
+        while (cachedBytes > TILE_CACHE_BYTES && it.hasNext()) {
+            Map.Entry<String, Image> eldest = it.next();
+            if (visibleTiles.containsKey(eldest.getKey()) || eldest.getKey().equals(key)) {
+                continue; // Never evict a tile that is on screen.
+            }
+            it.remove();
+            cachedBytes -= tileBytes();
+        }
+        return image;
+    }
+
+    private static long tileBytes() {
+        return (long) ImagePyramid.TILE_SIZE * ImagePyramid.TILE_SIZE * 4;
+    }
+}